@@ -0,0 +1,28 @@
+package com.emwaver.dfuprogrammer;
+
+import java.util.Locale;
+
+// A half-open range [start, end) of device memory addresses
+public class AddressRange {
+    public final int start;
+    public final int end;
+
+    public AddressRange(int start, int end) {
+        if (end < start) throw new IllegalArgumentException("end before start");
+        this.start = start;
+        this.end = end;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public boolean contains(int address) {
+        return address - start >= 0 && end - address > 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "0x%08X-0x%08X", start, end - 1);
+    }
+}
@@ -0,0 +1,388 @@
+package com.emwaver.dfuprogrammer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Container for a compressed firmware image (a DfuSe file or a raw binary): a header holding
+ * the codec, the image size and the CRC-32 of the image, followed by the compressed data.
+ * Two codecs are supported: raw deflate for the smallest files, and an LZ4 block codec that
+ * decompresses several times faster, for images that are streamed to the device. open()
+ * decompresses on the fly into fixed buffers, so memory use does not grow with the image, and
+ * checks the size and CRC of what it handed out at the end of the stream.
+ */
+public class CompressedImage {
+    static final int MAGIC = 0x4446555A;    // "DFUZ"
+    static final int VERSION = 1;
+    public static final int CODEC_DEFLATE = 1;
+    public static final int CODEC_LZ4 = 2;
+
+    private static final int LZ4_BLOCK_SIZE = 64 * 1024;        // decompressed bytes per block at most
+    private static final int LZ4_STORED = 0x80000000;           // block header flag: data is not compressed
+    private static final int LZ4_MIN_MATCH = 4;
+    private static final int LZ4_LAST_LITERALS = 5;             // a block ends with at least this many literals
+    private static final int LZ4_MATCH_LIMIT = 12;              // no match starts closer to the end than this
+    private static final int LZ4_HASH_BITS = 12;
+
+    private CompressedImage() {
+    }
+
+    /**
+     * Returns the decompressed image if in holds a container, else in itself (buffered), so
+     * plain images pass through unchanged. Closing the result closes in.
+     *
+     * @throws IOException if in is a container this version cannot read
+     */
+    public static InputStream open(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 16 * 1024);
+        buffered.mark(4);
+        DataInputStream data = new DataInputStream(buffered);
+        int magic;
+        try {
+            magic = data.readInt();
+        } catch (EOFException e) {
+            magic = 0;
+        }
+        if (magic != MAGIC) {
+            buffered.reset();
+            return buffered;
+        }
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported compressed image version " + version);
+        }
+        int codec = data.readUnsignedByte();
+        long length = data.readLong();
+        int crc = data.readInt();
+        if (codec != CODEC_DEFLATE && codec != CODEC_LZ4) {
+            throw new IOException("unknown compressed image codec " + codec);
+        }
+        if (length < 0) {
+            throw new IOException("bad compressed image size " + length);
+        }
+        return new Decoder(data, codec, length, crc);
+    }
+
+    /**
+     * Compresses image[offset, offset + length) into a container, e.g. when preparing a .dfz
+     * for distribution.
+     */
+    public static void write(OutputStream out, byte[] image, int offset, int length, int codec) throws IOException {
+        Crc32 crc = new Crc32();
+        crc.update(image, offset, length);
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeByte(codec);
+        header.writeLong(length);
+        header.writeInt(crc.value());
+        header.flush();
+
+        if (codec == CODEC_DEFLATE) {
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+            try {
+                DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 64 * 1024);
+                deflated.write(image, offset, length);
+                deflated.finish();
+            } finally {
+                deflater.end();
+            }
+        } else if (codec == CODEC_LZ4) {
+            byte[] compressed = new byte[LZ4_BLOCK_SIZE + LZ4_BLOCK_SIZE / 255 + 16];
+            int[] table = new int[1 << LZ4_HASH_BITS];
+            for (int pos = offset, end = offset + length; pos < end; ) {
+                int n = Math.min(LZ4_BLOCK_SIZE, end - pos);
+                int size = lz4_compress(image, pos, n, compressed, table);
+                if (size < n) {
+                    header.writeInt(size);
+                    header.write(compressed, 0, size);
+                } else {
+                    header.writeInt(LZ4_STORED | n);
+                    header.write(image, pos, n);
+                }
+                pos += n;
+            }
+            header.writeInt(0);     // end of blocks
+        } else {
+            throw new IllegalArgumentException("unknown codec " + codec);
+        }
+        header.flush();
+    }
+
+    // greedy single-pass LZ4 block compression of src[off, off + len) into dst, returns the size
+    private static int lz4_compress(byte[] src, int off, int len, byte[] dst, int[] table) {
+        Arrays.fill(table, -1);
+        int end = off + len;
+        int limit = end - LZ4_MATCH_LIMIT;
+        int anchor = off;
+        int ip = off;
+        int op = 0;
+        while (ip < limit) {
+            int sequence = le32(src, ip);
+            int h = (sequence * -1640531535) >>> (32 - LZ4_HASH_BITS);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > 0xFFFF || le32(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            int matchLength = LZ4_MIN_MATCH;
+            while (ip + matchLength < end - LZ4_LAST_LITERALS && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            int token = op;
+            op = lz4_literals(src, anchor, ip - anchor, dst, op);
+            dst[op++] = (byte) (ip - ref);
+            dst[op++] = (byte) ((ip - ref) >>> 8);
+            int rest = matchLength - LZ4_MIN_MATCH;
+            dst[token] |= (byte) Math.min(rest, 15);
+            op = lz4_length(dst, op, rest - 15);
+            ip += matchLength;
+            anchor = ip;
+        }
+        return lz4_literals(src, anchor, end - anchor, dst, op);
+    }
+
+    // token with the literal count, its length bytes and the literals; the match nibble is left 0
+    private static int lz4_literals(byte[] src, int from, int count, byte[] dst, int op) {
+        dst[op++] = (byte) (Math.min(count, 15) << 4);
+        op = lz4_length(dst, op, count - 15);
+        System.arraycopy(src, from, dst, op, count);
+        return op + count;
+    }
+
+    // the 255-continued length bytes for a nibble that overflowed, nothing if it did not
+    private static int lz4_length(byte[] dst, int op, int rest) {
+        if (rest < 0) {
+            return op;
+        }
+        for (; rest >= 255; rest -= 255) {
+            dst[op++] = (byte) 255;
+        }
+        dst[op++] = (byte) rest;
+        return op;
+    }
+
+    private static int le32(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+    }
+
+    // decompresses one container, checking size and CRC once the last byte went out
+    private static class Decoder extends InputStream {
+        private final DataInputStream in;
+        private final int codec;
+        private final int expectedCrc;
+        private final Crc32 crc = new Crc32();
+        private long remaining;
+        private boolean checked;
+
+        // deflate
+        private Inflater inflater;
+        private byte[] input;
+
+        // LZ4: the current decompressed block and the compressed data it came from
+        private byte[] block;
+        private byte[] compressed;
+        private int blockPos;
+        private int blockLength;
+        private boolean lastBlock;
+
+        Decoder(DataInputStream in, int codec, long length, int crc) {
+            this.in = in;
+            this.codec = codec;
+            this.remaining = length;
+            this.expectedCrc = crc;
+            if (codec == CODEC_DEFLATE) {
+                inflater = new Inflater(true);
+                input = new byte[16 * 1024];
+            } else {
+                block = new byte[LZ4_BLOCK_SIZE];
+                compressed = new byte[LZ4_BLOCK_SIZE];
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == 1 ? one[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] dst, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining == 0) {
+                check();
+                return -1;
+            }
+            int n = codec == CODEC_DEFLATE ? inflate(dst, off, (int) Math.min(len, remaining))
+                    : lz4(dst, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new IOException("compressed image is truncated, " + remaining + " bytes missing");
+            }
+            crc.update(dst, off, n);
+            remaining -= n;
+            if (remaining == 0) {
+                release();
+                check();
+            }
+            return n;
+        }
+
+        private void check() throws IOException {
+            if (!checked) {
+                checked = true;
+                if (crc.value() != expectedCrc) {
+                    throw new IOException("compressed image CRC mismatch");
+                }
+            }
+        }
+
+        private int inflate(byte[] dst, int off, int len) throws IOException {
+            try {
+                while (true) {
+                    int n = inflater.inflate(dst, off, len);
+                    if (n > 0) {
+                        return n;
+                    }
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        return -1;
+                    }
+                    if (inflater.needsInput()) {
+                        int read = in.read(input);
+                        if (read < 0) {
+                            return -1;
+                        }
+                        inflater.setInput(input, 0, read);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt compressed image: " + e.getMessage());
+            }
+        }
+
+        private int lz4(byte[] dst, int off, int len) throws IOException {
+            if (blockPos == blockLength && !next_block()) {
+                return -1;
+            }
+            int n = Math.min(len, blockLength - blockPos);
+            System.arraycopy(block, blockPos, dst, off, n);
+            blockPos += n;
+            return n;
+        }
+
+        private boolean next_block() throws IOException {
+            if (lastBlock) {
+                return false;
+            }
+            int header;
+            try {
+                header = in.readInt();
+            } catch (EOFException e) {
+                return false;   // read() reports the stream as truncated
+            }
+            if (header == 0) {
+                lastBlock = true;
+                return false;
+            }
+            int size = header & ~LZ4_STORED;
+            if (size > LZ4_BLOCK_SIZE) {
+                throw new IOException("corrupt compressed image: block of " + size + " bytes");
+            }
+            try {
+                if ((header & LZ4_STORED) != 0) {
+                    in.readFully(block, 0, size);
+                    blockLength = size;
+                } else {
+                    in.readFully(compressed, 0, size);
+                    blockLength = lz4_decompress(compressed, size, block);
+                }
+            } catch (EOFException e) {
+                return false;
+            }
+            blockPos = 0;
+            return true;
+        }
+
+        // frees the inflater's native memory as soon as the image is through, end() may repeat
+        private void release() {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+            in.close();
+        }
+    }
+
+    // decodes an LZ4 block, returns the decompressed size; every access is bounds checked
+    static int lz4_decompress(byte[] src, int length, byte[] dst) throws IOException {
+        int ip = 0;
+        int op = 0;
+        while (true) {
+            if (ip >= length) {
+                throw new IOException("corrupt compressed image: truncated block");
+            }
+            int token = src[ip++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (ip >= length) {
+                        throw new IOException("corrupt compressed image: truncated block");
+                    }
+                    b = src[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > length - ip || literals > dst.length - op) {
+                throw new IOException("corrupt compressed image: literals out of bounds");
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == length) {
+                return op;      // the last sequence has no match
+            }
+
+            if (ip + 2 > length) {
+                throw new IOException("corrupt compressed image: truncated block");
+            }
+            int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= length) {
+                        throw new IOException("corrupt compressed image: truncated block");
+                    }
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += LZ4_MIN_MATCH;
+            if (offset == 0 || offset > op || matchLength > dst.length - op) {
+                throw new IOException("corrupt compressed image: match out of bounds");
+            }
+            // byte by byte, the match may overlap what it is copying
+            for (int from = op - offset, end = op + matchLength; op < end; ) {
+                dst[op++] = dst[from++];
+            }
+        }
+    }
+}
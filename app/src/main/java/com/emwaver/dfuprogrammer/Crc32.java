@@ -0,0 +1,80 @@
+package com.emwaver.dfuprogrammer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table-driven CRC-32 (IEEE 802.3, reflected polynomial 0xEDB88320), processing four bytes per
+ * step with four lookup tables. Unlike java.util.zip.CRC32 on our minSdk it reads ByteBuffers
+ * in place, so memory mapped images are checked without being copied.
+ */
+public final class Crc32 {
+    private static final int[][] TABLES = new int[4][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;
+            }
+            TABLES[0][n] = c;
+        }
+        for (int n = 0; n < 256; n++) {
+            int c = TABLES[0][n];
+            for (int t = 1; t < 4; t++) {
+                c = TABLES[0][c & 0xFF] ^ (c >>> 8);
+                TABLES[t][n] = c;
+            }
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+
+    public void update(byte[] buffer, int offset, int length) {
+        final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int c = crc;
+        int i = offset;
+        int end = offset + length;
+        for (; end - i >= 4; i += 4) {
+            c ^= (buffer[i] & 0xFF) | (buffer[i + 1] & 0xFF) << 8 | (buffer[i + 2] & 0xFF) << 16 | buffer[i + 3] << 24;
+            c = t3[c & 0xFF] ^ t2[(c >>> 8) & 0xFF] ^ t1[(c >>> 16) & 0xFF] ^ t0[c >>> 24];
+        }
+        for (; i < end; i++) {
+            c = t0[(c ^ buffer[i]) & 0xFF] ^ (c >>> 8);
+        }
+        crc = c;
+    }
+
+    // absolute reads, the buffer's position and limit are left untouched
+    public void update(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + offset, length);
+            return;
+        }
+        final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int c = crc;
+        int i = offset;
+        int end = offset + length;
+        for (; end - i >= 4; i += 4) {
+            c ^= (buffer.get(i) & 0xFF) | (buffer.get(i + 1) & 0xFF) << 8 | (buffer.get(i + 2) & 0xFF) << 16 | buffer.get(i + 3) << 24;
+            c = t3[c & 0xFF] ^ t2[(c >>> 8) & 0xFF] ^ t1[(c >>> 16) & 0xFF] ^ t0[c >>> 24];
+        }
+        for (; i < end; i++) {
+            c = t0[(c ^ buffer.get(i)) & 0xFF] ^ (c >>> 8);
+        }
+        crc = c;
+    }
+
+    // standard CRC-32 value, as returned by java.util.zip.CRC32
+    public int value() {
+        return ~crc;
+    }
+
+    // the DFU suffix stores the register without the final inversion
+    public int dfuValue() {
+        return crc;
+    }
+}
@@ -0,0 +1,59 @@
+package com.emwaver.dfuprogrammer;
+
+import java.util.Locale;
+
+/**
+ * What is known about one kind of device, identified by VID/PID/bcdDevice: its parsed DFU
+ * descriptors (transfer size, attributes, memory map) and timings measured while flashing it.
+ * Kept by DeviceProfiles so a board that was seen before is ready without re-parsing.
+ */
+public class DeviceProfile {
+    private final DfuDescriptor descriptor;
+    private final FlashLayout layout;              // of alternate setting 0, null if it has no memory map
+    private volatile long writeNanosPerByte = -1;  // erase+write rate of the last session that wrote, -1 if none
+
+    public DeviceProfile(DfuDescriptor descriptor) {
+        this.descriptor = descriptor;
+        DfuDescriptor.AltSetting flash = descriptor.getAltSetting(0);
+        this.layout = flash != null ? flash.getLayout() : null;
+    }
+
+    public static String key(int vendorId, int productId, int deviceVersion) {
+        return String.format(Locale.US, "%04x_%04x_%04x", vendorId, productId, deviceVersion);
+    }
+
+    public String getKey() {
+        return key(descriptor.getVendorId(), descriptor.getProductId(), descriptor.getDeviceVersion());
+    }
+
+    public DfuDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    // the internal flash layout, parsed once per profile
+    public FlashLayout getLayout() {
+        return layout;
+    }
+
+    public long getWriteNanosPerByte() {
+        return writeNanosPerByte;
+    }
+
+    public void setWriteNanosPerByte(long writeNanosPerByte) {
+        this.writeNanosPerByte = writeNanosPerByte;
+    }
+
+    // false once the board names another memory map for alternate setting 0 than the profile
+    // holds, e.g. after a bootloader update that kept bcdDevice
+    public boolean matches(String flashName) {
+        DfuDescriptor.AltSetting flash = descriptor.getAltSetting(0);
+        String name = flash != null ? flash.getName() : null;
+        return name == null ? flashName == null : name.equals(flashName);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s, transfer size %d, write %d ns/byte",
+                getKey(), descriptor.getTransferSize(), writeNanosPerByte);
+    }
+}
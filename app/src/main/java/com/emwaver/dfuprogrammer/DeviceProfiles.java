@@ -0,0 +1,100 @@
+package com.emwaver.dfuprogrammer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persisted DeviceProfiles, one small file per VID/PID/bcdDevice in an app-private directory.
+ * Profiles are read from disk once and then served from memory.
+ */
+public class DeviceProfiles {
+    private static final String SUFFIX = ".profile";
+    private static final int MAGIC = 0x44465050;    // "DFPP"
+    private static final int VERSION = 2;
+
+    private final File dir;
+    private final Map<String, DeviceProfile> profiles = new HashMap<>();
+
+    public DeviceProfiles(File dir) {
+        this.dir = dir;
+    }
+
+    // the stored profile for this device, or null if it was never seen or its file is unreadable
+    public synchronized DeviceProfile get(int vendorId, int productId, int deviceVersion) {
+        String key = DeviceProfile.key(vendorId, productId, deviceVersion);
+        DeviceProfile profile = profiles.get(key);
+        if (profile == null) {
+            profile = read(new File(dir, key + SUFFIX));
+            if (profile != null) {
+                profiles.put(key, profile);
+            }
+        }
+        return profile;
+    }
+
+    // creates and stores the profile of a device seen for the first time
+    public synchronized DeviceProfile create(DfuDescriptor descriptor) {
+        DeviceProfile profile = new DeviceProfile(descriptor);
+        profiles.put(profile.getKey(), profile);
+        save(profile);
+        return profile;
+    }
+
+    // writes the profile, e.g. after new timings were measured; failures only cost a re-parse later
+    public synchronized void save(DeviceProfile profile) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        File file = new File(dir, profile.getKey() + SUFFIX);
+        File tmp = new File(dir, profile.getKey() + SUFFIX + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                write(profile, out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+        }
+    }
+
+    private static void write(DeviceProfile profile, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        profile.getDescriptor().write(out);
+        out.writeLong(profile.getWriteNanosPerByte());
+    }
+
+    private static DeviceProfile read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                DeviceProfile profile = new DeviceProfile(DfuDescriptor.read(in));
+                profile.setWriteNanosPerByte(in.readLong());
+                return profile;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.emwaver.dfuprogrammer;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Tracks every attached device in DFU mode (0483:DF11) and keeps one open DfuSession per
+ * device, keyed by its device name. Permission is requested for each device as it shows up,
+ * and its session is opened once granted and closed again when the device is detached.
+ * Listener calls are made on the main thread, where the broadcasts arrive.
+ */
+public class DeviceRegistry {
+    private static final String TAG = "DeviceRegistry";
+
+    public interface Listener {
+        void onSessionOpened(DfuSession session);
+
+        void onSessionClosed(DfuSession session);
+    }
+
+    private final Context context;
+    private final UsbManager usbManager;
+    private final Executor callbackExecutor;
+    private final DeviceProfiles profiles;
+    private final Map<String, DfuSession> sessions = new LinkedHashMap<>();
+    private final Map<String, Usb> connections = new LinkedHashMap<>();
+    private File journalDir;
+    private File traceDir;
+    private Listener listener;
+    private boolean started;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if (device == null || !is_dfu_device(device)) {
+                return;
+            }
+
+            if (Usb.ACTION_USB_PERMISSION.equals(action)) {
+                if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+                    open(device);
+                } else {
+                    Log.d(TAG, "permission denied for device " + device.getDeviceName());
+                }
+            } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
+                request_permission(device);
+            } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
+                close(device.getDeviceName());
+            }
+        }
+    };
+
+    /**
+     * @param profiles stored device profiles, so known boards skip descriptor parsing; may be null
+     */
+    public DeviceRegistry(Context context, UsbManager usbManager, Executor callbackExecutor, DeviceProfiles profiles) {
+        this.context = context;
+        this.usbManager = usbManager;
+        this.callbackExecutor = callbackExecutor;
+        this.profiles = profiles;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // records each session's control transfers to <board>.trace in dir, replacing the board's previous trace
+    public void setTraceDir(File traceDir) {
+        this.traceDir = traceDir;
+    }
+
+    // gives every session a flash journal in dir, named after its board, so interrupted writes can resume
+    public void setJournalDir(File journalDir) {
+        this.journalDir = journalDir;
+    }
+
+    // registers for USB broadcasts and picks up devices that were attached before
+    public void start() {
+        if (started) return;
+        started = true;
+        IntentFilter filter = new IntentFilter(Usb.ACTION_USB_PERMISSION);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        context.registerReceiver(receiver, filter);
+
+        for (UsbDevice device : usbManager.getDeviceList().values()) {
+            if (is_dfu_device(device)) {
+                request_permission(device);
+            }
+        }
+    }
+
+    // closes every session and stops listening for devices
+    public void stop() {
+        if (!started) return;
+        started = false;
+        try {
+            context.unregisterReceiver(receiver);
+        } catch (IllegalArgumentException e) { /* Already unregistered */ }
+        for (String name : new ArrayList<>(sessions.keySet())) {
+            close(name);
+        }
+    }
+
+    // open sessions in the order their devices were opened
+    public List<DfuSession> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    public DfuSession getSession(String name) {
+        return sessions.get(name);
+    }
+
+    private static boolean is_dfu_device(UsbDevice device) {
+        return device.getVendorId() == Usb.USB_VENDOR_ID && device.getProductId() == Usb.USB_PRODUCT_ID;
+    }
+
+    private void request_permission(UsbDevice device) {
+        if (usbManager.hasPermission(device)) {
+            open(device);
+            return;
+        }
+        PendingIntent permissionIntent = Usb.permissionIntent(context);
+        usbManager.requestPermission(device, permissionIntent);
+    }
+
+    private void open(UsbDevice device) {
+        String name = device.getDeviceName();
+        if (sessions.containsKey(name)) {
+            return;
+        }
+        Usb usb = new Usb();
+        usb.setUsbManager(usbManager);
+        usb.setProfiles(profiles);
+        usb.setDevice(device);
+        if (!usb.isConnected()) {
+            Log.e(TAG, "open FAIL " + name);
+            return;
+        }
+        DfuSession session = new DfuSession(name, usb, usb.getProfile(), context, callbackExecutor);
+        if (journalDir != null) {
+            session.getDfu().set_journal_file(new File(journalDir, usb.getDeviceKey() + ".journal"));
+        }
+        if (traceDir != null && (traceDir.isDirectory() || traceDir.mkdirs())) {
+            try {
+                session.record(new File(traceDir, usb.getDeviceKey() + ".trace"));
+            } catch (IOException e) {
+                Log.w(TAG, "cannot record " + name + ": " + e);
+            }
+        }
+        connections.put(name, usb);
+        sessions.put(name, session);
+        Log.i(TAG, "session opened for " + name + ", " + sessions.size() + " open");
+        if (listener != null) {
+            listener.onSessionOpened(session);
+        }
+    }
+
+    private void close(String name) {
+        DfuSession session = sessions.remove(name);
+        final Usb usb = connections.remove(name);
+        if (session == null) {
+            return;
+        }
+        session.close(new Runnable() {
+            @Override
+            public void run() {
+                usb.release();
+            }
+        });
+        // keep the timings measured in this session for the next time the board is attached
+        if (profiles != null && usb.getProfile() != null) {
+            profiles.save(usb.getProfile());
+        }
+        Log.i(TAG, "session closed for " + name + ", " + sessions.size() + " open");
+        if (listener != null) {
+            listener.onSessionClosed(session);
+        }
+    }
+}
@@ -17,7 +17,7 @@
 package com.emwaver.dfuprogrammer;
 
 import android.content.Context;
-import android.content.res.AssetManager;
+import android.content.res.AssetFileDescriptor;
 import android.nfc.FormatException;
 import android.util.Log;
 
@@ -27,10 +27,17 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @SuppressWarnings("unused")
 public class Dfu {
@@ -74,15 +81,18 @@ public class Dfu {
     public static final int mInternalFlashSize = 1048575;
     public static final int mInternalFlashStartAddress = 0x08000000;
     public static final int mOptionByteStartAddress = 0x1FFFC000;
-    private static final int OPT_BOR_1 = 0x08;
-    private static final int OPT_BOR_2 = 0x04;
-    private static final int OPT_BOR_3 = 0x00;
-    private static final int OPT_BOR_OFF = 0x0C;
-    private static final int OPT_WDG_SW = 0x20;
-    private static final int OPT_nRST_STOP = 0x40;
-    private static final int OPT_nRST_STDBY = 0x80;
-    private static final int OPT_RDP_OFF = 0xAA00;
-    private static final int OPT_RDP_1 = 0x3300;
+    public static final String BUNDLED_IMAGE = "asset:dfu.dfu";    // journal id of the write_flash() image
+    public static final int OPTION_BYTES_SIZE = 16;
+    // option halfword for write_option_bytes(): an OPT_RDP_ level | user option bits
+    public static final int OPT_BOR_1 = 0x08;
+    public static final int OPT_BOR_2 = 0x04;
+    public static final int OPT_BOR_3 = 0x00;
+    public static final int OPT_BOR_OFF = 0x0C;
+    public static final int OPT_WDG_SW = 0x20;
+    public static final int OPT_nRST_STOP = 0x40;
+    public static final int OPT_nRST_STDBY = 0x80;
+    public static final int OPT_RDP_OFF = 0xAA00;
+    public static final int OPT_RDP_1 = 0x3300;
 
     private final static String[] DEVICE_STATE = {
             "OK", "errTARGET", "errFILE",
@@ -100,22 +110,62 @@ public class Dfu {
     private final static int STATE_OK = 0;
     private final static int DFU_REQUEST_TYPE_OUT = 0b00100001; // OUT Endpoint, Class Request, Interface Recipient
 
-    private final static int BLOCK_SIZE = 2048; // wTransferSize
+    private final static int DEFAULT_TRANSFER_SIZE = 2048;  // STM32 bootloader wTransferSize, for devices without descriptors
+
+    private final static int MAX_UPLOAD_BLOCKS = 0x8000;  // keeps wBlockNum well inside 16 bits
+    private final static int LEAVE_TIMEOUT = 2000;  // ms on top of wDetachTimeOut for the device to drop off the bus
+
+    private final static int STATE_UNKNOWN = -1;  // no status seen since the last failed or state-changing request
 
 
 
     private final int deviceVid;
     private final int devicePid;
 
-    private Usb usb;
+    private volatile DfuTransport usb;
     private int deviceVersion;  //STM bootloader version
 
-    private final List<DfuListener> listeners = new ArrayList<>();
-
+    private volatile int deviceState = STATE_UNKNOWN;  // bState of the last GETSTATUS, or the state implied by the last request
+    private final byte[] statusBuffer = new byte[6];
+    private int transferSize = DEFAULT_TRANSFER_SIZE;  // block size of every DNLOAD and UPLOAD
+    private DfuDescriptor descriptor;
+    private DeviceProfile profile;      // what is stored about this kind of device, may be null
+    private byte[] uploadBuffer = new byte[transferSize];
+    private byte[] verifyBuffer = new byte[transferSize];
+    private int writePointer;           // address block 2 of the current write run maps to
+    private boolean writePointerSet;    // false once anything else was downloaded since
+    private final HexDump hexDump = new HexDump();
+    private volatile boolean cancelled;
+    private FlashStats stats = new FlashStats();
+    private long lastWriteNanosPerByte = -1;  // erase+write rate of the last session that wrote anything
+    private boolean deferredVerify = true;  // verify in one upload pass after the whole image is written
+    private boolean sectorErase = true;     // erase only the sectors an image touches, right before writing them
+    private FlashLayout flashLayout = FlashLayout.parse(mInternalFlashString);
+    private final BitSet erasedSectors = new BitSet();
+    // read sectors back first and skip the ones already holding the image; set from the UI thread
+    private volatile boolean deltaWrite = false;
+    private final BitSet unchangedSectors = new BitSet();
+    private File journalFile;               // where write_image() journals completed sectors, null for none
+    private FlashJournal journal;           // of the write in progress
+    private int journalAlt;                 // alternate setting of the target being journaled
+    private int[] sectorBytesLeft;          // image bytes per sector of that target not yet written
+
+    private final DfuEventDispatcher events = new DfuEventDispatcher();
+    private DfuProgress.Phase progressPhase = DfuProgress.Phase.WRITE;
+    private long progressTotal;
+    private long progressDone;
+    private long progressStart;
+    private long lastProgress;
+
+    // listeners are called on a dispatcher thread, never on the thread doing the transfers
     public interface DfuListener {
         void onStatusMsg(String msg);
     }
 
+    public interface ProgressListener {
+        void onProgress(DfuProgress progress);
+    }
+
     private Context context;
 
 
@@ -128,19 +178,110 @@ public class Dfu {
     }
 
     private void onStatusMsg(final String msg) {
-        for (DfuListener listener : listeners) {
-            listener.onStatusMsg(msg);
-        }
+        events.post(msg);
     }
 
     public void setListener(final DfuListener listener) {
         if (listener == null) throw new IllegalArgumentException("Listener is null");
-        listeners.add(listener);
+        events.addListener(listener);
+    }
+
+    public void removeListener(DfuListener listener) {
+        events.removeListener(listener);
+    }
+
+    public void addProgressListener(final ProgressListener listener) {
+        if (listener == null) throw new IllegalArgumentException("Listener is null");
+        events.addProgressListener(listener);
+    }
+
+    public void removeProgressListener(ProgressListener listener) {
+        events.removeProgressListener(listener);
+    }
+
+    // delivers pending events, then stops the event thread and drops all listeners; call once done with this Dfu
+    public void close() {
+        events.shutdown();
+    }
+
+    private void begin_phase(DfuProgress.Phase phase, long total) {
+        progressPhase = phase;
+        progressTotal = total;
+        progressDone = 0;
+        progressStart = System.nanoTime();
+        lastProgress = progressStart - DfuEventDispatcher.FRAME_NANOS;
+    }
+
+    // counts bytes handled in the current phase; events are built at most once per frame and on completion
+    private void advance(int address, long bytes) {
+        progressDone += bytes;
+        long now = System.nanoTime();
+        boolean done = progressTotal >= 0 && progressDone >= progressTotal;
+        if (!done && now - lastProgress < DfuEventDispatcher.FRAME_NANOS) {
+            return;
+        }
+        lastProgress = now;
+        long elapsed = now - progressStart;
+        long rate = elapsed > 0 ? progressDone * 1000000000L / elapsed : 0;
+        long eta = rate > 0 && progressTotal >= 0 ? (progressTotal - progressDone) * 1000 / rate : -1;
+        events.post(new DfuProgress(progressPhase, address, progressDone, progressTotal, rate, eta));
     }
 
     public void setUsb(Usb usb) {
+        setTransport(usb);
+    }
+
+    // talks to something other than a real device, e.g. a DfuSimulator
+    public void setTransport(DfuTransport usb) {
         this.usb = usb;
-        this.deviceVersion = this.usb.getDeviceVersion();
+        this.deviceState = STATE_UNKNOWN;
+        this.deviceVersion = usb != null ? usb.getDeviceVersion() : 0;
+        this.descriptor = usb != null ? usb.getDescriptor() : null;
+        if (descriptor == null) {
+            return;
+        }
+
+        // DfuSe numbers blocks in units of wTransferSize, so blocks must be exactly that size
+        int size = descriptor.getTransferSize() > 0 ? descriptor.getTransferSize() : DEFAULT_TRANSFER_SIZE;
+        if (size != transferSize) {
+            transferSize = size;
+            uploadBuffer = new byte[size];
+            verifyBuffer = new byte[size];
+        }
+        FlashLayout layout;
+        if (profile != null && profile.getDescriptor() == descriptor) {
+            layout = profile.getLayout();   // parsed when the profile was created
+        } else {
+            DfuDescriptor.AltSetting flash = descriptor.getAltSetting(0);
+            layout = flash != null ? flash.getLayout() : null;
+        }
+        if (layout != null) {
+            flashLayout = layout;
+        }
+        Log.i(TAG, "transfer size " + transferSize + ", layout " + flashLayout.getName());
+    }
+
+    // stored profile of the device about to be attached; its timings seed the write estimate and
+    // are updated as they are measured. Set before setTransport() to reuse the parsed layout.
+    public void set_profile(DeviceProfile profile) {
+        this.profile = profile;
+        if (profile != null && profile.getWriteNanosPerByte() > 0) {
+            lastWriteNanosPerByte = profile.getWriteNanosPerByte();
+        }
+    }
+
+    public DeviceProfile get_profile() {
+        return profile;
+    }
+
+    // the attached device's descriptors, or null
+    public DfuDescriptor get_descriptor() {
+        return descriptor;
+    }
+
+    // bytes per DNLOAD/UPLOAD block, wTransferSize of the attached device
+    public int get_transfer_size() {
+        return transferSize;
     }
 
 
@@ -156,32 +297,199 @@ public class Dfu {
 
 
 
-    private void read_unprotect() throws Exception {
+    /**
+     * Removes read protection (DfuSe command 0x92). The device mass erases its flash, sets RDP
+     * back to level 0 and then resets, which on real hardware drops it off the bus.
+     *
+     * @return true if the device is still answering afterwards
+     */
+    public boolean read_unprotect() throws Exception {
         byte[] buffer = new byte[1];
         buffer[0] = (byte) 0x92;
-        //download(buffer);
+        onStatusMsg("read unprotecting, this erases the flash...\n");
+        long start = System.nanoTime();
+        boolean attached = download_then_reset("read unprotect", buffer, 0, buffer.length);
+        stats.record_operation(FlashStats.OP_ERASE, System.nanoTime() - start);
+        erasedSectors.clear();
+        return attached;
     }
 
+    /**
+     * Reads the option bytes through alternate setting 1.
+     *
+     * @return OPTION_BYTES_SIZE bytes (user options, RDP, their complements, write protection),
+     *         or null if the device refuses the upload because read protection is active
+     */
+    public byte[] read_option_bytes() throws Exception {
+        select_alt_setting(1);
+        try {
+            set_address_pointer(mOptionByteStartAddress);
+            ensure_upload_idle();
+            byte[] optionBytes = new byte[OPTION_BYTES_SIZE];
+            if (read_block(optionBytes, 2, optionBytes.length) != optionBytes.length) {
+                return null;
+            }
+            return optionBytes;
+        } finally {
+            select_alt_setting(0);
+        }
+    }
+
+    /**
+     * Programs the user option byte and the RDP level, keeping the write protection bits. The
+     * bootloader resets to load new option bytes, so this should be the last request of a
+     * session; nothing is written if the option bytes already hold these values.
+     *
+     * @param options an OPT_RDP_ level | OPT_BOR_ level | OPT_WDG_SW, OPT_nRST_ flags
+     * @return true if the option bytes were written
+     */
+    public boolean write_option_bytes(int options) throws Exception {
+        byte[] current = read_option_bytes();
+        if (current == null) {
+            throw new Exception("error: option bytes are read protected, read_unprotect() first");
+        }
+        byte[] wanted = current.clone();
+        wanted[0] = (byte) options;
+        wanted[1] = (byte) (options >> 8);
+        wanted[2] = (byte) ~wanted[0];
+        wanted[3] = (byte) ~wanted[1];
+        if (Arrays.equals(wanted, current)) {
+            onStatusMsg("option bytes unchanged.\n");
+            return false;
+        }
+
+        select_alt_setting(1);
+        set_address_pointer(mOptionByteStartAddress);
+        download_then_reset("writing option bytes", wanted, 2, wanted.length);
+        onStatusMsg("option bytes set to 0x" + Integer.toHexString(options & 0xFFFF) + ".\n");
+        return true;
+    }
+
+    // a DNLOAD after which the device may reset instead of answering the status requests
+    private boolean download_then_reset(String what, byte[] buffer, int block, int length) throws Exception {
+        ensure_download_idle();
+        int r = transfer(DFU_REQUEST_TYPE_OUT, DFU_DNLOAD, block, 0, buffer, length, 500);
+        if (r < 0) {
+            deviceState = STATE_UNKNOWN;
+            throw new Exception("error: " + what + " control transfer failed");
+        }
+        byte[] status = statusBuffer;
+        try {
+            get_status(status);
+            while (deviceState == STATE_DFU_DOWNLOAD_BUSY) {
+                Thread.sleep(poll_timeout(status));
+                get_status(status);
+            }
+        } catch (Exception e) {
+            Log.i(TAG, what + ": device reset");
+            deviceState = STATE_UNKNOWN;
+            return false;
+        }
+        if (deviceState == STATE_DFU_ERROR) {
+            throw new Exception(what + " failed");
+        }
+        return true;
+    }
+
+    public boolean leave() throws Exception {
+        return leave(mInternalFlashStartAddress);
+    }
+
+    /**
+     * Leaves DFU mode and starts the application at address, so a freshly written unit boots
+     * without being replugged. The address pointer is set and a zero-length DNLOAD ends the
+     * download; the device then goes through dfuMANIFEST-SYNC and dfuMANIFEST, jumps to the
+     * application and drops off the bus. Returns once the device stops answering, i.e. once it
+     * re-enumerates as the application and the next unit can be attached.
+     *
+     * @return false if the device stays in DFU mode until it is reset, which Android cannot do
+     *         from the host side: it lacks bitWillDetach, or it is manifestation tolerant and
+     *         went back to dfuIDLE
+     */
+    public boolean leave(int address) throws Exception {
+        long start = System.nanoTime();
+        set_address_pointer(address);
+        ensure_download_idle();
+        int r = transfer(DFU_REQUEST_TYPE_OUT, DFU_DNLOAD, 2, 0, null, 0, 500);
+        if (r < 0) {
+            deviceState = STATE_UNKNOWN;
+            throw new Exception("error: leave() control transfer failed");
+        }
+        deviceState = STATE_DFU_MANIFEST_SYNC;
+
+        boolean willDetach = descriptor == null || descriptor.willDetach();
+        int detachTimeout = descriptor != null ? descriptor.getDetachTimeout() : 0;
+        long deadline = System.nanoTime() + (LEAVE_TIMEOUT + detachTimeout) * 1000000L;
+        byte[] status = statusBuffer;
+        while (true) {
+            DfuTransport current = usb;
+            if (current == null || !current.isConnected()
+                    || transfer(DFU_REQUEST_TYPE_IN, DFU_GETSTATUS, 0, 0, status, 6, 500) < 0) {
+                // gone from the bus: the application is starting
+                deviceState = STATE_UNKNOWN;
+                onStatusMsg("device left DFU mode after " + (System.nanoTime() - start) / 1000000 + " ms.\n");
+                return true;
+            }
+            deviceState = status[4] & 0xFF;
+            if (deviceState == STATE_DFU_ERROR) {
+                throw new Exception("error: manifestation failed, status " + (status[0] & 0xFF));
+            }
+            if (deviceState == STATE_DFU_IDLE || (deviceState == STATE_DFU_MANIFEST_WAIT_RESET && !willDetach)) {
+                onStatusMsg("manifested, replug the device to start the application.\n");
+                return false;
+            }
+            if (System.nanoTime() > deadline) {
+                // bitWillDetach promises a reset within wDetachTimeOut
+                onStatusMsg("device did not detach, replug it to start the application.\n");
+                return false;
+            }
+            Thread.sleep(Math.max(poll_timeout(status), 10));
+        }
+    }
+
+
+    /**
+     * The state the device was last seen in, without a request: bState of the last GETSTATUS,
+     * or the state the last request is known to have left it in. Safe to call from any thread
+     * while the worker owns the device.
+     *
+     * @return a DFU bState, or -1 if it is unknown, e.g. after a failed transfer
+     */
+    public int get_last_state() {
+        return deviceState;
+    }
+
+    // e.g. "dfuDNLOAD -IDLE" for a bState, "unknown" for -1
+    public static String state_name(int state) {
+        return state >= 0 && state < DEVICE_STATUS.length ? DEVICE_STATUS[state] : "unknown";
+    }
 
     public int get_status(byte[] buffer)  throws Exception {
-        int r = usb.controlTransfer(DFU_REQUEST_TYPE_IN, DFU_GETSTATUS, 0, 0, buffer, 6, 500);
+        int r = transfer(DFU_REQUEST_TYPE_IN, DFU_GETSTATUS, 0, 0, buffer, 6, 500);
         if (r < 0) {
+            deviceState = STATE_UNKNOWN;
             throw new Exception("error: get_status() control transfer failed");
         } else {
-            byte state = buffer[1]; // Ensure unsigned byte
-            byte status = buffer[4]; // Ensure unsigned byte
+            int state = buffer[0] & 0xFF;   // bStatus, named by DEVICE_STATE
+            int status = buffer[4] & 0xFF;  // bState, named by DEVICE_STATUS
+            deviceState = status;
             if (state < DEVICE_STATE.length) {
                 Log.i("Dfu", "state " + state + ": " + DEVICE_STATE[state]);
             } else {
                 Log.i("Dfu", "state " + state + ": OUT OF RANGE");
             }
-            Log.i("Dfu", "status " + status + ": " + DEVICE_STATUS[status]);
+            if (status < DEVICE_STATUS.length) {
+                Log.i("Dfu", "status " + status + ": " + DEVICE_STATUS[status]);
+            } else {
+                Log.i("Dfu", "status " + status + ": OUT OF RANGE");
+            }
         }
         return r;
     }
 
     public int clear_status() throws Exception  {
-        int r = usb.controlTransfer(DFU_REQUEST_TYPE_OUT, DFU_CLRSTATUS, 0, 0, null, 0, 5000);
+        int r = transfer(DFU_REQUEST_TYPE_OUT, DFU_CLRSTATUS, 0, 0, null, 0, 5000);
+        deviceState = STATE_UNKNOWN;
         if (r < 0) {
             throw new Exception("error: clear_status() control transfer failed");
         }
@@ -218,198 +526,938 @@ public class Dfu {
         }
     }
 
-    public int mass_erase() throws Exception  {
-        byte[] massEraseCommand = {0x41};
-        byte[] status = new byte[6];
-        int bwPollTimeout;
-
-        // Assuming wait_idle() is implemented and called here
+    // Only polls the device when the last known state does not already allow a DNLOAD
+    private void ensure_download_idle() throws Exception {
+        if (deviceState == STATE_DFU_IDLE || deviceState == STATE_DFU_DOWNLOAD_IDLE) {
+            stats.transfersSaved++;
+            return;
+        }
+        if (deviceState == STATE_DFU_UPLOAD_IDLE) {
+            abort();
+            return;
+        }
         wait_download_idle();
+    }
 
-        int r = usb.controlTransfer(DFU_REQUEST_TYPE_OUT, DFU_DNLOAD, 0, 0, massEraseCommand, 1, 50);
+    // Only polls the device when the last known state does not already allow an UPLOAD
+    private void ensure_upload_idle() throws Exception {
+        if (descriptor != null && !descriptor.canUpload()) {
+            throw new Exception("error: device does not support upload");
+        }
+        if (deviceState == STATE_DFU_IDLE || deviceState == STATE_DFU_UPLOAD_IDLE) {
+            stats.transfersSaved++;
+            return;
+        }
+        if (deviceState == STATE_DFU_DOWNLOAD_IDLE) {
+            abort();
+            return;
+        }
+        wait_upload_idle();
+    }
+
+    // returns the device to dfuIDLE from dfuDNLOAD-IDLE or dfuUPLOAD-IDLE
+    public int abort() throws Exception {
+        int r = transfer(DFU_REQUEST_TYPE_OUT, DFU_ABORT, 0, 0, null, 0, 500);
         if (r < 0) {
-            throw new Exception("error: mass_erase() control transfer failed");
+            deviceState = STATE_UNKNOWN;
+            throw new Exception("error: abort() control transfer failed");
         }
+        deviceState = STATE_DFU_IDLE;
+        return r;
+    }
 
-        // Verify execution and success
-        get_status(status); // Assuming getStatus() updates and logs the status
-        if ((status[4] == STATE_DFU_DOWNLOAD_BUSY || status[4] == STATE_DFU_DOWNLOAD_IDLE)) {
-            Log.i("Dfu", "mass erasing...");
-            onStatusMsg("mass erasing...\n");
-        } else {
-            Log.i("Dfu", "error while mass erasing (not dfuDNBUSY)");
-            throw new Exception("error while mass erasing (not dfuDNBUSY)");
+    /**
+     * Sends one DFU_DNLOAD request and walks the device back to dfuDNLOAD-IDLE.
+     * The device state is tracked between calls, so the GETSTATUS before the request is skipped
+     * when the previous request already left the device idle, and the wait after the first
+     * GETSTATUS is skipped when the device reports it is done straight away. In the common case
+     * a block costs the DNLOAD plus the two GETSTATUS requests the DFU state machine requires.
+     *
+     * @param what    operation name used in error messages
+     * @param buffer  payload, either a DfuSe command or a firmware block
+     * @param block   wBlockNum, 0 for commands, >= 2 for data
+     * @param length  number of bytes to send
+     * @param timeout control transfer timeout in ms
+     * @return length of data transferred, or negative value if the DNLOAD itself failed
+     */
+    private int download(String what, byte[] buffer, int block, int length, int timeout) throws Exception {
+        ensure_download_idle();
+
+        int r = transfer(DFU_REQUEST_TYPE_OUT, DFU_DNLOAD, block, 0, buffer, length, timeout);
+        if (r < 0) {
+            deviceState = STATE_UNKNOWN;
+            return r;
+        }
+
+        // The request only executes once the host asks for the status
+        byte[] status = statusBuffer;
+        get_status(status);
+        if (deviceState == STATE_DFU_DOWNLOAD_IDLE || deviceState == STATE_DFU_IDLE) {
+            stats.transfersSaved++;
+            return r;
+        }
+        if (deviceState != STATE_DFU_DOWNLOAD_BUSY) {
+            throw new Exception("error while " + what + " (not dfuDNBUSY)");
+        }
+
+        while (deviceState == STATE_DFU_DOWNLOAD_BUSY) {
+            long start = System.nanoTime();
+            Thread.sleep(poll_timeout(status)); //Minimum time, in milliseconds, that the host should wait before sending a subsequent DFU_GETSTATUS request
+            stats.record_operation(FlashStats.OP_POLL_SLEEP, System.nanoTime() - start);
+            get_status(status);
+        }
+        if (!(deviceState == STATE_DFU_IDLE || deviceState == STATE_DFU_DOWNLOAD_IDLE)) {
+            throw new Exception(what + " failed");
         }
+        return r;
+    }
 
-        bwPollTimeout = (status[3] & 0xFF) << 16;
+    private static int poll_timeout(byte[] status) {
+        int bwPollTimeout = (status[3] & 0xFF) << 16;
         bwPollTimeout |= (status[2] & 0xFF) << 8;
         bwPollTimeout |= (status[1] & 0xFF);
-        Thread.sleep(bwPollTimeout); //Minimum time, in milliseconds, that the host should wait before sending a subsequent DFU_GETSTATUS request
+        return bwPollTimeout;
+    }
 
-        get_status(status); // Get status again
-        if ((status[4] == STATE_DFU_IDLE || status[4] == STATE_DFU_DOWNLOAD_IDLE)) {
-            Log.i("Dfu", "mass erase complete.");
-            onStatusMsg("mass erase complete.\n");
-        } else {
-            Log.i("Dfu", "mass erase failed");
-            throw new Exception("error while mass erasing (not dfuDNBUSY)");
+    private int transfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+        stats.transfers++;
+        DfuTransport current = usb;  // setUsb(null) may run on the UI thread while a job is in flight
+        if (current == null) {
+            return -1;
         }
-
+        long start = System.nanoTime();
+        int r = current.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+        stats.record_request(request, System.nanoTime() - start);
         return r;
     }
 
-    public int read_block(byte[] buffer, int block, int num_bytes) {
-        int r = usb.controlTransfer(DFU_REQUEST_TYPE_IN, DFU_UPLOAD, block, 0, buffer, num_bytes, 500);
-        if (r < 0) {
-            Log.i("Dfu", "error: read_block() control transfer failed");
+    // asks the running operation to stop at the next block boundary, see DfuWorker
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public void clear_cancel() {
+        cancelled = false;
+    }
+
+    private void check_cancelled() {
+        if (cancelled) {
+            throw new CancellationException("DFU operation cancelled");
         }
-        return r;
     }
 
-    private void print_block(byte[] buffer, int startAddress, int blockSize) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < blockSize; i += 16) {
-            sb.append(String.format("0x%08X: ", startAddress + i));
-            int remaining = Math.min(blockSize - i, 16);
-
-            for (int j = 0; j < remaining; j++) {
-                sb.append(String.format("%02x", buffer[i + j] & 0xFF));
-                if ((j + 1) % 4 == 0 && j + 1 < remaining) {
-                    sb.append("  ");
-                }
-            }
-            sb.append("\n");
+    // starts a new accounting session, see get_stats(); a DfuWorker starts one per batch of jobs
+    public void begin_session() {
+        stats = new FlashStats();
+    }
+
+    // counters since the last begin_session()
+    public FlashStats get_stats() {
+        return stats;
+    }
+
+    // marks a DfuWorker job in the trace when the transport is a TraceRecorder
+    public void begin_job(String name) {
+        if (usb instanceof TraceRecorder) {
+            ((TraceRecorder) usb).beginJob(name);
         }
-        onStatusMsg(sb.toString());
     }
 
-    public void read_flash(int flashSize) throws Exception{
-        byte[] data = new byte[BLOCK_SIZE];
-        int blockNum;
-        int startAddress = 0x08000000;
-        wait_upload_idle();
+    public void end_job(boolean ok) {
+        if (usb instanceof TraceRecorder) {
+            ((TraceRecorder) usb).endJob(ok);
+        }
+    }
 
-        for (blockNum = 0; blockNum < (flashSize / BLOCK_SIZE); blockNum++) {
-            read_block(data, 2 + blockNum, BLOCK_SIZE);
-            print_block(data, startAddress + (blockNum * BLOCK_SIZE), BLOCK_SIZE);
-            onStatusMsg("\n");
+    // marks the start of an image write in the trace, with what a replay needs to repeat it
+    private void trace_image(DfuSeFile image, String imageId) {
+        if (!(usb instanceof TraceRecorder)) {
+            return;
         }
+        int flags = (sectorErase ? TraceRecorder.IMAGE_SECTOR_ERASE : 0)
+                | (deltaWrite ? TraceRecorder.IMAGE_DELTA_WRITE : 0)
+                | (deferredVerify ? TraceRecorder.IMAGE_DEFERRED_VERIFY : 0);
+        if (image == null) {
+            flags |= TraceRecorder.IMAGE_STREAM;
+        }
+        ((TraceRecorder) usb).recordImage(imageId, image != null ? TraceRecorder.image_hash(image) : null, flags);
+    }
+
+    public int mass_erase() throws Exception  {
+        byte[] massEraseCommand = {0x41};
 
-        // Read remaining data
-        int remainingSize = flashSize % BLOCK_SIZE;
-        if (remainingSize > 0) {
-            read_block(data, 2 + blockNum, remainingSize);
-            print_block(data, startAddress + (blockNum * BLOCK_SIZE), remainingSize);
+        onStatusMsg("mass erasing...\n");
+        long start = System.nanoTime();
+        int r = download("mass erasing", massEraseCommand, 0, 1, 50);
+        stats.record_operation(FlashStats.OP_ERASE, System.nanoTime() - start);
+        if (r < 0) {
+            throw new Exception("error: mass_erase() control transfer failed");
         }
+        Log.i("Dfu", "mass erase complete.");
+        onStatusMsg("mass erase complete.\n");
+
+        return r;
     }
 
-    public int write_block(byte[] buffer, int block, int numBytes) throws Exception {
-        int bwPollTimeout;
-        wait_download_idle(); // Make sure we are in dfuIDLE or dfuDNLOAD-IDLE state
+    // erases the flash page/sector holding address (DfuSe 0x41 command with an address)
+    public int page_erase(int address) throws Exception {
+        byte[] buffer = new byte[5];
+        buffer[0] = 0x41; // Erase command
+        buffer[1] = (byte) (address & 0xFF);
+        buffer[2] = (byte) ((address >> 8) & 0xFF);
+        buffer[3] = (byte) ((address >> 16) & 0xFF);
+        buffer[4] = (byte) ((address >> 24) & 0xFF);
 
-        // Write block control transfer
-        int r = usb.controlTransfer(DFU_REQUEST_TYPE_OUT, DFU_DNLOAD, block, 0, buffer, numBytes, 500);
+        long start = System.nanoTime();
+        int r = download("erasing", buffer, 0, buffer.length, 50);
+        stats.record_operation(FlashStats.OP_ERASE, System.nanoTime() - start);
         if (r < 0) {
-            throw new Exception("error: write_block() control transfer failed");
+            throw new Exception("error: page_erase() control transfer failed");
         }
+        return r;
+    }
 
-        // Verify execution and success
-        byte[] status = new byte[6];
-        get_status(status);
-        if (status[4] == STATE_DFU_DOWNLOAD_BUSY || status[4] == STATE_DFU_DOWNLOAD_IDLE) {
-            onStatusMsg("writing block...");
+    public int read_block(byte[] buffer, int block, int num_bytes) {
+        long start = System.nanoTime();
+        int r = transfer(DFU_REQUEST_TYPE_IN, DFU_UPLOAD, block, 0, buffer, num_bytes, 500);
+        if (r < 0) {
+            deviceState = STATE_UNKNOWN;
+            Log.i("Dfu", "error: read_block() control transfer failed");
         } else {
-            throw new Exception("error while writing (not dfuDNBUSY)");
+            deviceState = STATE_DFU_UPLOAD_IDLE;
+            stats.record_operation(FlashStats.OP_UPLOAD, System.nanoTime() - start);
+            stats.bytesRead += r;
         }
+        return r;
+    }
 
-        bwPollTimeout = (status[3] & 0xFF) << 16;
-        bwPollTimeout |= (status[2] & 0xFF) << 8;
-        bwPollTimeout |= (status[1] & 0xFF);
-        Thread.sleep(bwPollTimeout); //Minimum time, in milliseconds, that the host should wait before sending a subsequent DFU_GETSTATUS request
+    private void print_block(byte[] buffer, int startAddress, int blockSize) {
+        int length = hexDump.render(buffer, 0, blockSize, startAddress);
+        onStatusMsg(new String(hexDump.chars(), 0, length));
+    }
 
-        get_status(status);
-        if (status[4] == STATE_DFU_IDLE || status[4] == STATE_DFU_DOWNLOAD_IDLE) {
-            onStatusMsg("block write complete.\n");
-        } else {
-            throw new Exception("block write failed");
+    // prints flashSize bytes from the start of internal flash to the status log, see read_memory() for bulk reads
+    public void read_flash(int flashSize) throws Exception{
+        ByteBuffer data = ByteBuffer.allocate(flashSize);
+        read_memory(mInternalFlashStartAddress, data);
+
+        byte[] block = data.array();
+        for (int offset = 0; offset < flashSize; offset += transferSize) {
+            int numBytes = Math.min(transferSize, flashSize - offset);
+            System.arraycopy(block, offset, uploadBuffer, 0, numBytes);
+            print_block(uploadBuffer, mInternalFlashStartAddress + offset, numBytes);
+            onStatusMsg("\n");
+        }
+    }
+
+    /**
+     * Reads dst.remaining() bytes of device memory starting at address into dst, advancing its
+     * position. Any address the selected alternate setting exposes can be read: flash, SRAM, or
+     * the option bytes at mOptionByteStartAddress.
+     */
+    public void read_memory(int address, final ByteBuffer dst) throws Exception {
+        upload(address, dst.remaining(), new BlockSink() {
+            @Override
+            public void accept(byte[] block, int length) {
+                dst.put(block, 0, length);
+            }
+        });
+    }
+
+    // streams length bytes of device memory starting at address to out, without buffering the whole range
+    public void read_memory(int address, long length, final FileChannel out) throws Exception {
+        final ByteBuffer chunk = ByteBuffer.wrap(uploadBuffer);
+        upload(address, length, new BlockSink() {
+            @Override
+            public void accept(byte[] block, int length) throws IOException {
+                chunk.clear();
+                chunk.limit(length);
+                while (chunk.hasRemaining()) {
+                    out.write(chunk);
+                }
+            }
+        });
+    }
+
+    private interface BlockSink {
+        void accept(byte[] block, int length) throws IOException;
+    }
+
+    // uploads [address, address + length) into the reused uploadBuffer one block at a time
+    private void upload(int address, long length, BlockSink sink) throws Exception {
+        long start = System.nanoTime();
+        begin_phase(DfuProgress.Phase.READ, length);
+        long done = 0;
+        while (done < length) {
+            int pointer = (int) (address + done);
+            set_address_pointer(pointer);
+            ensure_upload_idle();
+
+            // wBlockNum is 16 bits, so very long reads move the pointer on every MAX_UPLOAD_BLOCKS
+            for (int blockNum = 2; blockNum < MAX_UPLOAD_BLOCKS && done < length; blockNum++) {
+                check_cancelled();
+                int numBytes = (int) Math.min(transferSize, length - done);
+                if (read_block(uploadBuffer, blockNum, numBytes) != numBytes) {
+                    throw new Exception("error: upload failed at 0x" + Integer.toHexString((int) (address + done)));
+                }
+                sink.accept(uploadBuffer, numBytes);
+                advance((int) (address + done), numBytes);
+                done += numBytes;
+            }
         }
+        long millis = (System.nanoTime() - start) / 1000000;
+        onStatusMsg("read " + length + " bytes from 0x" + Integer.toHexString(address) + " in " + millis + " ms.\n");
+    }
 
+    public int write_block(byte[] buffer, int block, int numBytes) throws Exception {
+        long start = System.nanoTime();
+        int r = download("writing", buffer, block, numBytes, 500);
+        stats.record_operation(FlashStats.OP_DOWNLOAD, System.nanoTime() - start);
+        if (r < 0) {
+            throw new Exception("error: write_block() control transfer failed");
+        }
         return r;
     }
 
     public int set_address_pointer(int address) throws Exception {
         byte[] buffer = new byte[5];
-        int bwPollTimeout;
         buffer[0] = 0x21; // Set address pointer command
         buffer[1] = (byte) (address & 0xFF);
         buffer[2] = (byte) ((address >> 8) & 0xFF);
         buffer[3] = (byte) ((address >> 16) & 0xFF);
         buffer[4] = (byte) ((address >> 24) & 0xFF);
 
-        wait_download_idle(); // Make sure we are in dfuIDLE or dfuDNLOAD-IDLE state
-
-        // Set address pointer control transfer
-        int r = usb.controlTransfer(DFU_REQUEST_TYPE_OUT, DFU_DNLOAD, 0, 0, buffer, buffer.length, 50);
+        long start = System.nanoTime();
+        int r = download("setting pointer", buffer, 0, buffer.length, 50);
+        stats.record_operation(FlashStats.OP_SET_ADDRESS, System.nanoTime() - start);
         if (r < 0) {
             throw new Exception("error: set_address_pointer() control transfer failed");
         }
+        return r;
+    }
 
-        // Verify execution and success
-        byte[] status = new byte[6];
-        get_status(status);
-        if (status[4] == STATE_DFU_DOWNLOAD_BUSY || status[4] == STATE_DFU_DOWNLOAD_IDLE) {
-            onStatusMsg("setting address pointer...");
-        } else {
-            throw new Exception("error while setting pointer (not dfuDNBUSY)");
+    public void setFlashLayout(FlashLayout flashLayout) {
+        this.flashLayout = flashLayout;
+    }
+
+    public FlashLayout getFlashLayout() {
+        return flashLayout;
+    }
+
+    // pass false when the caller already erased the flash, e.g. with mass_erase()
+    public void setSectorErase(boolean sectorErase) {
+        this.sectorErase = sectorErase;
+    }
+
+    public boolean isSectorErase() {
+        return sectorErase;
+    }
+
+    // only erase and rewrite the sectors whose contents differ from the image
+    public void setDeltaWrite(boolean deltaWrite) {
+        this.deltaWrite = deltaWrite;
+    }
+
+    public boolean isDeltaWrite() {
+        return deltaWrite;
+    }
+
+    public void setDeferredVerify(boolean deferredVerify) {
+        this.deferredVerify = deferredVerify;
+    }
+
+    /**
+     * Writes the bundled firmware asset to flash, see write_image().
+     *
+     * @return mismatching address ranges, empty when the image verified
+     */
+    public List<AddressRange> write_flash() throws Exception {
+        return write_image(open_asset("dfu.dfu"), BUNDLED_IMAGE);
+    }
+
+    // maps an uncompressed asset (see noCompress in build.gradle) without reading it onto the heap
+    public DfuSeFile open_asset(String name) throws IOException {
+        AssetFileDescriptor fd = context.getAssets().openFd(name);
+        try {
+            FileInputStream in = fd.createInputStream();
+            try {
+                return DfuSeFile.map(in.getChannel(), fd.getStartOffset(), fd.getLength());
+            } finally {
+                in.close();
+            }
+        } finally {
+            fd.close();
         }
+    }
 
-        bwPollTimeout = (status[3] & 0xFF) << 16;
-        bwPollTimeout |= (status[2] & 0xFF) << 8;
-        bwPollTimeout |= (status[1] & 0xFF);
-        Thread.sleep(bwPollTimeout); //Minimum time, in milliseconds, that the host should wait before sending a subsequent DFU_GETSTATUS request
+    /**
+     * Writes every element of every target in the image, selecting the target's alternate setting
+     * first. Unless setSectorErase(false) was called, only the flash sectors the image touches are
+     * erased, each one just before its first block is written. In delta mode the sectors are read
+     * back first and the ones already holding the image data are neither erased nor rewritten.
+     * With deferred verification (the default) each target is written completely and then read
+     * back in one upload pass, see verify(); otherwise every block is read back right after it is
+     * written and the first bad block throws.
+     *
+     * @return mismatching address ranges, empty when the image verified
+     */
+    public List<AddressRange> write_image(DfuSeFile image) throws Exception {
+        return write_image(image, null);
+    }
 
-        get_status(status);
-        if (status[4] == STATE_DFU_IDLE || status[4] == STATE_DFU_DOWNLOAD_IDLE) {
-            onStatusMsg("setting address pointer complete.\n");
-        } else {
-            throw new Exception("setting pointer failed");
+    /**
+     * Like write_image(DfuSeFile), journaling every sector whose data has all been written when a
+     * journal file is set (see set_journal_file()). If the journal holds sectors from an earlier,
+     * interrupted write of the same imageId, those sectors are read back first and the ones that
+     * hold the image are neither erased nor rewritten. The journal is removed once the image
+     * verified.
+     *
+     * @param imageId identifies the image across app restarts, e.g. its FirmwareCache hash;
+     *                null writes without a journal
+     */
+    public List<AddressRange> write_image(DfuSeFile image, String imageId) throws Exception {
+        trace_image(image, imageId);
+        erasedSectors.clear();
+        if (sectorErase) {
+            onStatusMsg("erasing " + plan_erase(image).size() + " of " + flashLayout.getSectors().size() + " sectors.\n");
         }
 
-        return r;
+        journal = journalFile != null && imageId != null ? FlashJournal.open(journalFile, imageId) : null;
+        try {
+            List<AddressRange> mismatches = write_targets(image);
+            if (journal != null && mismatches.isEmpty()) {
+                journal.delete();
+            }
+            return mismatches;
+        } finally {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            sectorBytesLeft = null;
+        }
+    }
+
+    private List<AddressRange> write_targets(DfuSeFile image) throws Exception {
+        List<AddressRange> mismatches = new ArrayList<>();
+        for (DfuSeFile.Target target : image.getTargets()) {
+            select_alt_setting(target.alternateSetting);
+            unchangedSectors.clear();
+            BitSet resumed = journal != null ? journal.getCompleted(target.alternateSetting) : new BitSet();
+            if (!resumed.isEmpty()) {
+                onStatusMsg("resuming: " + resumed.cardinality() + " sectors were written before the interruption.\n");
+            }
+            if (deltaWrite) {
+                find_unchanged_sectors(target, null);
+            } else if (!resumed.isEmpty()) {
+                find_unchanged_sectors(target, resumed);
+            }
+            if (journal != null) {
+                plan_journal(target);
+            }
+            begin_phase(DfuProgress.Phase.WRITE, target_size(target));
+            for (DfuSeFile.Element element : target.elements) {
+                write_element(element);
+            }
+            if (deferredVerify) {
+                begin_phase(DfuProgress.Phase.VERIFY, target_size(target));
+                for (DfuSeFile.Element element : target.elements) {
+                    mismatches.addAll(verify(element.address, element.data, true));
+                }
+            }
+        }
+        unchangedSectors.clear();
+
+        onStatusMsg("write complete: " + stats.report(lastWriteNanosPerByte) + ".\n");
+        if (stats.getBytesWritten() > 0) {
+            lastWriteNanosPerByte = stats.getWriteNanosPerByte();
+            if (profile != null) {
+                profile.setWriteNanosPerByte(lastWriteNanosPerByte);
+            }
+        }
+        return mismatches;
+    }
+
+    // counts the image bytes the target puts in each sector, so write_element() can tell when a sector is done
+    private void plan_journal(DfuSeFile.Target target) {
+        journalAlt = target.alternateSetting;
+        sectorBytesLeft = new int[flashLayout.getSectors().size()];
+        for (DfuSeFile.Element element : target.elements) {
+            for (FlashLayout.Sector sector : flashLayout.sectorsFor(element.address, element.size())) {
+                sectorBytesLeft[sector.index] += overlap(sector, element.address, element.size());
+            }
+        }
+    }
+
+    // journals the sectors [address, address + length) completes
+    private void journal_block(int address, int length) throws IOException {
+        if (journal == null || sectorBytesLeft == null) {
+            return;
+        }
+        for (FlashLayout.Sector sector : flashLayout.sectorsFor(address, length)) {
+            int left = sectorBytesLeft[sector.index] -= overlap(sector, address, length);
+            if (left == 0) {
+                journal.append(journalAlt, sector.index);
+            }
+        }
     }
 
-    public void write_flash() throws Exception {
+    private static int overlap(FlashLayout.Sector sector, int address, int length) {
+        return Math.min(address + length, sector.end()) - Math.max(address, sector.address);
+    }
 
-        AssetManager assetManager = context.getAssets();
-        InputStream inputStream = assetManager.open("dfu.dfu");
+    // sectors write_image() journals to file for resuming; null turns journaling off
+    public void set_journal_file(File journalFile) {
+        this.journalFile = journalFile;
+    }
 
-        byte[] writeBuffer = new byte[BLOCK_SIZE];
-        byte[] readBuffer = new byte[BLOCK_SIZE];
-        int blockNum = 2;
-        int readBytes;
+    public File get_journal_file() {
+        return journalFile;
+    }
 
-        while ((readBytes = inputStream.read(writeBuffer, 0, BLOCK_SIZE)) > 0) {
-            write_block(writeBuffer, blockNum, readBytes);
+    // the image an interrupted write_image() left a journal for, or null
+    public String get_journal_image() {
+        return journalFile != null ? FlashJournal.read_image_id(journalFile) : null;
+    }
 
-            // Verify block write
-            wait_upload_idle();
-            read_block(readBuffer, blockNum, readBytes);
+    // forgets an interrupted write, e.g. when its image is gone
+    public void discard_journal() {
+        if (journalFile != null) {
+            journalFile.delete();
+        }
+    }
+
+    public void select_alt_setting(int alternateSetting) throws Exception {
+        if (!usb.setAltSetting(alternateSetting)) {
+            throw new Exception("error: alternate setting " + alternateSetting + " not available");
+        }
+        deviceState = STATE_UNKNOWN;
+    }
+
+    private static long target_size(DfuSeFile.Target target) {
+        long size = 0;
+        for (DfuSeFile.Element element : target.elements) {
+            size += element.size();
+        }
+        return size;
+    }
+
+    // sectors of the flash layout the image writes to, i.e. the ones write_image() will erase
+    public List<FlashLayout.Sector> plan_erase(DfuSeFile image) {
+        List<FlashLayout.Sector> plan = new ArrayList<>();
+        BitSet planned = new BitSet();
+        for (DfuSeFile.Target target : image.getTargets()) {
+            for (DfuSeFile.Element element : target.elements) {
+                for (FlashLayout.Sector sector : flashLayout.sectorsFor(element.address, element.size())) {
+                    if (sector.isErasable() && !planned.get(sector.index)) {
+                        planned.set(sector.index);
+                        plan.add(sector);
+                    }
+                }
+            }
+        }
+        return plan;
+    }
+
+    // reads back every sector the target touches, or only those in candidates if not null,
+    // and marks the ones that already hold its data
+    private void find_unchanged_sectors(DfuSeFile.Target target, BitSet candidates) throws Exception {
+        long start = System.nanoTime();
+        begin_phase(DfuProgress.Phase.COMPARE, target_size(target));
+        BitSet touched = new BitSet();
+        BitSet changed = new BitSet();
+        for (DfuSeFile.Element element : target.elements) {
+            int elementEnd = element.address + element.size();
+            for (FlashLayout.Sector sector : flashLayout.sectorsFor(element.address, element.size())) {
+                touched.set(sector.index);
+                int from = Math.max(element.address, sector.address);
+                int to = Math.min(elementEnd, sector.end());
+                if (candidates != null && !candidates.get(sector.index)) {
+                    changed.set(sector.index);
+                    advance(from, to - from);
+                    continue;
+                }
+                if (changed.get(sector.index)) {
+                    continue;
+                }
+                if (!region_matches(from, element.data, from - element.address, to - from)) {
+                    changed.set(sector.index);
+                }
+                advance(from, to - from);
+            }
+        }
+        spread_changes(target, changed);
+        touched.andNot(changed);
+        unchangedSectors.or(touched);
+        stats.compareNanos += System.nanoTime() - start;
+        onStatusMsg(touched.cardinality() + " of " + (touched.cardinality() + changed.cardinality()) + " sectors unchanged.\n");
+    }
+
+    // A block that straddles a sector boundary erases the sectors on both sides before it is
+    // written, so when one of them changed the other has to be rewritten as well. Marks those
+    // sectors changed, again for blocks that straddle into them, until no block mixes the two.
+    private void spread_changes(DfuSeFile.Target target, BitSet changed) {
+        if (changed.isEmpty()) {
+            return;
+        }
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (DfuSeFile.Element element : target.elements) {
+                for (int offset = 0; offset < element.size(); offset += transferSize) {
+                    List<FlashLayout.Sector> sectors = flashLayout.sectorsFor(element.address + offset,
+                            Math.min(transferSize, element.size() - offset));
+                    if (sectors.size() < 2) {
+                        continue;
+                    }
+                    boolean anyChanged = false;
+                    boolean allChanged = true;
+                    for (FlashLayout.Sector sector : sectors) {
+                        anyChanged |= changed.get(sector.index);
+                        allChanged &= changed.get(sector.index);
+                    }
+                    if (anyChanged && !allChanged) {
+                        for (FlashLayout.Sector sector : sectors) {
+                            changed.set(sector.index);
+                        }
+                        grown = true;
+                    }
+                }
+            }
+        }
+    }
 
-            // You can log the read buffer using a method similar to print_block if needed
-            if (equalArrays(writeBuffer, readBuffer, readBytes)) {
-                onStatusMsg("Block " + blockNum + " verified successfully.\n");
+    // uploads [address, address + length) and compares it with expected from offset, stopping at the first difference
+    private boolean region_matches(int address, ByteBuffer expected, int offset, int length) throws Exception {
+        byte[] readBuffer = new byte[transferSize];
+        set_address_pointer(address);
+        ensure_upload_idle();
+        for (int done = 0, blockNum = 2; done < length; done += transferSize, blockNum++) {
+            check_cancelled();
+            int numBytes = Math.min(transferSize, length - done);
+            if (read_block(readBuffer, blockNum, numBytes) != numBytes) {
+                throw new Exception("error: upload failed at 0x" + Integer.toHexString(address + done));
+            }
+            for (int i = 0; i < numBytes; i++) {
+                if (expected.get(offset + done + i) != readBuffer[i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // true when every sector under [address, address + length) was found unchanged this session
+    private boolean skip_block(int address, int length) {
+        if (unchangedSectors.isEmpty()) {
+            return false;
+        }
+        List<FlashLayout.Sector> sectors = flashLayout.sectorsFor(address, length);
+        if (sectors.isEmpty()) {
+            return false;
+        }
+        for (FlashLayout.Sector sector : sectors) {
+            if (!unchangedSectors.get(sector.index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // true when every sector under [address, address + length) is known to be erased this session
+    private boolean is_erased(int address, int length) {
+        List<FlashLayout.Sector> sectors = flashLayout.sectorsFor(address, length);
+        if (sectors.isEmpty()) {
+            return false;
+        }
+        if (!sectorErase) {
+            return true;    // the caller erased the flash before writing
+        }
+        for (FlashLayout.Sector sector : sectors) {
+            if (!erasedSectors.get(sector.index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // word-wide scan for an all-0xFF run, the contents of erased flash
+    static boolean is_blank(ByteBuffer data, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        for (; end - i >= 8; i += 8) {
+            if (data.getLong(i) != -1L) {
+                return false;
+            }
+        }
+        for (; i < end; i++) {
+            if (data.get(i) != (byte) 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // erases the not yet erased sectors under [address, address + length), returns true if any were
+    private boolean erase_before_write(int address, int length) throws Exception {
+        if (!sectorErase) {
+            return false;
+        }
+        boolean erased = false;
+        for (FlashLayout.Sector sector : flashLayout.sectorsFor(address, length)) {
+            if (sector.isErasable() && !erasedSectors.get(sector.index)) {
+                page_erase(sector.address);
+                erasedSectors.set(sector.index);
+                erased = true;
+            }
+        }
+        return erased;
+    }
+
+    /**
+     * Writes the element's data starting at its address, one transfer size download at a time.
+     * Each sector is erased right before the first block that lands in it; since an erase is
+     * itself a DNLOAD the address pointer is set again afterwards and block numbering restarts.
+     * Blocks in sectors found unchanged by delta mode are skipped the same way, and so are blank
+     * (all 0xFF) blocks in erased sectors, since erased flash already reads back as 0xFF.
+     */
+    private void write_element(DfuSeFile.Element element) throws Exception {
+        int address = element.address;
+        ByteBuffer source = element.data.duplicate();
+        byte[] writeBuffer = new byte[transferSize];
+        writePointerSet = false;
+
+        for (int offset = 0; source.hasRemaining(); offset += transferSize) {
+            check_cancelled();
+            int blockAddress = address + offset;
+            int numBytes = Math.min(transferSize, source.remaining());
+            if (skip_block(blockAddress, numBytes)) {
+                source.position(source.position() + numBytes);
+                stats.bytesUnchanged += numBytes;
+                advance(blockAddress, numBytes);
+                journal_block(blockAddress, numBytes);
+                writePointerSet = false;
+                continue;
+            }
+
+            boolean blank = element.isBlank(offset, numBytes);
+            if (!blank) {
+                source.get(writeBuffer, 0, numBytes);
             } else {
-                throw new Exception("Error verifying block " + (blockNum-2) + ".");
+                source.position(source.position() + numBytes);
+            }
+            write_one(blockAddress, writeBuffer, numBytes, blank, !deferredVerify);
+            advance(blockAddress, numBytes);
+            journal_block(blockAddress, numBytes);
+        }
+    }
+
+    /**
+     * Erases as needed and writes one block at blockAddress, continuing the current run of block
+     * numbers when possible. Blank blocks on erased flash are skipped without a transfer.
+     *
+     * @param buffer     block data, unused when blank
+     * @param blank      whether the block is all 0xFF
+     * @param verifyNow  read the block back right away and throw if it differs
+     */
+    private void write_one(int blockAddress, byte[] buffer, int numBytes, boolean blank, boolean verifyNow) throws Exception {
+        long start = System.nanoTime();
+        if (erase_before_write(blockAddress, numBytes)) {
+            writePointerSet = false;
+        }
+        if (blank && is_erased(blockAddress, numBytes)) {
+            stats.bytesBlank += numBytes;
+            stats.writeNanos += System.nanoTime() - start;
+            writePointerSet = false;
+            return;
+        }
+        if (blank) {
+            Arrays.fill(buffer, 0, numBytes, (byte) 0xFF);
+        }
+
+        if (!writePointerSet) {
+            set_address_pointer(blockAddress);
+            writePointer = blockAddress;
+            writePointerSet = true;
+        }
+        int blockNum = 2 + (blockAddress - writePointer) / transferSize;
+        write_block(buffer, blockNum, numBytes);
+        stats.writeNanos += System.nanoTime() - start;
+        stats.bytesWritten += numBytes;
+
+        if (verifyNow) {
+            // Verify block write
+            ensure_upload_idle();
+            read_block(verifyBuffer, blockNum, numBytes);
+
+            if (!equalArrays(buffer, verifyBuffer, numBytes)) {
+                throw new Exception("Error verifying block " + (blockNum - 2) + ".");
+            }
+        }
+    }
+
+    /**
+     * Writes an image read front to back from in, typically a content Uri, without holding the
+     * file in memory: a PrefetchReader reads the next block from storage on its own thread while
+     * the current one is on the wire, so slow storage does not stall the USB pipeline until it
+     * falls behind overall. DfuSe containers and raw binaries are both accepted. As the image is
+     * only seen once, delta mode is not used, every block is verified right after it is written,
+     * and the suffix CRC is checked at the end (a mismatch throws after the data was written).
+     * A CompressedImage container is decompressed on the prefetch thread through fixed buffers,
+     * its CRC checked over the decompressed data once the last block went out. How much data the
+     * stream holds is only known at its end, so progress events have no total.
+     */
+    public void write_stream(InputStream in) throws Exception {
+        trace_image(null, null);
+        erasedSectors.clear();
+        unchangedSectors.clear();
+        PrefetchReader reader = new PrefetchReader(CompressedImage.open(in), transferSize, 2);
+        try {
+            DfuSeStream stream = new DfuSeStream(reader);
+            byte[] writeBuffer = new byte[transferSize];
+            ByteBuffer block = ByteBuffer.wrap(writeBuffer);
+            begin_phase(DfuProgress.Phase.WRITE, -1);
+            while (stream.nextTarget()) {
+                select_alt_setting(stream.getAlternateSetting());
+                while (stream.nextElement()) {
+                    writePointerSet = false;
+                    int address = stream.getAddress();
+                    int numBytes;
+                    for (int offset = 0; (numBytes = stream.read(writeBuffer, transferSize)) > 0; offset += numBytes) {
+                        check_cancelled();
+                        write_one(address + offset, writeBuffer, numBytes, is_blank(block, 0, numBytes), true);
+                        advance(address + offset, numBytes);
+                    }
+                }
+            }
+            stream.finish();
+        } finally {
+            reader.close();
+        }
+
+        onStatusMsg("write complete: " + stats.report(lastWriteNanosPerByte) + ".\n");
+        if (stats.getBytesWritten() > 0) {
+            lastWriteNanosPerByte = stats.getWriteNanosPerByte();
+            if (profile != null) {
+                profile.setWriteNanosPerByte(lastWriteNanosPerByte);
+            }
+        }
+    }
+
+    /**
+     * Reads back expected.remaining() bytes starting at address in a single upload pass and
+     * compares them with expected. Each block is compared on a worker thread while the next one
+     * is being uploaded, and mismatches are collected instead of failing at the first bad block.
+     *
+     * @return mismatching address ranges, empty when memory matches the expected data
+     */
+    public List<AddressRange> verify(int address, ByteBuffer expected) throws Exception {
+        begin_phase(DfuProgress.Phase.VERIFY, expected.remaining());
+        return verify(address, expected, false);
+    }
+
+    // skipUnwritten leaves out the blocks the last write_element() call skipped
+    private List<AddressRange> verify(int address, ByteBuffer expected, boolean skipUnwritten) throws Exception {
+        long start = System.nanoTime();
+        final List<AddressRange> mismatches = new ArrayList<>();
+        final ByteBuffer reference = expected.duplicate();
+        final int base = reference.position();
+        final int length = reference.remaining();
+        final byte[][] readBuffers = {new byte[transferSize], new byte[transferSize]};
+        final Future<?>[] pending = new Future<?>[2];
+        ExecutorService comparator = Executors.newSingleThreadExecutor();
+        int verified = 0;
+
+        try {
+            boolean pointerSet = false;
+            int pointer = address;
+            int slot = 0;
+            for (int offset = 0; offset < length; offset += transferSize) {
+                check_cancelled();
+                final int numBytes = Math.min(transferSize, length - offset);
+                final int blockAddress = address + offset;
+                final int blockOffset = base + offset;
+                if (skipUnwritten && (skip_block(blockAddress, numBytes)
+                        || (is_blank(reference, blockOffset, numBytes) && is_erased(blockAddress, numBytes)))) {
+                    advance(blockAddress, numBytes);
+                    pointerSet = false;
+                    continue;
+                }
+                if (!pointerSet) {
+                    set_address_pointer(blockAddress);
+                    ensure_upload_idle();
+                    pointer = blockAddress;
+                    pointerSet = true;
+                }
+
+                slot ^= 1;
+                if (pending[slot] != null) {
+                    await(pending[slot]); // the worker is done with this slot's buffer
+                }
+                final byte[] readBuffer = readBuffers[slot];
+                int blockNum = 2 + (blockAddress - pointer) / transferSize;
+                if (read_block(readBuffer, blockNum, numBytes) != numBytes) {
+                    throw new Exception("error: verify() upload failed at 0x" + Integer.toHexString(blockAddress));
+                }
+
+                pending[slot] = comparator.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        compare_block(reference, blockOffset, readBuffer, numBytes, blockAddress, mismatches);
+                    }
+                });
+                verified += numBytes;
+                advance(blockAddress, numBytes);
+            }
+
+            for (Future<?> future : pending) {
+                if (future != null) {
+                    await(future);
+                }
             }
+        } finally {
+            comparator.shutdownNow();
+        }
 
-            blockNum++;
+        stats.record_operation(FlashStats.OP_VERIFY, System.nanoTime() - start);
+        if (mismatches.isEmpty()) {
+            onStatusMsg("verified " + verified + " bytes.\n");
+        } else {
+            onStatusMsg("verify failed: " + mismatches + "\n");
         }
+        return mismatches;
+    }
 
-        inputStream.close();
+    // runs on the comparator thread only, so the list needs no locking
+    private static void compare_block(ByteBuffer expected, int offset, byte[] actual, int length, int address, List<AddressRange> mismatches) {
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < length; i++) {
+            if (expected.get(offset + i) != actual[i]) {
+                if (first < 0) first = i;
+                last = i;
+            }
+        }
+        if (first < 0) return;
 
+        int start = address + first;
+        int end = address + last + 1;
+        int n = mismatches.size();
+        if (n > 0 && mismatches.get(n - 1).end == start) {
+            start = mismatches.remove(n - 1).start;
+        }
+        mismatches.add(new AddressRange(start, end));
+    }
+
+    private static void await(Future<?> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            throw new Exception("error: verify worker failed", e.getCause());
+        }
     }
 
-    private boolean equalArrays(byte[] a, byte[] b, int length) {
+    static boolean equalArrays(byte[] a, byte[] b, int length) {
         if (a == b) {
             return true;
         }
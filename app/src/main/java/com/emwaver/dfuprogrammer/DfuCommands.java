@@ -0,0 +1,96 @@
+package com.emwaver.dfuprogrammer;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Typed jobs for the common DFU commands, to be queued on a session's DfuWorker:
+ * <pre>
+ *     Future&lt;List&lt;AddressRange&gt;&gt; f = worker.submit(DfuCommands.writeImage(image));
+ * </pre>
+ * Each one runs on the worker thread in submission order. Only getStatus() asks the device;
+ * for the last known state without a request see Dfu.get_last_state().
+ */
+public final class DfuCommands {
+    private DfuCommands() {
+    }
+
+    // bState after a fresh GETSTATUS
+    public static DfuWorker.Job<Integer> getStatus() {
+        return new DfuWorker.Job<Integer>() {
+            @Override
+            public String name() {
+                return "get status";
+            }
+
+            @Override
+            public Integer run(Dfu dfu) throws Exception {
+                dfu.get_status(new byte[6]);
+                return dfu.get_last_state();
+            }
+        };
+    }
+
+    public static DfuWorker.Job<Void> massErase() {
+        return new DfuWorker.Job<Void>() {
+            @Override
+            public String name() {
+                return "mass erase";
+            }
+
+            @Override
+            public Void run(Dfu dfu) throws Exception {
+                dfu.mass_erase();
+                return null;
+            }
+        };
+    }
+
+    // reads length bytes from address
+    public static DfuWorker.Job<ByteBuffer> readMemory(final int address, final int length) {
+        return new DfuWorker.Job<ByteBuffer>() {
+            @Override
+            public String name() {
+                return "read memory";
+            }
+
+            @Override
+            public ByteBuffer run(Dfu dfu) throws Exception {
+                ByteBuffer data = ByteBuffer.allocate(length);
+                dfu.read_memory(address, data);
+                data.flip();
+                return data;
+            }
+        };
+    }
+
+    // mismatching ranges of the verify, empty if the image was written correctly
+    public static DfuWorker.Job<List<AddressRange>> writeImage(final DfuSeFile image) {
+        return new DfuWorker.Job<List<AddressRange>>() {
+            @Override
+            public String name() {
+                return "write image";
+            }
+
+            @Override
+            public List<AddressRange> run(Dfu dfu) throws Exception {
+                return dfu.write_image(image);
+            }
+        };
+    }
+
+    // true once the device dropped off the bus to run its application, see Dfu.leave()
+    public static DfuWorker.Job<Boolean> leave() {
+        return new DfuWorker.Job<Boolean>() {
+            @Override
+            public String name() {
+                return "leave";
+            }
+
+            @Override
+            public Boolean run(Dfu dfu) throws Exception {
+                return dfu.leave();
+            }
+        };
+    }
+}
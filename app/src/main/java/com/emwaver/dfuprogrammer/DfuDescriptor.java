@@ -0,0 +1,252 @@
+package com.emwaver.dfuprogrammer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * What a DFU device says about itself in its descriptors: bcdDevice from the device descriptor,
+ * the DFU functional descriptor (bmAttributes, wDetachTimeOut, wTransferSize, bcdDFUVersion)
+ * and one entry per alternate setting of the DFU interface, whose interface string is a DfuSe
+ * memory descriptor such as "@Internal Flash  /0x08000000/04*016Kg,01*064Kg,07*128Kg".
+ */
+public class DfuDescriptor {
+    public static final int ATTR_CAN_DNLOAD = 0x01;
+    public static final int ATTR_CAN_UPLOAD = 0x02;
+    public static final int ATTR_MANIFESTATION_TOLERANT = 0x04;
+    public static final int ATTR_WILL_DETACH = 0x08;
+
+    private static final int TYPE_DEVICE = 0x01;
+    private static final int TYPE_INTERFACE = 0x04;
+    private static final int TYPE_DFU_FUNCTIONAL = 0x21;
+    private static final int CLASS_APPLICATION_SPECIFIC = 0xFE;
+    private static final int SUBCLASS_DFU = 0x01;
+
+    public static class AltSetting {
+        public final int interfaceNumber;
+        public final int alternateSetting;
+        public final int stringIndex;   // iInterface
+        String name;                    // the interface string, null until read from the device
+
+        AltSetting(int interfaceNumber, int alternateSetting, int stringIndex) {
+            this.interfaceNumber = interfaceNumber;
+            this.alternateSetting = alternateSetting;
+            this.stringIndex = stringIndex;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // the memory layout named by the interface string, or null if it is not a memory descriptor
+        public FlashLayout getLayout() {
+            if (name == null || !name.startsWith("@")) {
+                return null;
+            }
+            try {
+                return FlashLayout.parse(name);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    private final int vendorId;
+    private final int productId;
+    private final int deviceVersion;
+    private final int attributes;
+    private final int detachTimeout;
+    private final int transferSize;
+    private final int dfuVersion;
+    private final List<AltSetting> altSettings;
+
+    DfuDescriptor(int vendorId, int productId, int deviceVersion, int attributes, int detachTimeout,
+                  int transferSize, int dfuVersion, List<AltSetting> altSettings) {
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.deviceVersion = deviceVersion;
+        this.attributes = attributes;
+        this.detachTimeout = detachTimeout;
+        this.transferSize = transferSize;
+        this.dfuVersion = dfuVersion;
+        this.altSettings = Collections.unmodifiableList(altSettings);
+    }
+
+    /**
+     * Parses the device descriptor and the configuration descriptor after it, as returned by
+     * UsbDeviceConnection.getRawDescriptors().
+     *
+     * @throws IllegalArgumentException if the descriptors are malformed or have no DFU interface
+     */
+    public static DfuDescriptor parse(byte[] raw) {
+        if (raw == null || raw.length < 18 || (raw[1] & 0xFF) != TYPE_DEVICE) {
+            throw new IllegalArgumentException("no device descriptor");
+        }
+        int vendorId = le16(raw, 8);
+        int productId = le16(raw, 10);
+        int deviceVersion = le16(raw, 12);
+
+        int attributes = -1;
+        int detachTimeout = 0;
+        int transferSize = 0;
+        int dfuVersion = 0;
+        List<AltSetting> altSettings = new ArrayList<>();
+        boolean inDfuInterface = false;
+        for (int pos = 0; pos + 2 <= raw.length; ) {
+            int length = raw[pos] & 0xFF;
+            int type = raw[pos + 1] & 0xFF;
+            if (length < 2 || pos + length > raw.length) {
+                throw new IllegalArgumentException("malformed descriptor at offset " + pos);
+            }
+            if (type == TYPE_INTERFACE && length >= 9) {
+                inDfuInterface = (raw[pos + 5] & 0xFF) == CLASS_APPLICATION_SPECIFIC
+                        && (raw[pos + 6] & 0xFF) == SUBCLASS_DFU;
+                if (inDfuInterface) {
+                    altSettings.add(new AltSetting(raw[pos + 2] & 0xFF, raw[pos + 3] & 0xFF, raw[pos + 8] & 0xFF));
+                }
+            } else if (type == TYPE_DFU_FUNCTIONAL && length >= 7 && inDfuInterface) {
+                attributes = raw[pos + 2] & 0xFF;
+                detachTimeout = le16(raw, pos + 3);
+                transferSize = le16(raw, pos + 5);
+                dfuVersion = length >= 9 ? le16(raw, pos + 7) : 0x0100;
+            }
+            pos += length;
+        }
+        if (altSettings.isEmpty()) {
+            throw new IllegalArgumentException("no DFU interface");
+        }
+        if (attributes < 0) {
+            throw new IllegalArgumentException("no DFU functional descriptor");
+        }
+        return new DfuDescriptor(vendorId, productId, deviceVersion, attributes, detachTimeout,
+                transferSize, dfuVersion, altSettings);
+    }
+
+    // binary form for DeviceProfiles and traces, read back by read()
+    void write(DataOutput out) throws IOException {
+        out.writeShort(vendorId);
+        out.writeShort(productId);
+        out.writeShort(deviceVersion);
+        out.writeByte(attributes);
+        out.writeShort(detachTimeout);
+        out.writeShort(transferSize);
+        out.writeShort(dfuVersion);
+        out.writeInt(altSettings.size());
+        for (AltSetting alt : altSettings) {
+            out.writeByte(alt.interfaceNumber);
+            out.writeByte(alt.alternateSetting);
+            out.writeByte(alt.stringIndex);
+            out.writeBoolean(alt.name != null);
+            if (alt.name != null) {
+                out.writeUTF(alt.name);
+            }
+        }
+    }
+
+    static DfuDescriptor read(DataInput in) throws IOException {
+        int vendorId = in.readUnsignedShort();
+        int productId = in.readUnsignedShort();
+        int deviceVersion = in.readUnsignedShort();
+        int attributes = in.readUnsignedByte();
+        int detachTimeout = in.readUnsignedShort();
+        int transferSize = in.readUnsignedShort();
+        int dfuVersion = in.readUnsignedShort();
+        int numAlts = in.readInt();
+        if (numAlts < 0 || numAlts > 255) {
+            throw new IOException("bad alternate setting count " + numAlts);
+        }
+        List<AltSetting> alts = new ArrayList<>(numAlts);
+        for (int i = 0; i < numAlts; i++) {
+            AltSetting alt = new AltSetting(in.readUnsignedByte(), in.readUnsignedByte(), in.readUnsignedByte());
+            if (in.readBoolean()) {
+                alt.name = in.readUTF();
+            }
+            alts.add(alt);
+        }
+        return new DfuDescriptor(vendorId, productId, deviceVersion, attributes, detachTimeout,
+                transferSize, dfuVersion, alts);
+    }
+
+    public int getVendorId() {
+        return vendorId;
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    // bcdDevice
+    public int getDeviceVersion() {
+        return deviceVersion;
+    }
+
+    // bmAttributes, see the ATTR_ constants
+    public int getAttributes() {
+        return attributes;
+    }
+
+    public boolean canDownload() {
+        return (attributes & ATTR_CAN_DNLOAD) != 0;
+    }
+
+    public boolean canUpload() {
+        return (attributes & ATTR_CAN_UPLOAD) != 0;
+    }
+
+    public boolean isManifestationTolerant() {
+        return (attributes & ATTR_MANIFESTATION_TOLERANT) != 0;
+    }
+
+    public boolean willDetach() {
+        return (attributes & ATTR_WILL_DETACH) != 0;
+    }
+
+    // wDetachTimeOut in ms
+    public int getDetachTimeout() {
+        return detachTimeout;
+    }
+
+    // wTransferSize, the largest block the device accepts in one DNLOAD or UPLOAD
+    public int getTransferSize() {
+        return transferSize;
+    }
+
+    // bcdDFUVersion, 0x011A for DfuSe
+    public int getDfuVersion() {
+        return dfuVersion;
+    }
+
+    public List<AltSetting> getAltSettings() {
+        return altSettings;
+    }
+
+    public AltSetting getAltSetting(int alternateSetting) {
+        for (AltSetting alt : altSettings) {
+            if (alt.alternateSetting == alternateSetting) {
+                return alt;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "DFU %x.%02x, transfer size %d, detach timeout %d ms, %s%s%s%s\n",
+                dfuVersion >> 8, dfuVersion & 0xFF, transferSize, detachTimeout,
+                canDownload() ? "download " : "", canUpload() ? "upload " : "",
+                isManifestationTolerant() ? "manifestation-tolerant " : "", willDetach() ? "will-detach" : ""));
+        for (AltSetting alt : altSettings) {
+            sb.append("alt ").append(alt.alternateSetting).append(": ").append(alt.name).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private static int le16(byte[] raw, int pos) {
+        return (raw[pos] & 0xFF) | (raw[pos + 1] & 0xFF) << 8;
+    }
+}
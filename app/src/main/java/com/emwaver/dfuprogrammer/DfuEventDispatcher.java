@@ -0,0 +1,136 @@
+package com.emwaver.dfuprogrammer;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands Dfu status messages and progress events to listeners on a separate thread, so a slow
+ * listener never delays a USB transfer. Producers only touch a lock-free queue and an atomic
+ * slot holding the latest progress event. A dispatch runs at most once per frame: it joins the
+ * queued messages into one string and delivers only the newest progress event.
+ */
+class DfuEventDispatcher {
+    private static final String TAG = "Dfu";
+    static final long FRAME_NANOS = 16666667L;
+
+    private final List<Dfu.DfuListener> listeners = new CopyOnWriteArrayList<>();
+    private final List<Dfu.ProgressListener> progressListeners = new CopyOnWriteArrayList<>();
+    private final Queue<String> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<DfuProgress> progress = new AtomicReference<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final StringBuilder batch = new StringBuilder();   // dispatcher thread only
+    private volatile long lastDispatch = System.nanoTime() - FRAME_NANOS;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "dfu-events");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            scheduled.set(false);
+            lastDispatch = System.nanoTime();
+
+            String msg;
+            while ((msg = messages.poll()) != null) {
+                batch.append(msg);
+            }
+            if (batch.length() > 0) {
+                String text = batch.toString();
+                batch.setLength(0);
+                for (Dfu.DfuListener listener : listeners) {
+                    try {
+                        listener.onStatusMsg(text);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "status listener failed", e);
+                    }
+                }
+            }
+
+            DfuProgress latest = progress.getAndSet(null);
+            if (latest != null) {
+                for (Dfu.ProgressListener listener : progressListeners) {
+                    try {
+                        listener.onProgress(latest);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "progress listener failed", e);
+                    }
+                }
+            }
+        }
+    };
+
+    void addListener(Dfu.DfuListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Dfu.DfuListener listener) {
+        listeners.remove(listener);
+    }
+
+    void addProgressListener(Dfu.ProgressListener listener) {
+        progressListeners.add(listener);
+    }
+
+    void removeProgressListener(Dfu.ProgressListener listener) {
+        progressListeners.remove(listener);
+    }
+
+    void post(String msg) {
+        messages.add(msg);
+        schedule();
+    }
+
+    // replaces any progress event that has not been delivered yet
+    void post(DfuProgress event) {
+        progress.set(event);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            long delay = lastDispatch + FRAME_NANOS - System.nanoTime();
+            try {
+                executor.schedule(dispatch, Math.max(0, delay), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // shut down, events posted afterwards are dropped
+            }
+        }
+    }
+
+    /**
+     * Delivers what was posted so far, then ends the dispatch thread and drops the listeners,
+     * which often hold an Activity. Posts after this are dropped.
+     */
+    void shutdown() {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch.run();
+                    listeners.clear();
+                    progressListeners.clear();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return;     // already shut down
+        }
+        executor.shutdown();
+    }
+}
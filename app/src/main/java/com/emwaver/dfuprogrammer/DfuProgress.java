@@ -0,0 +1,41 @@
+package com.emwaver.dfuprogrammer;
+
+import java.util.Locale;
+
+// Progress of the running DFU operation, see Dfu.ProgressListener
+public class DfuProgress {
+    public enum Phase {
+        COMPARE,    // reading sectors back to find the unchanged ones (delta mode)
+        WRITE,      // erasing and writing, including skipped blocks
+        VERIFY,     // reading written data back
+        READ        // reading memory for the caller
+    }
+
+    public final Phase phase;
+    public final int address;           // address of the block that was just handled
+    public final long bytesDone;
+    public final long bytesTotal;       // -1 if unknown, e.g. while streaming an image
+    public final long bytesPerSecond;
+    public final long etaMillis;        // -1 while the rate is unknown
+
+    public DfuProgress(Phase phase, int address, long bytesDone, long bytesTotal, long bytesPerSecond, long etaMillis) {
+        this.phase = phase;
+        this.address = address;
+        this.bytesDone = bytesDone;
+        this.bytesTotal = bytesTotal;
+        this.bytesPerSecond = bytesPerSecond;
+        this.etaMillis = etaMillis;
+    }
+
+    public boolean isDone() {
+        return bytesTotal >= 0 && bytesDone >= bytesTotal;
+    }
+
+    @Override
+    public String toString() {
+        String eta = etaMillis < 0 ? "?" : String.valueOf((etaMillis + 999) / 1000);
+        String total = bytesTotal < 0 ? "?" : String.valueOf(bytesTotal);
+        return String.format(Locale.US, "%s 0x%08X  %d/%s bytes  %.1f KB/s  ETA %s s",
+                phase.name().toLowerCase(Locale.US), address, bytesDone, total, bytesPerSecond / 1024.0, eta);
+    }
+}
@@ -0,0 +1,262 @@
+package com.emwaver.dfuprogrammer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A parsed DfuSe firmware container (ST UM0391): prefix, one or more targets (one per alternate
+ * setting), each holding elements at arbitrary addresses, and the DFU suffix whose CRC is checked.
+ *
+ * Element payloads are read-only slices of the backing buffer. When opened from a file the
+ * buffer is memory mapped, so even multi-megabyte images are never copied onto the heap.
+ * Images without the DfuSe prefix are accepted as raw binaries for the start of internal flash,
+ * with or without a plain DFU suffix.
+ */
+public class DfuSeFile {
+    private static final int PREFIX_SIZE = 11;
+    private static final int TARGET_PREFIX_SIZE = 274;
+    private static final int TARGET_NAME_OFFSET = 11;
+    private static final int TARGET_NAME_SIZE = 255;
+    private static final int TARGET_SIZE_OFFSET = 266;
+    private static final int TARGET_ELEMENTS_OFFSET = 270;
+    private static final int ELEMENT_HEADER_SIZE = 8;
+    private static final int SUFFIX_SIZE = 16;
+    static final int BLANK_CHUNK = 256;     // granularity of Element blank maps
+
+    public static class Element {
+        public final int address;
+        public final ByteBuffer data;   // read-only, position 0, limit = element size
+        final int offset;               // of data in the file
+        private final BitSet blankChunks;   // bit i set when chunk i is all 0xFF, null if not known
+
+        Element(int address, ByteBuffer data, int offset) {
+            this(address, data, offset, null);
+        }
+
+        Element(int address, ByteBuffer data, int offset, BitSet blankChunks) {
+            this.address = address;
+            this.data = data;
+            this.offset = offset;
+            this.blankChunks = blankChunks;
+        }
+
+        public int size() {
+            return data.limit();
+        }
+
+        // true when data[offset, offset + length) is all 0xFF, answered from the blank map if there is one
+        public boolean isBlank(int offset, int length) {
+            if (blankChunks == null || offset % BLANK_CHUNK != 0
+                    || (length % BLANK_CHUNK != 0 && offset + length != size())) {
+                return Dfu.is_blank(data, offset, length);
+            }
+            int from = offset / BLANK_CHUNK;
+            int to = (offset + length + BLANK_CHUNK - 1) / BLANK_CHUNK;
+            return blankChunks.nextClearBit(from) >= to;
+        }
+
+        // scans data for its blank map, see isBlank()
+        BitSet blank_chunks() {
+            BitSet blank = new BitSet();
+            for (int chunk = 0, pos = 0; pos < size(); chunk++, pos += BLANK_CHUNK) {
+                if (Dfu.is_blank(data, pos, Math.min(BLANK_CHUNK, size() - pos))) {
+                    blank.set(chunk);
+                }
+            }
+            return blank;
+        }
+
+        public AddressRange range() {
+            return new AddressRange(address, address + size());
+        }
+    }
+
+    public static class Target {
+        public final int alternateSetting;
+        public final String name;
+        public final List<Element> elements;
+
+        Target(int alternateSetting, String name, List<Element> elements) {
+            this.alternateSetting = alternateSetting;
+            this.name = name;
+            this.elements = Collections.unmodifiableList(elements);
+        }
+    }
+
+    private final List<Target> targets;
+    private final boolean raw;
+    private final int vendorId;         // from the suffix, 0xFFFF when unspecified
+    private final int productId;
+    private final int deviceVersion;
+
+    DfuSeFile(List<Target> targets, boolean raw, int vendorId, int productId, int deviceVersion) {
+        this.targets = Collections.unmodifiableList(targets);
+        this.raw = raw;
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.deviceVersion = deviceVersion;
+    }
+
+    public static DfuSeFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return map(raf.getChannel(), 0, raf.length());
+        } finally {
+            raf.close();  // the mapping stays valid after the channel is closed
+        }
+    }
+
+    public static DfuSeFile map(FileChannel channel, long offset, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) throw new IOException("invalid DfuSe file: too large");
+        return parse(channel.map(FileChannel.MapMode.READ_ONLY, offset, size));
+    }
+
+    // parses the remaining bytes of buffer; the buffer must not be modified afterwards
+    public static DfuSeFile parse(ByteBuffer buffer) throws IOException {
+        ByteBuffer file = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int length = file.limit();
+
+        int vendorId = 0xFFFF;
+        int productId = 0xFFFF;
+        int deviceVersion = 0xFFFF;
+        int payloadEnd = length;
+        if (has_suffix(file)) {
+            int suffixLength = file.get(length - 5) & 0xFF;
+            if (suffixLength < SUFFIX_SIZE || suffixLength > length) {
+                throw new IOException("invalid DfuSe file: bad suffix length " + suffixLength);
+            }
+            Crc32 crc = new Crc32();
+            crc.update(file, 0, length - 4);
+            if (crc.dfuValue() != file.getInt(length - 4)) {
+                throw new IOException("invalid DfuSe file: CRC mismatch");
+            }
+            deviceVersion = file.getShort(length - SUFFIX_SIZE) & 0xFFFF;
+            productId = file.getShort(length - SUFFIX_SIZE + 2) & 0xFFFF;
+            vendorId = file.getShort(length - SUFFIX_SIZE + 4) & 0xFFFF;
+            payloadEnd = length - suffixLength;
+        }
+
+        if (!has_signature(file, 0, "DfuSe")) {
+            List<Element> elements = new ArrayList<>();
+            elements.add(new Element(Dfu.mInternalFlashStartAddress, slice(file, 0, payloadEnd), 0));
+            List<Target> targets = new ArrayList<>();
+            targets.add(new Target(0, "raw", elements));
+            return new DfuSeFile(targets, true, vendorId, productId, deviceVersion);
+        }
+
+        if (payloadEnd < PREFIX_SIZE) throw new IOException("invalid DfuSe file: truncated prefix");
+        if (file.get(5) != 0x01) throw new IOException("invalid DfuSe file: unsupported version " + file.get(5));
+        int numTargets = file.get(10) & 0xFF;
+
+        List<Target> targets = new ArrayList<>(numTargets);
+        int pos = PREFIX_SIZE;
+        for (int t = 0; t < numTargets; t++) {
+            check_bounds(pos, TARGET_PREFIX_SIZE, payloadEnd, "target " + t);
+            if (!has_signature(file, pos, "Target")) {
+                throw new IOException("invalid DfuSe file: missing signature for target " + t);
+            }
+            int alternateSetting = file.get(pos + 6) & 0xFF;
+            String name = file.getInt(pos + 7) != 0 ? read_name(file, pos + TARGET_NAME_OFFSET) : "";
+            int targetSize = file.getInt(pos + TARGET_SIZE_OFFSET);
+            int numElements = file.getInt(pos + TARGET_ELEMENTS_OFFSET);
+            pos += TARGET_PREFIX_SIZE;
+            check_bounds(pos, targetSize, payloadEnd, "target " + t);
+            if (numElements < 0 || numElements > targetSize / ELEMENT_HEADER_SIZE) {
+                throw new IOException("invalid DfuSe file: bad element count " + numElements + " for target " + t);
+            }
+
+            int targetEnd = pos + targetSize;
+            List<Element> elements = new ArrayList<>(numElements);
+            for (int e = 0; e < numElements; e++) {
+                check_bounds(pos, ELEMENT_HEADER_SIZE, targetEnd, "element " + e);
+                int address = file.getInt(pos);
+                int size = file.getInt(pos + 4);
+                pos += ELEMENT_HEADER_SIZE;
+                check_bounds(pos, size, targetEnd, "element " + e);
+                elements.add(new Element(address, slice(file, pos, size), pos));
+                pos += size;
+            }
+            targets.add(new Target(alternateSetting, name, elements));
+            pos = targetEnd;
+        }
+
+        return new DfuSeFile(targets, false, vendorId, productId, deviceVersion);
+    }
+
+    public List<Target> getTargets() {
+        return targets;
+    }
+
+    // true when the file had no DfuSe prefix and was taken as a plain binary
+    public boolean isRaw() {
+        return raw;
+    }
+
+    public int getVendorId() {
+        return vendorId;
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    public int getDeviceVersion() {
+        return deviceVersion;
+    }
+
+    // total payload bytes over all targets
+    public long getPayloadSize() {
+        long total = 0;
+        for (Target target : targets) {
+            for (Element element : target.elements) {
+                total += element.size();
+            }
+        }
+        return total;
+    }
+
+    private static boolean has_suffix(ByteBuffer file) {
+        int length = file.limit();
+        return length >= SUFFIX_SIZE
+                && file.get(length - 8) == 'U' && file.get(length - 7) == 'F' && file.get(length - 6) == 'D';
+    }
+
+    private static boolean has_signature(ByteBuffer file, int pos, String signature) {
+        if (pos + signature.length() > file.limit()) return false;
+        for (int i = 0; i < signature.length(); i++) {
+            if (file.get(pos + i) != signature.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static String read_name(ByteBuffer file, int pos) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < TARGET_NAME_SIZE; i++) {
+            byte c = file.get(pos + i);
+            if (c == 0) break;
+            sb.append((char) (c & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private static void check_bounds(int pos, int size, int end, String what) throws IOException {
+        if (size < 0 || pos + size > end || pos + size < pos) {
+            throw new IOException("invalid DfuSe file: " + what + " is truncated");
+        }
+    }
+
+    static ByteBuffer slice(ByteBuffer file, int pos, int size) {
+        ByteBuffer dup = file.duplicate();
+        dup.limit(pos + size);
+        dup.position(pos);
+        return dup.slice().asReadOnlyBuffer();
+    }
+}
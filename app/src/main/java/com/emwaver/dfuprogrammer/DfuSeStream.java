@@ -0,0 +1,286 @@
+package com.emwaver.dfuprogrammer;
+
+import java.io.IOException;
+
+/**
+ * Walks a DfuSe container front to back as it is read, the streaming counterpart of
+ * DfuSeFile.parse() for images that are only seen once. Files without the DfuSe prefix are
+ * taken as a raw binary for the start of internal flash, holding back the last 16 bytes so a
+ * plain DFU suffix is never handed out as data. The suffix CRC can only be checked once all
+ * data has gone by, in finish().
+ */
+class DfuSeStream {
+    private static final int PREFIX_SIZE = 11;
+    private static final int TARGET_PREFIX_SIZE = 274;
+    private static final int ELEMENT_HEADER_SIZE = 8;
+    private static final int SUFFIX_SIZE = 16;
+
+    private final PrefetchReader in;
+    private final Crc32 crc = new Crc32();
+    private final byte[] header = new byte[TARGET_PREFIX_SIZE];
+    private final byte[] skipBuffer = new byte[256];
+    private boolean started;
+    private boolean raw;
+
+    // DfuSe position
+    private int targetsLeft;
+    private int targetBytesLeft;    // of the current target, including element headers
+    private int elementsLeft;
+    private int elementBytesLeft;
+
+    // raw mode: bytes read ahead of the data handed out, the possible suffix at the end
+    private final byte[] pending = new byte[PREFIX_SIZE + SUFFIX_SIZE];
+    private int pendingLength;
+    private boolean rawEnd;         // the stream is exhausted, pending holds its last bytes
+    private boolean rawTailIsData;  // and they are not a suffix
+    private boolean rawElementDone;
+
+    private int alternateSetting;
+    private String name;
+    private int address;
+
+    DfuSeStream(PrefetchReader in) {
+        this.in = in;
+    }
+
+    public boolean isRaw() {
+        return raw;
+    }
+
+    public int getAlternateSetting() {
+        return alternateSetting;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // start address of the current element
+    public int getAddress() {
+        return address;
+    }
+
+    // moves to the next target, skipping whatever is left of the current one
+    public boolean nextTarget() throws IOException {
+        if (!started) {
+            start();
+            if (raw) {
+                alternateSetting = 0;
+                name = "raw";
+                return true;
+            }
+        } else if (raw) {
+            return false;
+        } else {
+            skip(targetBytesLeft);
+            targetBytesLeft = 0;
+            elementsLeft = 0;
+            elementBytesLeft = 0;
+        }
+        if (targetsLeft == 0) {
+            return false;
+        }
+        targetsLeft--;
+        fill(header, TARGET_PREFIX_SIZE, true);
+        if (!has_signature(header, "Target")) {
+            throw new IOException("invalid DfuSe file: missing target signature");
+        }
+        alternateSetting = header[6] & 0xFF;
+        name = le32(header, 7) != 0 ? read_name(header, 11) : "";
+        targetBytesLeft = le32(header, 266);
+        elementsLeft = le32(header, 270);
+        if (targetBytesLeft < 0 || elementsLeft < 0) {
+            throw new IOException("invalid DfuSe file: bad target size");
+        }
+        return true;
+    }
+
+    // moves to the next element of the current target, skipping the rest of the current one
+    public boolean nextElement() throws IOException {
+        if (raw) {
+            if (rawElementDone) {
+                return false;
+            }
+            rawElementDone = true;
+            address = Dfu.mInternalFlashStartAddress;
+            return true;
+        }
+        skip(elementBytesLeft);
+        elementBytesLeft = 0;
+        if (elementsLeft == 0) {
+            return false;
+        }
+        elementsLeft--;
+        if (targetBytesLeft < ELEMENT_HEADER_SIZE) {
+            throw new IOException("invalid DfuSe file: element header is truncated");
+        }
+        fill(header, ELEMENT_HEADER_SIZE, true);
+        targetBytesLeft -= ELEMENT_HEADER_SIZE;
+        address = le32(header, 0);
+        elementBytesLeft = le32(header, 4);
+        if (elementBytesLeft < 0 || elementBytesLeft > targetBytesLeft) {
+            throw new IOException("invalid DfuSe file: element is truncated");
+        }
+        targetBytesLeft -= elementBytesLeft;
+        return true;
+    }
+
+    /**
+     * Reads up to len bytes of the current element, blocking until len bytes are there or the
+     * element ends.
+     *
+     * @return number of bytes read, 0 at the end of the element
+     */
+    public int read(byte[] dst, int len) throws IOException {
+        if (raw) {
+            return read_raw(dst, len);
+        }
+        int n = Math.min(len, elementBytesLeft);
+        fill(dst, n, true);
+        elementBytesLeft -= n;
+        return n;
+    }
+
+    // reads the suffix, if any, and checks its CRC over everything before it
+    public void finish() throws IOException {
+        byte[] suffix;
+        int length;
+        if (raw) {
+            while (read_raw(skipBuffer, skipBuffer.length) > 0) {
+                // data the caller did not want
+            }
+            suffix = pending;
+            length = rawTailIsData ? 0 : pendingLength;
+        } else {
+            skip(targetBytesLeft);
+            suffix = new byte[SUFFIX_SIZE + 1];
+            length = read_up_to(suffix, suffix.length);
+            if (length == 0) {
+                return;     // no suffix
+            }
+            if (length != SUFFIX_SIZE) {
+                throw new IOException("invalid DfuSe file: " + length + " bytes after the last target");
+            }
+        }
+        if (length == SUFFIX_SIZE && is_suffix(suffix)) {
+            crc.update(suffix, 0, SUFFIX_SIZE - 4);
+            if (crc.dfuValue() != le32(suffix, SUFFIX_SIZE - 4)) {
+                throw new IOException("invalid DfuSe file: CRC mismatch");
+            }
+        } else if (!raw) {
+            throw new IOException("invalid DfuSe file: bad suffix");
+        }
+    }
+
+    private void start() throws IOException {
+        started = true;
+        byte[] prefix = new byte[PREFIX_SIZE];
+        int n = read_up_to(prefix, PREFIX_SIZE);
+        if (n == PREFIX_SIZE && has_signature(prefix, "DfuSe")) {
+            if (prefix[5] != 0x01) {
+                throw new IOException("invalid DfuSe file: unsupported version " + prefix[5]);
+            }
+            crc.update(prefix, 0, PREFIX_SIZE);
+            targetsLeft = prefix[10] & 0xFF;
+            return;
+        }
+        raw = true;
+        System.arraycopy(prefix, 0, pending, 0, n);
+        pendingLength = n;
+        rawEnd = n < PREFIX_SIZE;
+        rawTailIsData = rawEnd;
+    }
+
+    // hands out raw data up to SUFFIX_SIZE bytes behind what has been read from the stream
+    private int read_raw(byte[] dst, int len) throws IOException {
+        int n = 0;
+        if (!rawEnd) {
+            n = take_pending(dst, 0, len);
+            n += read_up_to_at(dst, n, len - n);
+            pendingLength += read_up_to_at(pending, pendingLength, SUFFIX_SIZE - pendingLength);
+
+            if (pendingLength < SUFFIX_SIZE) {
+                // end of stream: the last SUFFIX_SIZE bytes overall may be a suffix
+                rawEnd = true;
+                int keep = Math.min(SUFFIX_SIZE, n + pendingLength);
+                int fromDst = keep - pendingLength;
+                System.arraycopy(pending, 0, pending, fromDst, pendingLength);
+                System.arraycopy(dst, n - fromDst, pending, 0, fromDst);
+                pendingLength = keep;
+                n -= fromDst;
+                rawTailIsData = !(keep == SUFFIX_SIZE && is_suffix(pending));
+            }
+        }
+        if (rawEnd && rawTailIsData) {
+            n += take_pending(dst, n, len - n);
+        }
+        crc.update(dst, 0, n);
+        return n;
+    }
+
+    private int take_pending(byte[] dst, int off, int len) {
+        int n = Math.min(pendingLength, len);
+        System.arraycopy(pending, 0, dst, off, n);
+        System.arraycopy(pending, n, pending, 0, pendingLength - n);
+        pendingLength -= n;
+        return n;
+    }
+
+    private void fill(byte[] dst, int len, boolean checksum) throws IOException {
+        if (read_up_to(dst, len) != len) {
+            throw new IOException("invalid DfuSe file: truncated");
+        }
+        if (checksum) {
+            crc.update(dst, 0, len);
+        }
+    }
+
+    private void skip(int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, skipBuffer.length);
+            fill(skipBuffer, n, true);
+            length -= n;
+        }
+    }
+
+    private int read_up_to(byte[] dst, int len) throws IOException {
+        return read_up_to_at(dst, 0, len);
+    }
+
+    // reads until len bytes or the end of the stream, returns the number read
+    private int read_up_to_at(byte[] dst, int off, int len) throws IOException {
+        int done = 0;
+        while (done < len) {
+            int n = in.read(dst, off + done, len - done);
+            if (n < 0) {
+                break;
+            }
+            done += n;
+        }
+        return done;
+    }
+
+    private static boolean is_suffix(byte[] suffix) {
+        return suffix[8] == 'U' && suffix[9] == 'F' && suffix[10] == 'D' && (suffix[11] & 0xFF) == SUFFIX_SIZE;
+    }
+
+    private static boolean has_signature(byte[] buffer, String signature) {
+        for (int i = 0; i < signature.length(); i++) {
+            if (buffer[i] != signature.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static String read_name(byte[] buffer, int pos) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = pos; i < TARGET_PREFIX_SIZE - 8 && buffer[i] != 0; i++) {
+            sb.append((char) (buffer[i] & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private static int le32(byte[] buffer, int pos) {
+        return (buffer[pos] & 0xFF) | (buffer[pos + 1] & 0xFF) << 8
+                | (buffer[pos + 2] & 0xFF) << 16 | (buffer[pos + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,97 @@
+package com.emwaver.dfuprogrammer;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * One attached DFU device with its own Dfu and DfuWorker, so several devices can be driven
+ * at the same time without sharing any protocol state. Created by DeviceRegistry.
+ */
+public class DfuSession {
+    private final String name;
+    private final DfuTransport transport;
+    private final Dfu dfu;
+    private final DfuWorker worker;
+    private volatile TraceRecorder recorder;
+
+    public DfuSession(String name, DfuTransport transport, Context context, Executor callbackExecutor) {
+        this(name, transport, null, context, callbackExecutor);
+    }
+
+    // profile: what is stored about this kind of device, or null
+    public DfuSession(String name, DfuTransport transport, DeviceProfile profile, Context context,
+                      Executor callbackExecutor) {
+        this.name = name;
+        this.transport = transport;
+        this.dfu = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID, context);
+        this.dfu.set_profile(profile);
+        this.dfu.setTransport(transport);
+        this.worker = new DfuWorker(dfu, callbackExecutor);
+    }
+
+    // the device name, e.g. /dev/bus/usb/001/004
+    public String getName() {
+        return name;
+    }
+
+    public DfuTransport getTransport() {
+        return transport;
+    }
+
+    public Dfu getDfu() {
+        return dfu;
+    }
+
+    public DfuWorker getWorker() {
+        return worker;
+    }
+
+    // records every control transfer of this session to file from now on, see TraceReplayer
+    public void record(File file) throws IOException {
+        TraceRecorder previous = recorder;
+        recorder = new TraceRecorder(transport, file);
+        dfu.setTransport(recorder);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    // stops the worker and detaches the transport; releasing the device is up to the owner
+    public void close() {
+        close(null);
+    }
+
+    /**
+     * Stops the worker. Detaching the transport, closing the Dfu, ending the trace and then
+     * release (if not null) run on the worker thread once the job in flight has stopped, since
+     * that thread owns the device.
+     */
+    public void close(final Runnable release) {
+        worker.shutdown(new Runnable() {
+            @Override
+            public void run() {
+                dfu.setTransport(null);
+                dfu.close();
+                if (recorder != null) {
+                    try {
+                        recorder.close();
+                    } catch (IOException e) {
+                        Log.w("DfuSession", "trace of " + name + " incomplete: " + e);
+                    }
+                }
+                if (release != null) {
+                    release.run();
+                }
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
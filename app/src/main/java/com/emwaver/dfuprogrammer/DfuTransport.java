@@ -0,0 +1,25 @@
+package com.emwaver.dfuprogrammer;
+
+/**
+ * The control-transfer channel Dfu talks to. Usb implements it for a real device;
+ * DfuSimulator implements it in-process so flashing can be measured and tested on a plain JVM.
+ */
+public interface DfuTransport {
+    /**
+     * Performs a control transaction on endpoint zero, see Usb.controlTransfer().
+     *
+     * @return length of data transferred (or zero) for success, or negative value for failure
+     */
+    int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout);
+
+    // selects another alternate setting (DfuSe memory region) of the DFU interface
+    boolean setAltSetting(int alternateSetting);
+
+    boolean isConnected();
+
+    // bcdDevice, the STM bootloader version
+    int getDeviceVersion();
+
+    // the device's DFU descriptors, or null if they could not be read
+    DfuDescriptor getDescriptor();
+}
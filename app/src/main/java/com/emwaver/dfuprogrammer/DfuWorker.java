@@ -0,0 +1,209 @@
+package com.emwaver.dfuprogrammer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs DFU jobs one at a time on a dedicated thread, so blocking control transfers and
+ * bwPollTimeout waits never run on the UI thread. This thread is the only owner of the device:
+ * jobs run strictly in submission order, nothing else touches the transport, and it is also
+ * where the device is released, see shutdown(Runnable). Each job gets a Future, and its result
+ * or error is also handed to an optional callback on the callback executor (the main thread in
+ * the app). cancel() stops the running job at the next block boundary and drops queued ones.
+ * Jobs queued back to back form a batch: the first one to run starts a new Dfu accounting
+ * session, and its FlashStats, covering every job of the batch, can be exported as one JSON
+ * report once the queue has drained, see setReportFile(). Questions about the device state that
+ * do not need the bus are answered by Dfu.get_last_state() from any thread.
+ */
+public class DfuWorker {
+    public interface Job<T> {
+        T run(Dfu dfu) throws Exception;
+
+        // what the job does, e.g. "mass erase", for traces and logs
+        String name();
+    }
+
+    public interface Callback<T> {
+        void onResult(T result);
+
+        void onError(Exception e);
+    }
+
+    private final Dfu dfu;
+    private final Executor callbackExecutor;
+    private final ExecutorService executor;
+    private final Queue<Future<?>> jobs = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();   // jobs submitted and not finished or dropped
+    private boolean inBatch;        // a session was started and not yet reported; worker thread only
+    private volatile File reportFile;
+
+    public DfuWorker(Dfu dfu, Executor callbackExecutor) {
+        this.dfu = dfu;
+        this.callbackExecutor = callbackExecutor;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "dfu-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public <T> Future<T> submit(Job<T> job) {
+        return submit(job, null);
+    }
+
+    public <T> Future<T> submit(final Job<T> job, final Callback<T> callback) {
+        final AtomicBoolean started = new AtomicBoolean();
+        FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                started.set(true);
+                dfu.clear_cancel();
+                if (!inBatch) {
+                    inBatch = true;
+                    dfu.begin_session();
+                }
+                dfu.begin_job(job.name());
+                boolean ok = false;
+                try {
+                    final T result = job.run(dfu);
+                    ok = true;
+                    if (callback != null) {
+                        callbackExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onResult(result);
+                            }
+                        });
+                    }
+                    return result;
+                } catch (final Exception e) {
+                    if (callback != null) {
+                        callbackExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onError(e);
+                            }
+                        });
+                    }
+                    throw e;
+                } finally {
+                    dfu.end_job(ok);
+                    if (pending.decrementAndGet() == 0) {
+                        end_batch();
+                    }
+                    prune();
+                }
+            }
+        }) {
+            // a job cancelled while still queued never runs, so its callback hears about it here
+            @Override
+            protected void done() {
+                if (isCancelled() && !started.get() && pending.decrementAndGet() == 0 && !executor.isShutdown()) {
+                    // the batch ended with a dropped job, report on what did run
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            end_batch();
+                        }
+                    });
+                }
+                if (isCancelled() && !started.get() && callback != null) {
+                    callbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onError(new CancellationException("cancelled before it started"));
+                        }
+                    });
+                }
+            }
+        };
+        pending.incrementAndGet();
+        jobs.add(future);
+        executor.execute(future);
+        return future;
+    }
+
+    // overwritten with the session report (FlashStats.toJson()) once the queue drained; null for none
+    public void setReportFile(File reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    // the queue drained: one report on everything the batch ran, rather than a file write per job
+    private void end_batch() {
+        if (!inBatch) {
+            return;     // every job of the batch was dropped before it started
+        }
+        inBatch = false;
+        File file = reportFile;
+        if (file == null) {
+            return;
+        }
+        try {
+            Writer out = new FileWriter(file);
+            try {
+                out.write(dfu.get_stats().toJson());
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w("DfuWorker", "cannot write " + file + ": " + e);
+        }
+    }
+
+    // true while a job is running or queued
+    public boolean isBusy() {
+        prune();
+        return !jobs.isEmpty();
+    }
+
+    public void cancel() {
+        Future<?> future;
+        while ((future = jobs.poll()) != null) {
+            future.cancel(false);   // queued jobs never start, the running one sees dfu.cancel()
+        }
+        dfu.cancel();
+    }
+
+    public void shutdown() {
+        shutdown(null);
+    }
+
+    /**
+     * Cancels everything and stops the thread. then, if not null, runs on the worker thread
+     * after the job in flight has stopped, so it can release the device without racing it.
+     */
+    public void shutdown(Runnable then) {
+        cancel();
+        if (then != null) {
+            executor.execute(then);
+        }
+        executor.shutdown();
+    }
+
+    private void prune() {
+        for (Future<?> future : jobs) {
+            if (future.isDone()) {
+                jobs.remove(future);
+            }
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.emwaver.dfuprogrammer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Imported firmware images, kept in an app-private directory under the SHA-256 of their
+ * contents (hash.dfu), each with its parsed layout next to it (hash.meta): targets, element
+ * addresses and file offsets, and blank maps. Opening a cached image maps the file and
+ * rebuilds the DfuSeFile from the metadata, so a re-flash neither parses, CRC checks nor scans
+ * the payload again. Once the directory grows beyond its size limit the least recently used
+ * entries are evicted. A CompressedImage is decompressed on import, so the cache holds (and
+ * hashes) the image itself.
+ */
+public class FirmwareCache {
+    private static final String IMAGE_SUFFIX = ".dfu";
+    private static final String META_SUFFIX = ".meta";
+    private static final int META_MAGIC = 0x44465543;     // "DFUC"
+    private static final int META_VERSION = 2;
+
+    private static class ElementInfo {
+        final int address;
+        final int offset;
+        final int size;
+        final BitSet blankChunks;
+
+        ElementInfo(int address, int offset, int size, BitSet blankChunks) {
+            this.address = address;
+            this.offset = offset;
+            this.size = size;
+            this.blankChunks = blankChunks;
+        }
+    }
+
+    private static class TargetInfo {
+        final int alternateSetting;
+        final String name;
+        final List<ElementInfo> elements;
+
+        TargetInfo(int alternateSetting, String name, List<ElementInfo> elements) {
+            this.alternateSetting = alternateSetting;
+            this.name = name;
+            this.elements = elements;
+        }
+    }
+
+    public static class Entry {
+        private final String hash;
+        private final File file;
+        private final boolean raw;
+        private final int vendorId;
+        private final int productId;
+        private final int deviceVersion;
+        private final List<TargetInfo> targets;
+
+        private Entry(String hash, File file, boolean raw, int vendorId, int productId, int deviceVersion,
+                      List<TargetInfo> targets) {
+            this.hash = hash;
+            this.file = file;
+            this.raw = raw;
+            this.vendorId = vendorId;
+            this.productId = productId;
+            this.deviceVersion = deviceVersion;
+            this.targets = targets;
+        }
+
+        // hex SHA-256 of the image file
+        public String getHash() {
+            return hash;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return file.length();
+        }
+
+        // maps the image and rebuilds it from the stored layout, without parsing it
+        public DfuSeFile open() throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                List<DfuSeFile.Target> result = new ArrayList<>(targets.size());
+                for (TargetInfo target : targets) {
+                    List<DfuSeFile.Element> elements = new ArrayList<>(target.elements.size());
+                    for (ElementInfo e : target.elements) {
+                        if (e.offset < 0 || (long) e.offset + e.size > mapped.limit()) {
+                            throw new IOException("cached image " + hash + " does not match its metadata");
+                        }
+                        elements.add(new DfuSeFile.Element(e.address, DfuSeFile.slice(mapped, e.offset, e.size),
+                                e.offset, e.blankChunks));
+                    }
+                    result.add(new DfuSeFile.Target(target.alternateSetting, target.name, elements));
+                }
+                return new DfuSeFile(result, raw, vendorId, productId, deviceVersion);
+            } finally {
+                raf.close();  // the mapping stays valid after the channel is closed
+            }
+        }
+
+        @Override
+        public String toString() {
+            return hash.substring(0, 12) + " (" + getSize() + " bytes)";
+        }
+    }
+
+    private final File dir;
+    private long maxBytes;
+    private final Map<String, Entry> entries = new HashMap<>();     // metadata read so far
+
+    /**
+     * @param dir      app-private directory owned by the cache
+     * @param maxBytes size limit for images and metadata together
+     */
+    public FirmwareCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict(null);
+    }
+
+    /**
+     * Copies an image into the cache, hashing it on the way. An image that is already cached is
+     * not parsed again; a new one is parsed once and its metadata stored.
+     *
+     * @throws IOException if the image cannot be stored or is not a valid DfuSe or raw image
+     */
+    public synchronized Entry put(InputStream in) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        File tmp = File.createTempFile("import", ".tmp", dir);
+        try {
+            MessageDigest sha256 = sha256();
+            InputStream data = CompressedImage.open(in);
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = data.read(buffer)) != -1) {
+                    sha256.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+
+            String hash = hex(sha256.digest());
+            Entry entry = get(hash);
+            if (entry != null) {
+                return entry;
+            }
+            File image = new File(dir, hash + IMAGE_SUFFIX);
+            if (!tmp.renameTo(image)) {
+                throw new IOException("cannot store " + image);
+            }
+            try {
+                entry = index(hash, image);
+            } catch (IOException e) {
+                image.delete();
+                throw e;
+            }
+            entries.put(hash, entry);
+            touch(entry);
+            evict(entry);
+            return entry;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    // the cached image with this hex SHA-256, or null; counts as a use for eviction
+    public synchronized Entry get(String hash) throws IOException {
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            File image = new File(dir, hash + IMAGE_SUFFIX);
+            if (!image.isFile()) {
+                return null;
+            }
+            entry = read_meta(hash, image);
+            if (entry == null) {
+                entry = index(hash, image);     // metadata missing or from another version
+            }
+            entries.put(hash, entry);
+        }
+        touch(entry);
+        return entry;
+    }
+
+    // bytes used by images and metadata
+    public synchronized long getSize() {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    // parses the image once and stores what open() needs to skip parsing from now on
+    private Entry index(String hash, File image) throws IOException {
+        DfuSeFile file = DfuSeFile.open(image);
+        List<TargetInfo> targets = new ArrayList<>();
+        for (DfuSeFile.Target target : file.getTargets()) {
+            List<ElementInfo> elements = new ArrayList<>();
+            for (DfuSeFile.Element element : target.elements) {
+                elements.add(new ElementInfo(element.address, element.offset, element.size(), element.blank_chunks()));
+            }
+            targets.add(new TargetInfo(target.alternateSetting, target.name, elements));
+        }
+
+        Entry entry = new Entry(hash, image, file.isRaw(), file.getVendorId(), file.getProductId(),
+                file.getDeviceVersion(), targets);
+        write_meta(entry);
+        return entry;
+    }
+
+    private void write_meta(Entry entry) throws IOException {
+        File meta = new File(dir, entry.hash + META_SUFFIX);
+        File tmp = new File(dir, entry.hash + META_SUFFIX + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(META_MAGIC);
+            out.writeInt(META_VERSION);
+            out.writeBoolean(entry.raw);
+            out.writeShort(entry.vendorId);
+            out.writeShort(entry.productId);
+            out.writeShort(entry.deviceVersion);
+            out.writeInt(entry.targets.size());
+            for (TargetInfo target : entry.targets) {
+                out.writeByte(target.alternateSetting);
+                out.writeUTF(target.name);
+                out.writeInt(target.elements.size());
+                for (ElementInfo element : target.elements) {
+                    out.writeInt(element.address);
+                    out.writeInt(element.offset);
+                    out.writeInt(element.size);
+                    long[] words = element.blankChunks.toLongArray();
+                    out.writeInt(words.length);
+                    for (long word : words) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(meta)) {
+            tmp.delete();
+            throw new IOException("cannot store " + meta);
+        }
+    }
+
+    // null when the metadata is missing, unreadable, damaged or was written by another version
+    private Entry read_meta(String hash, File image) {
+        File meta = new File(dir, hash + META_SUFFIX);
+        if (!meta.isFile()) {
+            return null;
+        }
+        long metaSize = meta.length();     // no count in the file can exceed its size
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(meta)));
+            try {
+                if (in.readInt() != META_MAGIC || in.readInt() != META_VERSION) {
+                    return null;
+                }
+                boolean raw = in.readBoolean();
+                int vendorId = in.readUnsignedShort();
+                int productId = in.readUnsignedShort();
+                int deviceVersion = in.readUnsignedShort();
+                int numTargets = in.readInt();
+                if (numTargets < 0 || numTargets > metaSize) {
+                    return null;
+                }
+                List<TargetInfo> targets = new ArrayList<>(numTargets);
+                for (int t = 0; t < numTargets; t++) {
+                    int alternateSetting = in.readUnsignedByte();
+                    String name = in.readUTF();
+                    int numElements = in.readInt();
+                    if (numElements < 0 || numElements > metaSize) {
+                        return null;
+                    }
+                    List<ElementInfo> elements = new ArrayList<>(numElements);
+                    for (int e = 0; e < numElements; e++) {
+                        int address = in.readInt();
+                        int offset = in.readInt();
+                        int size = in.readInt();
+                        int numWords = in.readInt();
+                        if (offset < 0 || size < 0 || numWords < 0 || numWords > metaSize / 8) {
+                            return null;
+                        }
+                        long[] words = new long[numWords];
+                        for (int w = 0; w < words.length; w++) {
+                            words[w] = in.readLong();
+                        }
+                        elements.add(new ElementInfo(address, offset, size, BitSet.valueOf(words)));
+                    }
+                    targets.add(new TargetInfo(alternateSetting, name, elements));
+                }
+                return new Entry(hash, image, raw, vendorId, productId, deviceVersion, targets);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // the image's modification time is its last use, so the order survives restarts
+    private static void touch(Entry entry) {
+        entry.file.setLastModified(System.currentTimeMillis());
+    }
+
+    // deletes least recently used entries other than keep until the cache fits its limit
+    private void evict(Entry keep) {
+        File[] images = dir.listFiles();
+        if (images == null) {
+            return;
+        }
+        long size = getSize();
+        List<File> candidates = new ArrayList<>();
+        for (File image : images) {
+            if (image.getName().endsWith(IMAGE_SUFFIX) && (keep == null || !image.equals(keep.file))) {
+                candidates.add(image);
+            }
+        }
+        Collections.sort(candidates, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ta = a.lastModified();
+                long tb = b.lastModified();
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        for (File image : candidates) {
+            if (size <= maxBytes) {
+                break;
+            }
+            String hash = image.getName().substring(0, image.getName().length() - IMAGE_SUFFIX.length());
+            File meta = new File(dir, hash + META_SUFFIX);
+            size -= image.length() + meta.length();
+            image.delete();
+            meta.delete();
+            entries.remove(hash);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // every Android release ships SHA-256
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = digits[(bytes[i] >>> 4) & 0xF];
+            out[i * 2 + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(out);
+    }
+}
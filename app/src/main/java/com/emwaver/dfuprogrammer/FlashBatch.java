@@ -0,0 +1,204 @@
+package com.emwaver.dfuprogrammer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Runs the same flashing job on several sessions at once, each on its own worker, so N devices
+ * take about as long as the slowest one. Reports combined progress while running and a result
+ * per device plus the aggregate throughput when all of them are done.
+ */
+public class FlashBatch {
+    public static class Result {
+        public final String device;
+        public final List<AddressRange> mismatches;     // null if the job failed
+        public final Exception error;                   // null if the job completed
+        public final long bytes;                        // image bytes handled, written or skipped
+        public final long millis;
+
+        Result(String device, List<AddressRange> mismatches, Exception error, long bytes, long millis) {
+            this.device = device;
+            this.mismatches = mismatches;
+            this.error = error;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+
+        public boolean isOk() {
+            return error == null && mismatches.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            if (error != null) {
+                return device + ": failed, " + error;
+            }
+            if (!mismatches.isEmpty()) {
+                return device + ": mismatching ranges " + mismatches;
+            }
+            return String.format(Locale.US, "%s: ok, %d bytes in %d ms", device, bytes, millis);
+        }
+    }
+
+    public interface Listener {
+        // called on the sessions' Dfu dispatcher threads, possibly concurrently
+        void onProgress(FlashBatch batch);
+
+        // called on the callback executor of the device's session
+        void onDeviceFinished(Result result);
+
+        // called on the callback executor after the last device finished
+        void onFinished(List<Result> results, long bytesPerSecond);
+    }
+
+    private final List<DfuSession> sessions;
+    private final DfuWorker.Job<List<AddressRange>> job;
+    private final Listener listener;
+    private final AtomicReferenceArray<DfuProgress> latest;
+    private final List<Result> results = new ArrayList<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private long startNanos;
+
+    public FlashBatch(List<DfuSession> sessions, DfuWorker.Job<List<AddressRange>> job, Listener listener) {
+        this.sessions = new ArrayList<>(sessions);
+        this.job = job;
+        this.listener = listener;
+        this.latest = new AtomicReferenceArray<>(this.sessions.size());
+    }
+
+    public void start() {
+        startNanos = System.nanoTime();
+        running.set(sessions.size());
+        if (sessions.isEmpty()) {
+            listener.onFinished(Collections.<Result>emptyList(), 0);
+            return;
+        }
+        for (int i = 0; i < sessions.size(); i++) {
+            submit(i, sessions.get(i));
+        }
+    }
+
+    public void cancel() {
+        for (DfuSession session : sessions) {
+            session.getWorker().cancel();
+        }
+    }
+
+    // devices still flashing
+    public int getRunning() {
+        return running.get();
+    }
+
+    public int getDeviceCount() {
+        return sessions.size();
+    }
+
+    // sum over the devices of their latest progress, in the phase each one is in
+    public long getBytesDone() {
+        long done = 0;
+        for (int i = 0; i < latest.length(); i++) {
+            DfuProgress p = latest.get(i);
+            if (p != null) done += p.bytesDone;
+        }
+        return done;
+    }
+
+    // devices streaming an image of unknown size count with what they have done so far
+    public long getBytesTotal() {
+        long total = 0;
+        for (int i = 0; i < latest.length(); i++) {
+            DfuProgress p = latest.get(i);
+            if (p != null) total += p.bytesTotal >= 0 ? p.bytesTotal : p.bytesDone;
+        }
+        return total;
+    }
+
+    // combined current rate of the devices still running
+    public long getBytesPerSecond() {
+        long rate = 0;
+        for (int i = 0; i < latest.length(); i++) {
+            DfuProgress p = latest.get(i);
+            if (p != null && !p.isDone()) rate += p.bytesPerSecond;
+        }
+        return rate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d/%d devices running  %d/%d bytes  %.1f KB/s",
+                getRunning(), getDeviceCount(), getBytesDone(), getBytesTotal(), getBytesPerSecond() / 1024.0);
+    }
+
+    private void submit(final int index, final DfuSession session) {
+        final Dfu.ProgressListener progress = new Dfu.ProgressListener() {
+            @Override
+            public void onProgress(DfuProgress p) {
+                latest.set(index, p);
+                listener.onProgress(FlashBatch.this);
+            }
+        };
+        // elapsed ms and image bytes of this job alone, the session may have run others before it
+        final long[] measured = new long[2];
+        session.getDfu().addProgressListener(progress);
+        session.getWorker().submit(new DfuWorker.Job<List<AddressRange>>() {
+            @Override
+            public String name() {
+                return job.name();
+            }
+
+            @Override
+            public List<AddressRange> run(Dfu dfu) throws Exception {
+                long start = System.nanoTime();
+                long bytes = image_bytes(dfu.get_stats());
+                try {
+                    return job.run(dfu);
+                } finally {
+                    measured[0] = (System.nanoTime() - start) / 1000000;
+                    measured[1] = image_bytes(dfu.get_stats()) - bytes;
+                }
+            }
+        }, new DfuWorker.Callback<List<AddressRange>>() {
+            @Override
+            public void onResult(List<AddressRange> mismatches) {
+                finish(session, progress, mismatches, null, measured[1], measured[0]);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                finish(session, progress, null, e, measured[1], measured[0]);
+            }
+        });
+    }
+
+    private static long image_bytes(FlashStats stats) {
+        return stats.getBytesWritten() + stats.getBytesUnchanged() + stats.getBytesBlank();
+    }
+
+    private void finish(DfuSession session, Dfu.ProgressListener progress, List<AddressRange> mismatches,
+                        Exception error, long bytes, long millis) {
+        session.getDfu().removeProgressListener(progress);
+        Result result = new Result(session.getName(), mismatches, error, bytes, millis);
+        listener.onDeviceFinished(result);
+
+        List<Result> all;
+        synchronized (results) {
+            results.add(result);
+            if (results.size() < sessions.size()) {
+                running.decrementAndGet();
+                return;
+            }
+            all = new ArrayList<>(results);
+        }
+        running.set(0);
+        long total = 0;
+        for (Result r : all) {
+            if (r.error == null) total += r.bytes;
+        }
+        long elapsed = System.nanoTime() - startNanos;
+        listener.onFinished(all, elapsed > 0 ? total * 1000000000L / elapsed : 0);
+    }
+}
@@ -0,0 +1,166 @@
+package com.emwaver.dfuprogrammer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only record of the flash sectors an interrupted write_image() got through, so a device
+ * that is detached mid-write can pick up where it stopped instead of starting over. The file
+ * starts with the id of the image being written, followed by one fixed-size record per
+ * completed sector, each synced to storage before the write moves on. A record torn by a crash
+ * is dropped when the journal is opened again. The journal is deleted once the image verified.
+ */
+public class FlashJournal implements Closeable {
+    private static final int MAGIC = 0x44464A4E;   // "DFJN"
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 12;      // alternate setting, sector index, check
+
+    private final File file;
+    private final String imageId;
+    private final RandomAccessFile raf;
+    private final Map<Integer, BitSet> completed = new HashMap<>();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private int count;
+
+    private FlashJournal(File file, String imageId, RandomAccessFile raf) {
+        this.file = file;
+        this.imageId = imageId;
+        this.raf = raf;
+    }
+
+    /**
+     * Opens the journal for writing imageId. Sectors recorded by an earlier, interrupted write of
+     * the same image are kept; a journal of any other image is discarded.
+     */
+    public static FlashJournal open(File file, String imageId) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FlashJournal journal = new FlashJournal(file, imageId, raf);
+        try {
+            if (imageId.equals(read_header(raf))) {
+                journal.load();
+            } else {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeUTF(imageId);
+                raf.getFD().sync();
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    // the image an unfinished write left this journal for, or null if there is none
+    public static String read_image_id(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return read_header(raf);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String read_header(RandomAccessFile raf) throws IOException {
+        try {
+            raf.seek(0);
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                return null;
+            }
+            return raf.readUTF();
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // reads the records after the header, cutting off a torn one at the end
+    private void load() throws IOException {
+        long end = raf.length();
+        long pos = raf.getFilePointer();
+        byte[] buffer = new byte[RECORD_SIZE];
+        while (pos + RECORD_SIZE <= end) {
+            raf.readFully(buffer);
+            ByteBuffer r = ByteBuffer.wrap(buffer);
+            int alternateSetting = r.getInt();
+            int sector = r.getInt();
+            if (r.getInt() != check(alternateSetting, sector)) {
+                break;
+            }
+            mark(alternateSetting, sector);
+            pos += RECORD_SIZE;
+        }
+        raf.setLength(pos);
+        raf.seek(pos);
+    }
+
+    private static int check(int alternateSetting, int sector) {
+        return MAGIC ^ (alternateSetting << 24) ^ sector;
+    }
+
+    private void mark(int alternateSetting, int sector) {
+        BitSet sectors = completed.get(alternateSetting);
+        if (sectors == null) {
+            sectors = new BitSet();
+            completed.put(alternateSetting, sectors);
+        }
+        if (!sectors.get(sector)) {
+            sectors.set(sector);
+            count++;
+        }
+    }
+
+    public String getImageId() {
+        return imageId;
+    }
+
+    // sectors of this alternate setting recorded as completed, a copy
+    public BitSet getCompleted(int alternateSetting) {
+        BitSet sectors = completed.get(alternateSetting);
+        return sectors != null ? (BitSet) sectors.clone() : new BitSet();
+    }
+
+    public int getCompletedCount() {
+        return count;
+    }
+
+    // records a sector whose image data was all written, durably before returning
+    public void append(int alternateSetting, int sector) throws IOException {
+        record.clear();
+        record.putInt(alternateSetting).putInt(sector).putInt(check(alternateSetting, sector));
+        raf.write(record.array(), 0, RECORD_SIZE);
+        raf.getFD().sync();
+        mark(alternateSetting, sector);
+    }
+
+    // closes and removes the journal, once the write it describes is complete
+    public void delete() throws IOException {
+        close();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("cannot delete " + file);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
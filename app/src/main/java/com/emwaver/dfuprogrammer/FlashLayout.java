@@ -0,0 +1,143 @@
+package com.emwaver.dfuprogrammer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sector layout parsed from a DfuSe memory descriptor string, e.g.
+ * "@Internal Flash  /0x08000000/04*016Kg,01*064Kg,07*128Kg": a name, then for each contiguous
+ * region its start address and a list of count*size groups. The trailing letter of each group
+ * ('a'..'g') is a bit mask of readable (1), erasable (2) and writable (4).
+ */
+public class FlashLayout {
+    private static final Pattern GROUP = Pattern.compile("(\\d+)\\*(\\d+)\\s*([KMB ]?)([a-g])");
+
+    public static class Sector {
+        public final int index;
+        public final int address;
+        public final int size;
+        private final int type;
+
+        Sector(int index, int address, int size, int type) {
+            this.index = index;
+            this.address = address;
+            this.size = size;
+            this.type = type;
+        }
+
+        public int end() {
+            return address + size;
+        }
+
+        public boolean contains(int addr) {
+            return addr - address >= 0 && end() - addr > 0;
+        }
+
+        public boolean isReadable() {
+            return (type & 1) != 0;
+        }
+
+        public boolean isErasable() {
+            return (type & 2) != 0;
+        }
+
+        public boolean isWritable() {
+            return (type & 4) != 0;
+        }
+    }
+
+    private final String name;
+    private final List<Sector> sectors;
+
+    private FlashLayout(String name, List<Sector> sectors) {
+        this.name = name;
+        this.sectors = Collections.unmodifiableList(sectors);
+    }
+
+    public static FlashLayout parse(String descriptor) {
+        if (descriptor == null || !descriptor.startsWith("@")) {
+            throw new IllegalArgumentException("not a DfuSe memory descriptor: " + descriptor);
+        }
+        String[] parts = descriptor.substring(1).split("/");
+        if (parts.length < 3 || parts.length % 2 == 0) {
+            throw new IllegalArgumentException("malformed memory descriptor: " + descriptor);
+        }
+
+        List<Sector> sectors = new ArrayList<>();
+        for (int p = 1; p < parts.length; p += 2) {
+            int address = (int) Long.decode(parts[p].trim()).longValue();
+            for (String group : parts[p + 1].split(",")) {
+                Matcher m = GROUP.matcher(group.trim());
+                if (!m.matches()) {
+                    throw new IllegalArgumentException("malformed sector group '" + group + "' in " + descriptor);
+                }
+                int count = Integer.parseInt(m.group(1));
+                int size = Integer.parseInt(m.group(2));
+                if ("K".equals(m.group(3))) {
+                    size *= 1024;
+                } else if ("M".equals(m.group(3))) {
+                    size *= 1024 * 1024;
+                }
+                int type = m.group(4).charAt(0) - 'a' + 1;
+                for (int i = 0; i < count; i++) {
+                    sectors.add(new Sector(sectors.size(), address, size, type));
+                    address += size;
+                }
+            }
+        }
+        return new FlashLayout(parts[0].trim(), sectors);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Sector> getSectors() {
+        return sectors;
+    }
+
+    public int getStartAddress() {
+        return sectors.get(0).address;
+    }
+
+    public long getSize() {
+        long size = 0;
+        for (Sector sector : sectors) {
+            size += sector.size;
+        }
+        return size;
+    }
+
+    // the sector holding address, or null if it is outside every region
+    public Sector sectorAt(int address) {
+        int lo = 0;
+        int hi = sectors.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Sector sector = sectors.get(mid);
+            if (address - sector.address < 0) {
+                hi = mid - 1;
+            } else if (sector.contains(address)) {
+                return sector;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return null;
+    }
+
+    // sectors overlapping [address, address + length), in address order
+    public List<Sector> sectorsFor(int address, int length) {
+        List<Sector> result = new ArrayList<>();
+        int end = address + length;
+        for (Sector sector : sectors) {
+            if (sector.address - end < 0 && sector.end() - address > 0) {
+                result.add(sector);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,168 @@
+package com.emwaver.dfuprogrammer;
+
+import java.util.Locale;
+
+// Counters for one flashing session, reset by Dfu.begin_session()
+public class FlashStats {
+    // phases of a DFU operation timed by Dfu, see getOperation()
+    public static final int OP_ERASE = 0;           // one sector or mass erase, including its polling
+    public static final int OP_SET_ADDRESS = 1;     // SET_ADDRESS_POINTER command
+    public static final int OP_DOWNLOAD = 2;        // one data block DNLOAD until the device is idle again
+    public static final int OP_POLL_SLEEP = 3;      // each bwPollTimeout wait
+    public static final int OP_UPLOAD = 4;          // one block UPLOAD
+    public static final int OP_VERIFY = 5;          // one verify() pass
+    private static final String[] OP_NAMES = {"erase", "set_address", "download", "poll_sleep", "upload", "verify"};
+    private static final String[] REQUEST_NAMES = {"DETACH", "DNLOAD", "UPLOAD", "GETSTATUS", "CLRSTATUS", "GETSTATE", "ABORT"};
+
+    final LatencyHistogram[] requests = new LatencyHistogram[REQUEST_NAMES.length];    // by bRequest
+    final LatencyHistogram[] operations = new LatencyHistogram[OP_NAMES.length];
+    int transfers;          // control transfers issued
+    int transfersSaved;     // GETSTATUS/CLRSTATUS round trips skipped because the state was known
+    long bytesWritten;      // bytes sent with DNLOAD
+    long bytesRead;         // bytes received with UPLOAD
+    long bytesUnchanged;    // bytes skipped because their sector already held the same data
+    long bytesBlank;        // all-0xFF bytes skipped because their sector was already erased
+    long writeNanos;        // time spent erasing and writing
+    long compareNanos;      // time spent reading sectors back for delta comparison
+    long startNanos = System.nanoTime();
+
+    public FlashStats() {
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = new LatencyHistogram();
+        }
+    }
+
+    // called by Dfu.transfer() for every control transfer
+    void record_request(int request, long nanos) {
+        if (request >= 0 && request < requests.length) {
+            requests[request].record(nanos);
+        }
+    }
+
+    void record_operation(int operation, long nanos) {
+        operations[operation].record(nanos);
+    }
+
+    // control transfer latencies of one DFU request, e.g. Dfu.DFU_GETSTATUS
+    public LatencyHistogram getRequest(int request) {
+        return requests[request];
+    }
+
+    // latencies of one phase, see the OP_ constants
+    public LatencyHistogram getOperation(int operation) {
+        return operations[operation];
+    }
+
+    public long getGetStatusCount() {
+        return requests[3].getCount();     // DFU_GETSTATUS
+    }
+
+    public long getClearStatusCount() {
+        return requests[4].getCount();     // DFU_CLRSTATUS
+    }
+
+    public int getTransfers() {
+        return transfers;
+    }
+
+    public int getTransfersSaved() {
+        return transfersSaved;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesUnchanged() {
+        return bytesUnchanged;
+    }
+
+    public long getBytesBlank() {
+        return bytesBlank;
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    // erase+write cost per byte measured this session, or -1 if nothing was written
+    public long getWriteNanosPerByte() {
+        return bytesWritten > 0 ? writeNanos / bytesWritten : -1;
+    }
+
+    // DNLOAD throughput while erasing and writing, 0 if nothing was written
+    public long getWriteBytesPerSecond() {
+        return writeNanos > 0 ? bytesWritten * 1000000000L / writeNanos : 0;
+    }
+
+    // UPLOAD throughput, 0 if nothing was read
+    public long getReadBytesPerSecond() {
+        long nanos = operations[OP_UPLOAD].getTotalNanos();
+        return nanos > 0 ? bytesRead * 1000000000L / nanos : 0;
+    }
+
+    /**
+     * Estimated time the skipped unchanged bytes would have taken to erase and write, minus the
+     * time spent reading them back to find out they were unchanged.
+     *
+     * @param fallbackNanosPerByte rate to assume when nothing was written this session, or -1
+     * @return saved milliseconds, or -1 when there is no rate to estimate from
+     */
+    public long getSavedMillis(long fallbackNanosPerByte) {
+        long rate = bytesWritten > 0 ? getWriteNanosPerByte() : fallbackNanosPerByte;
+        if (rate < 0) return -1;
+        return (bytesUnchanged * rate - compareNanos) / 1000000;
+    }
+
+    public String report(long fallbackNanosPerByte) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%d ms, %d bytes written, %d control transfers, %d saved",
+                getElapsedMillis(), bytesWritten, transfers, transfersSaved));
+        if (bytesBlank > 0) {
+            sb.append(String.format(Locale.US, ", %d blank bytes skipped", bytesBlank));
+        }
+        if (bytesUnchanged > 0) {
+            long saved = getSavedMillis(fallbackNanosPerByte);
+            sb.append(String.format(Locale.US, ", %d unchanged bytes skipped", bytesUnchanged));
+            if (saved >= 0) sb.append(String.format(Locale.US, " (~%d ms saved)", saved));
+        }
+        return sb.toString();
+    }
+
+    // the whole session as a JSON object, for exporting after an operation
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "{\n  \"elapsed_ms\": %d,\n  \"transfers\": %d,\n  \"transfers_saved\": %d,\n",
+                getElapsedMillis(), transfers, transfersSaved));
+        sb.append(String.format(Locale.US, "  \"getstatus_count\": %d,\n  \"clrstatus_count\": %d,\n",
+                getGetStatusCount(), getClearStatusCount()));
+        sb.append(String.format(Locale.US, "  \"bytes_written\": %d,\n  \"bytes_read\": %d,\n  \"bytes_unchanged\": %d,\n  \"bytes_blank\": %d,\n",
+                bytesWritten, bytesRead, bytesUnchanged, bytesBlank));
+        sb.append(String.format(Locale.US, "  \"write_bytes_per_sec\": %d,\n  \"read_bytes_per_sec\": %d,\n",
+                getWriteBytesPerSecond(), getReadBytesPerSecond()));
+        sb.append("  \"requests\": {");
+        append_histograms(sb, REQUEST_NAMES, requests);
+        sb.append("},\n  \"operations\": {");
+        append_histograms(sb, OP_NAMES, operations);
+        sb.append("}\n}\n");
+        return sb.toString();
+    }
+
+    // the non-empty histograms, one per line
+    private static void append_histograms(StringBuilder sb, String[] names, LatencyHistogram[] histograms) {
+        String separator = "\n";
+        for (int i = 0; i < histograms.length; i++) {
+            if (histograms[i].getCount() == 0) continue;
+            sb.append(separator).append("    \"").append(names[i]).append("\": ").append(histograms[i].toJson());
+            separator = ",\n";
+        }
+        if (!separator.equals("\n")) sb.append("\n  ");
+    }
+}
@@ -0,0 +1,86 @@
+package com.emwaver.dfuprogrammer;
+
+/**
+ * Hex dump formatter producing the same layout print_block() always had,
+ * "0x08000000: 00180020  e50f0008  4d0f0008  4f0f0008", without String.format.
+ * Characters come from lookup tables and go into a reused buffer, and single rows can be
+ * rendered on demand so a view only has to format the rows it actually shows.
+ */
+public final class HexDump {
+    public static final int BYTES_PER_ROW = 16;
+    public static final int MAX_ROW_CHARS = 12 + BYTES_PER_ROW * 2 + 6 + 1;  // address, bytes, group gaps, newline
+
+    private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+    private static final char[] HEX_PAIRS = new char[512];  // two lowercase digits per byte value
+
+    static {
+        char[] lower = "0123456789abcdef".toCharArray();
+        for (int i = 0; i < 256; i++) {
+            HEX_PAIRS[i * 2] = lower[i >>> 4];
+            HEX_PAIRS[i * 2 + 1] = lower[i & 0xF];
+        }
+    }
+
+    private char[] chars = new char[MAX_ROW_CHARS * (2048 / BYTES_PER_ROW)];
+
+    public static int rowCount(int length) {
+        return (length + BYTES_PER_ROW - 1) / BYTES_PER_ROW;
+    }
+
+    /**
+     * Renders one row of a dump into out.
+     *
+     * @param buffer  dumped bytes
+     * @param offset  index of the first dumped byte in buffer
+     * @param length  number of dumped bytes
+     * @param address device address of buffer[offset]
+     * @param row     row to render, 0 to rowCount(length) - 1
+     * @param out     destination, needs MAX_ROW_CHARS free chars from pos
+     * @param pos     index in out to start at
+     * @return index in out after the row's newline
+     */
+    public static int renderRow(byte[] buffer, int offset, int length, int address, int row, char[] out, int pos) {
+        int start = row * BYTES_PER_ROW;
+        int rowAddress = address + start;
+        out[pos++] = '0';
+        out[pos++] = 'x';
+        for (int shift = 28; shift >= 0; shift -= 4) {
+            out[pos++] = HEX_UPPER[(rowAddress >>> shift) & 0xF];
+        }
+        out[pos++] = ':';
+        out[pos++] = ' ';
+
+        int remaining = Math.min(length - start, BYTES_PER_ROW);
+        int index = offset + start;
+        for (int j = 0; j < remaining; j++) {
+            int pair = (buffer[index + j] & 0xFF) << 1;
+            out[pos++] = HEX_PAIRS[pair];
+            out[pos++] = HEX_PAIRS[pair + 1];
+            if ((j + 1) % 4 == 0 && j + 1 < remaining) {
+                out[pos++] = ' ';
+                out[pos++] = ' ';
+            }
+        }
+        out[pos++] = '\n';
+        return pos;
+    }
+
+    // renders the whole dump into the reused buffer and returns the number of chars, see chars()
+    public int render(byte[] buffer, int offset, int length, int address) {
+        int needed = rowCount(length) * MAX_ROW_CHARS;
+        if (chars.length < needed) {
+            chars = new char[needed];
+        }
+        int pos = 0;
+        int rows = rowCount(length);
+        for (int row = 0; row < rows; row++) {
+            pos = renderRow(buffer, offset, length, address, row, chars, pos);
+        }
+        return pos;
+    }
+
+    // output of the last render(), valid until the next call
+    public char[] chars() {
+        return chars;
+    }
+}
@@ -0,0 +1,114 @@
+package com.emwaver.dfuprogrammer;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Fixed-size log-linear histogram of durations in nanoseconds, in the style of HdrHistogram:
+ * every power of two is split into 32 linear sub-buckets, so a recorded value is off by at
+ * most 1/32 (about 3%) however large it is. record() only increments counters in a
+ * preallocated array, cheap enough to call around every control transfer. Not thread-safe;
+ * each histogram has a single writer.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;     // values are clamped to 2^41 ns, about 36 minutes
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final long[] counts = new long[(MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS];
+    private long count;
+    private long total;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public void record(long nanos) {
+        long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+        counts[index(value)]++;
+        count++;
+        total += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // smallest value that lands in the bucket
+    private static long lower_bound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    // sum of all recorded values
+    public long getTotalNanos() {
+        return total;
+    }
+
+    public long getMinNanos() {
+        return count > 0 ? min : 0;
+    }
+
+    public long getMaxNanos() {
+        return max;
+    }
+
+    public long getMeanNanos() {
+        return count > 0 ? total / count : 0;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the lower bound of the bucket holding that percentile, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(lower_bound(i), max));
+            }
+        }
+        return max;
+    }
+
+    // summary in microseconds as a JSON object
+    public String toJson() {
+        return String.format(Locale.US,
+                "{\"count\": %d, \"total_us\": %d, \"min_us\": %d, \"mean_us\": %d, \"p50_us\": %d, \"p90_us\": %d, \"p99_us\": %d, \"max_us\": %d}",
+                count, total / 1000, getMinNanos() / 1000, getMeanNanos() / 1000, getValueAtPercentile(50) / 1000,
+                getValueAtPercentile(90) / 1000, getValueAtPercentile(99) / 1000, max / 1000);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n=%d mean=%dus p50=%dus p99=%dus max=%dus", count,
+                getMeanNanos() / 1000, getValueAtPercentile(50) / 1000, getValueAtPercentile(99) / 1000, max / 1000);
+    }
+}
@@ -0,0 +1,60 @@
+package com.emwaver.dfuprogrammer;
+
+import android.graphics.Typeface;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows a LogBuffer in a ListView. Only the visible rows are bound and their TextViews are
+ * recycled, so the cost of an update does not grow with the log. The adapter works on a
+ * snapshot of the buffer's sequence range taken in refresh(), which has to run on the UI thread;
+ * lines appended from other threads show up at the next refresh.
+ */
+public class LogAdapter extends BaseAdapter {
+    private final LogBuffer buffer;
+    private long first;
+    private int count;
+
+    public LogAdapter(LogBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public void refresh() {
+        first = buffer.firstSequence();
+        count = (int) (buffer.endSequence() - first);
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return buffer.line(first + position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return first + position;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            view = new TextView(parent.getContext());
+            view.setTypeface(Typeface.MONOSPACE);
+        }
+        view.setText(buffer.line(first + position));
+        return view;
+    }
+}
@@ -0,0 +1,109 @@
+package com.emwaver.dfuprogrammer;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Bounded, thread-safe line log. Text is split into lines as it is appended and kept in a ring
+ * of fixed capacity, so memory stays constant however long a session runs and an append costs
+ * the same whether the log holds ten lines or a million. Lines are addressed by a sequence
+ * number that keeps counting across evictions, so a view can hold on to a snapshot of
+ * [firstSequence(), endSequence()) while new lines keep arriving from other threads.
+ */
+public class LogBuffer {
+    public static final int DEFAULT_CAPACITY = 1 << 17;
+
+    private final String[] lines;
+    private final int mask;
+    private long committed;     // number of complete lines ever appended
+    private long clearedAt;     // value of committed at the last clear()
+    private final StringBuilder partial = new StringBuilder();  // text after the last newline
+
+    public LogBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    // capacity is rounded up to a power of two
+    public LogBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        lines = new String[size];
+        mask = size - 1;
+    }
+
+    public synchronized void append(CharSequence text) {
+        int start = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) == '\n') {
+                String line;
+                if (partial.length() > 0) {
+                    partial.append(text, start, i);
+                    line = partial.toString();
+                    partial.setLength(0);
+                } else {
+                    line = text.subSequence(start, i).toString();
+                }
+                lines[(int) (committed & mask)] = line;
+                committed++;
+                start = i + 1;
+            }
+        }
+        if (start < length) {
+            partial.append(text, start, length);
+        }
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = null;
+        }
+        // sequence numbers keep counting so views holding old ones see them as evicted
+        clearedAt = committed;
+        partial.setLength(0);
+    }
+
+    // sequence number of the oldest retained line
+    public synchronized long firstSequence() {
+        return Math.max(clearedAt, committed - lines.length);
+    }
+
+    // one past the newest line, counting an unterminated last line
+    public synchronized long endSequence() {
+        return committed + (partial.length() > 0 ? 1 : 0);
+    }
+
+    // the line with the given sequence number, or "" once it has been evicted
+    public synchronized String line(long sequence) {
+        if (sequence == committed) {
+            return partial.toString();
+        }
+        if (sequence < firstSequence() || sequence > committed) {
+            return "";
+        }
+        String line = lines[(int) (sequence & mask)];
+        return line != null ? line : "";
+    }
+
+    // writes every retained line; appends made meanwhile are not included
+    public void writeTo(Writer out) throws IOException {
+        String[] snapshot;
+        long first;
+        long end;
+        String tail;
+        synchronized (this) {
+            snapshot = lines.clone();
+            first = firstSequence();
+            end = committed;
+            tail = partial.toString();
+        }
+        for (long seq = first; seq < end; seq++) {
+            String line = snapshot[(int) (seq & mask)];
+            if (line != null) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+        out.write(tail);
+        out.flush();
+    }
+}
@@ -7,6 +7,8 @@ import androidx.core.content.ContextCompat;
 import android.Manifest;
 
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.util.Log;
@@ -21,22 +23,57 @@ import android.os.Message;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends Activity implements
-        Handler.Callback, Usb.OnUsbChangeListener, Dfu.DfuListener {
-
-    private Usb usb;
-    private Dfu dfu;
+        Handler.Callback, DeviceRegistry.Listener, Dfu.DfuListener, Dfu.ProgressListener {
+
+    private DeviceRegistry registry;
+    private volatile DfuSession selected;   // the device the single device buttons act on
+    private FlashBatch batch;
+    private static final long FIRMWARE_CACHE_BYTES = 64L * 1024 * 1024;
+    // option bytes the provision button leaves a unit with: brown-out reset at 2.7 V, hardware
+    // watchdog off, no reset on stop/standby; OPT_RDP_1 here would also lock the flash against readout
+    private static final int PROVISION_OPTIONS = Dfu.OPT_RDP_OFF | Dfu.OPT_BOR_3 | Dfu.OPT_WDG_SW
+            | Dfu.OPT_nRST_STOP | Dfu.OPT_nRST_STDBY;
+    private FirmwareCache firmwareCache;
+    private volatile FirmwareCache.Entry firmware;     // picked image once cached, null for the bundled dfu.dfu
+    private volatile Uri firmwareUri;                   // picked image still being imported
     private static final int REQUEST_CODE_ATTACH = 1;
+    private static final String PREF_DELTA_WRITE = "delta_write";
+    private boolean deltaWrite;     // off until the user knows the units already run a similar build
     private static final int PERMISSIONS_REQUEST_READ_EXTERNAL_STORAGE = 100; // A unique request code
-    private TextView status;
+    private ListView status;
+    private TextView progress;
+    private final LogBuffer log = new LogBuffer();
+    private LogAdapter logAdapter;
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+    private final Runnable refreshLog = new Runnable() {
+        @Override
+        public void run() {
+            refreshPending.set(false);
+            logAdapter.refresh();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -49,10 +86,23 @@ public class MainActivity extends Activity implements
             ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.READ_EXTERNAL_STORAGE}, PERMISSIONS_REQUEST_READ_EXTERNAL_STORAGE);
         }
 
-        dfu = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID, this);
-        dfu.setListener(this);
+        final Handler mainHandler = new Handler(getMainLooper());
+        registry = new DeviceRegistry(this, (UsbManager) getSystemService(Context.USB_SERVICE), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mainHandler.post(command);
+            }
+        }, new DeviceProfiles(new File(getFilesDir(), "profiles")));
+        registry.setListener(this);
+        registry.setJournalDir(new File(getFilesDir(), "journals"));
+        registry.setTraceDir(new File(getExternalFilesDir(null), "traces"));  // for analyzing slow units offline
+        firmwareCache = new FirmwareCache(new File(getFilesDir(), "firmware"), FIRMWARE_CACHE_BYTES);
 
         status = findViewById(R.id.status);
+        progress = findViewById(R.id.progress);
+        logAdapter = new LogAdapter(log);
+        status.setAdapter(logAdapter);
+        appendLog(getString(R.string.device_status) + "\n");
 
 
 
@@ -61,35 +111,66 @@ public class MainActivity extends Activity implements
         clearTxtView.setOnClickListener(new Button.OnClickListener() {
             @Override
             public void onClick(View v) {
-                status.setText("");
+                log.clear();
+                logAdapter.refresh();
+            }
+        });
+
+        Button exportLogButton = findViewById(R.id.exportLogButton);
+        exportLogButton.setOnClickListener(new Button.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                File file = new File(getExternalFilesDir(null), "log.txt");
+                try {
+                    Writer out = new BufferedWriter(new FileWriter(file));
+                    try {
+                        log.writeTo(out);
+                    } finally {
+                        out.close();
+                    }
+                    appendLog("log exported to " + file + "\n");
+                } catch (IOException e) {
+                    appendLog(e + "\n");
+                }
             }
         });
 
 
 
+        Button openFileButton = findViewById(R.id.openFileButton);
+        openFileButton.setOnClickListener(new Button.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                openFileChooser();
+            }
+        });
+
         Button writeBlockButton = findViewById(R.id.writeBlockButton);
         writeBlockButton.setOnClickListener(new Button.OnClickListener() {
             @Override
             public void onClick(View v) {
-                int BLOCK_SIZE = 2048;
-                int startAddress = 0x08000000;
-                byte [] buffer = new byte[BLOCK_SIZE];
-                // Initialize all elements to 0x69
-                byte valueToSet = (byte) 0x69; // Casting is important as 0x69 is an int literal
-                for (int i = 0; i < BLOCK_SIZE; i++)
-                    buffer[i] = valueToSet;
-                try {
-
-                    dfu.mass_erase();
-                    dfu.set_address_pointer(0x08000000);
-
-                    byte[] block = new byte[BLOCK_SIZE];
-                    Arrays.fill(block, (byte) 0x69); // Fill the block with 0x69
-                    dfu.write_block(block, 2, BLOCK_SIZE); // Assuming writeBlock method is implemented in your Dfu class
-                    //status.append("wrote flash\n");
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                DfuSession session = selected_session();
+                if (session == null) {
+                    return;
                 }
+                session.getWorker().submit(new DfuWorker.Job<Void>() {
+                    @Override
+                    public String name() {
+                        return "write test block";
+                    }
+
+                    @Override
+                    public Void run(Dfu dfu) throws Exception {
+                        int blockSize = dfu.get_transfer_size();
+                        dfu.page_erase(0x08000000);
+                        dfu.set_address_pointer(0x08000000);
+
+                        byte[] block = new byte[blockSize];
+                        Arrays.fill(block, (byte) 0x69); // Fill the block with 0x69
+                        dfu.write_block(block, 2, blockSize);
+                        return null;
+                    }
+                }, new LogErrors<Void>(session));
             }
         });
 
@@ -98,10 +179,9 @@ public class MainActivity extends Activity implements
         massEraseButton.setOnClickListener(new Button.OnClickListener() {
             @Override
             public void onClick(View v) {
-                try {
-                    dfu.mass_erase();
-                } catch (Exception e) {
-                    status.append(e.toString());
+                DfuSession session = selected_session();
+                if (session != null) {
+                    session.getWorker().submit(DfuCommands.massErase(), new LogErrors<Void>(session));
                 }
             }
         });
@@ -110,11 +190,34 @@ public class MainActivity extends Activity implements
         readFlashButton.setOnClickListener(new Button.OnClickListener() {
             @Override
             public void onClick(View v) {
-                try {
-                    dfu.read_flash(0x6BE0);
-                } catch (Exception e) {
-                    status.append(e.toString());
+                DfuSession session = selected_session();
+                if (session == null) {
+                    return;
                 }
+                final File dump = new File(getExternalFilesDir(null), "flash.bin");
+                session.getWorker().submit(new DfuWorker.Job<Void>() {
+                    @Override
+                    public String name() {
+                        return "dump flash";
+                    }
+
+                    @Override
+                    public Void run(Dfu dfu) throws Exception {
+                        FlashLayout layout = dfu.getFlashLayout();
+                        FileOutputStream out = new FileOutputStream(dump);
+                        try {
+                            dfu.read_memory(layout.getStartAddress(), layout.getSize(), out.getChannel());
+                        } finally {
+                            out.close();
+                        }
+                        return null;
+                    }
+                }, new LogErrors<Void>(session) {
+                    @Override
+                    public void onResult(Void result) {
+                        appendLog("flash dumped to " + dump + "\n");
+                    }
+                });
             }
         });
 
@@ -122,13 +225,69 @@ public class MainActivity extends Activity implements
         writeFlashButton.setOnClickListener(new Button.OnClickListener() {
             @Override
             public void onClick(View v) {
-                try {
-                    dfu.mass_erase();
-                    dfu.set_address_pointer(0x08000000);
+                DfuSession session = selected_session();
+                if (session == null) {
+                    return;
+                }
+                DfuWorker.Job<List<AddressRange>> write = and_run(write_firmware());
+                session.getWorker().submit(write, new LogErrors<List<AddressRange>>(session) {
+                    @Override
+                    public void onResult(List<AddressRange> mismatches) {
+                        if (!mismatches.isEmpty()) {
+                            appendLog("mismatching ranges: " + mismatches + "\n");
+                        }
+                    }
+                });
+            }
+        });
+
+        Button flashAllButton = findViewById(R.id.flashAllButton);
+        flashAllButton.setOnClickListener(new Button.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                flashAll();
+            }
+        });
+
+        Button provisionButton = findViewById(R.id.provisionButton);
+        provisionButton.setOnClickListener(new Button.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                DfuSession session = selected_session();
+                if (session == null) {
+                    return;
+                }
+                Provisioning provisioning = new Provisioning(write_firmware(), PROVISION_OPTIONS);
+                session.getWorker().submit(provisioning, new LogErrors<Provisioning.Report>(session) {
+                    @Override
+                    public void onResult(Provisioning.Report report) {
+                        appendLog(report + "\n");
+                    }
+                });
+            }
+        });
 
-                    dfu.write_flash();
-                } catch (Exception e) {
-                    status.append(e.toString());
+        final SharedPreferences settings = getSharedPreferences("settings", Context.MODE_PRIVATE);
+        deltaWrite = settings.getBoolean(PREF_DELTA_WRITE, false);
+        CheckBox deltaWriteCheckBox = findViewById(R.id.deltaWriteCheckBox);
+        deltaWriteCheckBox.setChecked(deltaWrite);
+        deltaWriteCheckBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton button, boolean checked) {
+                deltaWrite = checked;
+                settings.edit().putBoolean(PREF_DELTA_WRITE, checked).apply();
+                for (DfuSession session : registry.getSessions()) {
+                    session.getDfu().setDeltaWrite(checked);
+                }
+            }
+        });
+
+        Button cancelButton = findViewById(R.id.cancelButton);
+        cancelButton.setOnClickListener(new Button.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                for (DfuSession session : registry.getSessions()) {
+                    session.getWorker().cancel();
                 }
             }
         });
@@ -136,36 +295,225 @@ public class MainActivity extends Activity implements
 
     }
 
-    @Override
-    protected void onStart() {
-        super.onStart();
+    // the device the single device buttons act on, null after logging that there is none
+    private DfuSession selected_session() {
+        DfuSession session = selected;
+        if (session == null) {
+            appendLog("No device connected\n");
+        }
+        return session;
+    }
 
-        /* Setup USB */
-        usb = new Usb(this);
-        usb.setUsbManager((UsbManager) getSystemService(Context.USB_SERVICE));
-        usb.setOnUsbChangeListener(this);
+    // writes the bundled firmware to every connected device at once
+    private void flashAll() {
+        List<DfuSession> sessions = registry.getSessions();
+        if (sessions.isEmpty()) {
+            appendLog("No device connected\n");
+            return;
+        }
+        if (batch != null && batch.getRunning() > 0) {
+            appendLog("already flashing " + batch.getRunning() + " devices\n");
+            return;
+        }
+        appendLog("flashing " + sessions.size() + " devices\n");
+        batch = new FlashBatch(sessions, and_run(write_firmware()), new FlashBatch.Listener() {
+            @Override
+            public void onProgress(final FlashBatch batch) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        progress.setText(batch.toString());
+                    }
+                });
+            }
 
-        // Handle two types of intents. Device attachment and permission
-        registerReceiver(usb.getmUsbReceiver(), new IntentFilter(Usb.ACTION_USB_PERMISSION));
-        registerReceiver(usb.getmUsbReceiver(), new IntentFilter(UsbManager.ACTION_USB_DEVICE_ATTACHED));
-        registerReceiver(usb.getmUsbReceiver(), new IntentFilter(UsbManager.ACTION_USB_DEVICE_DETACHED));
+            @Override
+            public void onDeviceFinished(FlashBatch.Result result) {
+                appendLog(result + "\n");
+            }
 
+            @Override
+            public void onFinished(List<FlashBatch.Result> results, long bytesPerSecond) {
+                int ok = 0;
+                for (FlashBatch.Result result : results) {
+                    if (result.isOk()) ok++;
+                }
+                appendLog(String.format(Locale.US, "%d/%d devices flashed, %.1f KB/s aggregate\n",
+                        ok, results.size(), bytesPerSecond / 1024.0));
+            }
+        });
+        batch.start();
+    }
 
-        // Handle case where USB device is connected before app launches;
-        // hence ACTION_USB_DEVICE_ATTACHED will not occur so we explicitly call for permission
-        usb.requestPermission(this, Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID);
+    // writes the picked image, or the bundled one if none was picked
+    private DfuWorker.Job<List<AddressRange>> write_firmware() {
+        final FirmwareCache.Entry image = firmware;
+        final Uri uri = firmwareUri;
+        return new DfuWorker.Job<List<AddressRange>>() {
+            @Override
+            public String name() {
+                return "write firmware";
+            }
+
+            @Override
+            public List<AddressRange> run(Dfu dfu) throws Exception {
+                if (image != null) {
+                    return dfu.write_image(image.open(), image.getHash());
+                }
+                if (uri != null) {
+                    // not cached yet, stream it straight from the provider
+                    AssetFileDescriptor fd = getContentResolver().openAssetFileDescriptor(uri, "r");
+                    if (fd == null) {
+                        throw new IOException("cannot open " + uri);
+                    }
+                    try {
+                        dfu.write_stream(fd.createInputStream());
+                    } finally {
+                        fd.close();
+                    }
+                    return Collections.emptyList();     // verified block by block
+                }
+                return dfu.write_flash();
+            }
+        };
+    }
+
+    // starts the application once the image verified, so the unit boots without a replug and
+    // its detach frees the line for the next one
+    private DfuWorker.Job<List<AddressRange>> and_run(final DfuWorker.Job<List<AddressRange>> write) {
+        return new DfuWorker.Job<List<AddressRange>>() {
+            @Override
+            public String name() {
+                return write.name() + " and run";
+            }
+
+            @Override
+            public List<AddressRange> run(Dfu dfu) throws Exception {
+                List<AddressRange> mismatches = write.run(dfu);
+                if (mismatches.isEmpty()) {
+                    dfu.leave();
+                }
+                return mismatches;
+            }
+        };
+    }
+
+    // continues provisioning a board that reset after read unprotect, see Provisioning.pending()
+    private void provision_pending(final DfuSession session) {
+        Provisioning provisioning;
+        try {
+            provisioning = Provisioning.pending(session.getDfu(), write_firmware());
+        } catch (IOException e) {
+            appendLog(session.getName() + ": " + e + "\n");
+            return;
+        }
+        if (provisioning == null) {
+            return;
+        }
+        appendLog(session.getName() + ": continuing provisioning after read unprotect\n");
+        session.getWorker().submit(provisioning, new LogErrors<Provisioning.Report>(session) {
+            @Override
+            public void onResult(Provisioning.Report report) {
+                appendLog(session.getName() + ": " + report + "\n");
+            }
+        });
+    }
+
+    // finishes a write the device was detached in the middle of, see Dfu.write_image(DfuSeFile, String)
+    private void resume(final DfuSession session, final String imageId) {
+        appendLog(session.getName() + ": resuming interrupted write of " + imageId + "\n");
+        session.getWorker().submit(and_run(new DfuWorker.Job<List<AddressRange>>() {
+            @Override
+            public String name() {
+                return "resume write";
+            }
+
+            @Override
+            public List<AddressRange> run(Dfu dfu) throws Exception {
+                if (Dfu.BUNDLED_IMAGE.equals(imageId)) {
+                    return dfu.write_flash();
+                }
+                FirmwareCache.Entry entry = firmwareCache.get(imageId);
+                if (entry == null) {
+                    dfu.discard_journal();
+                    throw new IOException("image " + imageId + " is no longer cached, cannot resume");
+                }
+                return dfu.write_image(entry.open(), imageId);
+            }
+        }), new LogErrors<List<AddressRange>>(session) {
+            @Override
+            public void onResult(List<AddressRange> mismatches) {
+                appendLog(session.getName() + (mismatches.isEmpty() ? ": resumed write complete\n"
+                        : ": mismatching ranges: " + mismatches + "\n"));
+            }
+        });
+    }
+
+    // copies a picked image into the firmware cache off the main thread and selects it
+    private void import_firmware(final Uri uri) {
+        appendLog("importing " + uri + "\n");
+        firmware = null;
+        firmwareUri = uri;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStream in = getContentResolver().openInputStream(uri);
+                    if (in == null) {
+                        throw new IOException("cannot open " + uri);
+                    }
+                    FirmwareCache.Entry entry;
+                    try {
+                        entry = firmwareCache.put(in);
+                    } finally {
+                        in.close();
+                    }
+                    if (firmwareUri == uri) {
+                        firmware = entry;
+                        firmwareUri = null;
+                        appendLog("firmware " + entry + " selected\n");
+                    }
+                } catch (IOException e) {
+                    appendLog(e + "\n");
+                }
+            }
+        }, "firmware-import").start();
+    }
+
+    // reports failed DFU jobs in the log; subclasses handle the result
+    private class LogErrors<T> implements DfuWorker.Callback<T> {
+        private final DfuSession session;   // the one the job runs on
+
+        LogErrors(DfuSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void onResult(T result) {
+        }
+
+        @Override
+        public void onError(Exception e) {
+            // the state the failure left the device in, without queueing a GETSTATUS behind it
+            appendLog(session.getName() + ": " + e + " (device "
+                    + Dfu.state_name(session.getDfu().get_last_state()) + ")\n");
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+
+        /* USB: opens a session for every device in DFU mode, including ones attached before launch */
+        registry.start();
     }
 
     @Override
     protected void onStop() {
         super.onStop();
 
-        /* USB */
-        dfu.setUsb(null);
-        usb.release();
-        try {
-            unregisterReceiver(usb.getmUsbReceiver());
-        } catch (IllegalArgumentException e) { /* Already unregistered */ }
+        /* USB: cancels running jobs and releases all devices */
+        registry.stop();
     }
 
     private void openFileChooser() {
@@ -187,8 +535,9 @@ public class MainActivity extends Activity implements
 
         if (requestCode == REQUEST_CODE_ATTACH && resultCode == RESULT_OK && data != null) {
             Uri fileUri = data.getData();
-            // Handle the selected file
-            // ...
+            if (fileUri != null) {
+                import_firmware(fileUri);
+            }
         }
     }
 
@@ -199,14 +548,70 @@ public class MainActivity extends Activity implements
 
     @Override
     public void onStatusMsg(String msg) {
-        // TODO since we are appending we should make the TextView scrollable like a log
-        status.append(msg);
+        appendLog(msg);
+    }
+
+    // called on the Dfu dispatcher thread, at most once per frame
+    @Override
+    public void onProgress(final DfuProgress p) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                progress.setText(p.toString());
+            }
+        });
+    }
+
+    // safe from any thread; the list is refreshed at most once per frame however often this is called
+    private void appendLog(String msg) {
+        log.append(msg);
+        if (refreshPending.compareAndSet(false, true)) {
+            status.postOnAnimation(refreshLog);
+        }
     }
 
     @Override
-    public void onUsbConnected() {
-        final String deviceInfo = usb.getDeviceInfo(usb.getUsbDevice());
-        status.setText(deviceInfo);
-        dfu.setUsb(usb);
+    public void onSessionOpened(DfuSession session) {
+        Usb usb = (Usb) session.getTransport();
+        if (usb.hasCachedProfile()) {
+            appendLog("known device " + usb.getProfile() + "\n");
+        } else {
+            appendLog(usb.getDeviceInfo(usb.getUsbDevice()));
+        }
+
+        // performance report of the last operation, next to the exported log
+        session.getWorker().setReportFile(new File(getExternalFilesDir(null), "report_" + usb.getDeviceKey() + ".json"));
+
+        Dfu dfu = session.getDfu();
+        dfu.setListener(this);
+        dfu.setDeltaWrite(deltaWrite);
+        String interrupted = dfu.get_journal_image();
+        if (interrupted != null) {
+            resume(session, interrupted);
+        }
+        provision_pending(session);
+        if (selected == null) {
+            select(session);
+        }
+        appendLog(registry.getSessions().size() + " devices connected\n");
+    }
+
+    @Override
+    public void onSessionClosed(DfuSession session) {
+        appendLog(session.getName() + " disconnected\n");
+        if (selected == session) {
+            session.getDfu().removeProgressListener(this);
+            selected = null;
+            List<DfuSession> sessions = registry.getSessions();
+            if (!sessions.isEmpty()) {
+                select(sessions.get(0));
+            }
+        }
+    }
+
+    private void select(DfuSession session) {
+        selected = session;
+        session.getDfu().addProgressListener(this);
+        appendLog("selected " + session.getName() + "\n");
     }
 }
\ No newline at end of file
@@ -0,0 +1,127 @@
+package com.emwaver.dfuprogrammer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads an InputStream ahead of its consumer on a background thread, into a fixed pool of
+ * recycled buffers. With two buffers, the next one is filled from storage while the consumer
+ * is still working on the current one (sending it over USB), so a slow source only stalls the
+ * consumer once it falls behind overall. read() hands the data out like an InputStream.
+ */
+public class PrefetchReader implements Closeable {
+    private static class Chunk {
+        final byte[] data;
+        int length;
+        boolean end;            // no data after this chunk
+        IOException error;
+
+        Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private final InputStream in;
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> filled;
+    private final Thread thread;
+    private volatile boolean closed;
+    private Chunk current;
+    private int pos;
+
+    /**
+     * @param in         source, closed by close()
+     * @param bufferSize bytes read ahead per buffer, e.g. one transfer block
+     * @param buffers    buffer count, 2 for double buffering
+     */
+    public PrefetchReader(InputStream in, int bufferSize, int buffers) {
+        this.in = in;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.filled = new ArrayBlockingQueue<>(buffers + 1);
+        for (int i = 0; i < buffers; i++) {
+            free.add(new Chunk(new byte[bufferSize]));
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prefetch();
+            }
+        }, "firmware-prefetch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void prefetch() {
+        try {
+            boolean end = false;
+            while (!end && !closed) {
+                Chunk chunk = free.take();
+                chunk.length = 0;
+                while (chunk.length < chunk.data.length) {
+                    int n = in.read(chunk.data, chunk.length, chunk.data.length - chunk.length);
+                    if (n < 0) {
+                        end = true;
+                        break;
+                    }
+                    chunk.length += n;
+                }
+                chunk.end = end;
+                filled.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            if (!closed) {
+                Chunk failed = new Chunk(new byte[0]);
+                failed.error = e;
+                failed.end = true;
+                filled.offer(failed);
+            }
+        }
+    }
+
+    /**
+     * Reads up to len bytes into dst, blocking only if the prefetch thread is behind.
+     *
+     * @return number of bytes read, or -1 at the end of the stream
+     * @throws IOException if reading the source failed
+     */
+    public int read(byte[] dst, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || pos == current.length) {
+            if (current != null) {
+                if (current.end) {
+                    return -1;
+                }
+                free.add(current);
+            }
+            try {
+                current = filled.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for firmware data");
+            }
+            pos = 0;
+            if (current.error != null) {
+                throw current.error;
+            }
+        }
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current.data, pos, dst, off, n);
+        pos += n;
+        return n;
+    }
+
+    // stops prefetching and closes the source
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        thread.interrupt();
+        in.close();
+    }
+}
@@ -0,0 +1,174 @@
+package com.emwaver.dfuprogrammer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Provisions a board: removes read protection if it is set, writes the firmware, then programs
+ * the option bytes together with the final RDP level. The two steps that reset the device are
+ * placed at the ends: read unprotect comes first, since it mass erases anyway (the firmware is
+ * then written without per-sector erases or delta comparison), and the option bytes come last,
+ * in a single write that is skipped when they already match, so an already provisioned unit is
+ * not reset at all.
+ * <p>
+ * The bootloader resets after read unprotect, which ends the session. When the Dfu has a
+ * journal file, run() then records the remaining steps next to it, and pending() picks them up
+ * on the session of the reattached board.
+ */
+public class Provisioning implements DfuWorker.Job<Provisioning.Report> {
+    public static class Report {
+        public boolean unprotected;             // read protection had to be removed
+        public List<AddressRange> mismatches;   // of the firmware verify
+        public boolean optionBytesWritten;
+        public long unprotectMillis;
+        public long firmwareMillis;
+        public long optionBytesMillis;
+        public long totalMillis;
+
+        public boolean isOk() {
+            return mismatches != null && mismatches.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "provisioned in %d ms: ", totalMillis));
+            if (unprotected) {
+                sb.append(String.format(Locale.US, "unprotect %d ms, ", unprotectMillis));
+            }
+            sb.append(String.format(Locale.US, "firmware %d ms", firmwareMillis));
+            if (mismatches != null && !mismatches.isEmpty()) {
+                sb.append(" (mismatching ranges ").append(mismatches).append(")");
+            }
+            if (optionBytesWritten) {
+                sb.append(String.format(Locale.US, ", option bytes %d ms", optionBytesMillis));
+            } else {
+                sb.append(", option bytes unchanged");
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final int MAGIC = 0x44465056;   // "DFPV"
+    private static final int VERSION = 1;
+
+    private final DfuWorker.Job<List<AddressRange>> firmware;
+    private final int options;
+    private long unprotectMillis = -1;  // of the session before the reset, -1 if none
+
+    /**
+     * @param firmware writes the image, e.g. a Dfu.write_image() call
+     * @param options  option halfword for Dfu.write_option_bytes(), including the final RDP level
+     */
+    public Provisioning(DfuWorker.Job<List<AddressRange>> firmware, int options) {
+        this.firmware = firmware;
+        this.options = options;
+    }
+
+    /**
+     * The provisioning a board was unprotected for before it reset, to be continued on the
+     * session of the reattached board, or null if there is none.
+     *
+     * @param firmware writes the image, as given to the interrupted provisioning
+     */
+    public static Provisioning pending(Dfu dfu, DfuWorker.Job<List<AddressRange>> firmware) throws IOException {
+        File file = pending_file(dfu);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a pending provisioning: " + file);
+            }
+            Provisioning provisioning = new Provisioning(firmware, in.readInt());
+            provisioning.unprotectMillis = in.readLong();
+            return provisioning;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static File pending_file(Dfu dfu) {
+        File journal = dfu.get_journal_file();
+        return journal != null ? new File(journal.getPath() + ".provision") : null;
+    }
+
+    private void save_pending(File file, long unprotectMillis) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(options);
+            out.writeLong(unprotectMillis);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public String name() {
+        return "provisioning";
+    }
+
+    @Override
+    public Report run(Dfu dfu) throws Exception {
+        Report report = new Report();
+        long start = System.nanoTime();
+        File pendingFile = pending_file(dfu);
+
+        if (unprotectMillis >= 0) {
+            // continued after the reset, the flash is still erased
+            report.unprotected = true;
+            report.unprotectMillis = unprotectMillis;
+        } else if (dfu.read_option_bytes() == null) {
+            // option bytes read back only while RDP is at level 0
+            long t = System.nanoTime();
+            report.unprotected = true;
+            boolean attached = dfu.read_unprotect();
+            report.unprotectMillis = (System.nanoTime() - t) / 1000000;
+            if (!attached) {
+                if (pendingFile == null) {
+                    throw new Exception("error: device reset after read unprotect, provision again once it is reattached");
+                }
+                save_pending(pendingFile, report.unprotectMillis);
+                throw new Exception("error: device reset after read unprotect, provisioning continues once it is reattached");
+            }
+        }
+        // from here on the flash no longer is known to be blank
+        if (pendingFile != null) {
+            pendingFile.delete();
+        }
+
+        long t = System.nanoTime();
+        boolean sectorErase = dfu.isSectorErase();
+        boolean deltaWrite = dfu.isDeltaWrite();
+        if (report.unprotected) {
+            // the whole flash was just erased
+            dfu.setSectorErase(false);
+            dfu.setDeltaWrite(false);
+        }
+        try {
+            report.mismatches = firmware.run(dfu);
+        } finally {
+            dfu.setSectorErase(sectorErase);
+            dfu.setDeltaWrite(deltaWrite);
+        }
+        report.firmwareMillis = (System.nanoTime() - t) / 1000000;
+
+        // never lock a unit whose firmware did not verify
+        if (report.isOk()) {
+            t = System.nanoTime();
+            report.optionBytesWritten = dfu.write_option_bytes(options);
+            report.optionBytesMillis = (System.nanoTime() - t) / 1000000;
+        }
+        report.totalMillis = (System.nanoTime() - start) / 1000000 + Math.max(unprotectMillis, 0);
+        return report;
+    }
+}
@@ -0,0 +1,257 @@
+package com.emwaver.dfuprogrammer;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * DfuTransport that passes everything through to another transport and writes a compact binary
+ * trace of it: every control transfer with its setup fields, result, start time and duration,
+ * the data an IN transfer returned and a CRC of the data an OUT transfer sent, plus alternate
+ * setting changes. DfuWorker marks where each job begins and ends, and Dfu marks where an image
+ * write begins, with the image's id, a SHA-256 of its contents and the write settings, so a
+ * write can be replayed on its own. The header holds the device's descriptors, so a
+ * TraceReplayer can stand in for the device later. A trace that cannot be written any more is
+ * abandoned; the transfers themselves are never affected.
+ */
+public class TraceRecorder implements DfuTransport, Closeable {
+    private static final String TAG = "TraceRecorder";
+
+    static final int MAGIC = 0x44465452;    // "DFTR"
+    static final int VERSION = 2;
+    static final int RECORD_END = 0;
+    static final int RECORD_TRANSFER = 1;
+    static final int RECORD_ALT_SETTING = 2;
+    static final int RECORD_JOB_BEGIN = 3;
+    static final int RECORD_JOB_END = 4;
+    static final int RECORD_IMAGE = 5;
+
+    // write settings of a RECORD_IMAGE
+    public static final int IMAGE_SECTOR_ERASE = 1;
+    public static final int IMAGE_DELTA_WRITE = 2;
+    public static final int IMAGE_DEFERRED_VERIFY = 4;
+    public static final int IMAGE_STREAM = 8;       // read once by write_stream(), not hashed
+
+    private final DfuTransport target;
+    private final DataOutputStream out;
+    private final Crc32 crc = new Crc32();
+    private final long startNanos;
+    private long records;
+    private boolean closed;
+
+    public TraceRecorder(DfuTransport target, File file) throws IOException {
+        this(target, new FileOutputStream(file));
+    }
+
+    public TraceRecorder(DfuTransport target, OutputStream out) throws IOException {
+        this.target = target;
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.startNanos = System.nanoTime();
+        DfuDescriptor descriptor = target.getDescriptor();
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+        this.out.writeLong(System.currentTimeMillis());
+        this.out.writeShort(target.getDeviceVersion());
+        this.out.writeBoolean(descriptor != null);
+        if (descriptor != null) {
+            descriptor.write(this.out);
+        }
+    }
+
+    // the transport being recorded
+    public DfuTransport getTarget() {
+        return target;
+    }
+
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+        long start = System.nanoTime();
+        int r = target.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+        record_transfer(start, System.nanoTime() - start, requestType, request, value, index, buffer, length, timeout, r);
+        return r;
+    }
+
+    // the lock only covers the trace, so close() never waits for a transfer in flight
+    private synchronized void record_transfer(long start, long duration, int requestType, int request, int value,
+                                              int index, byte[] buffer, int length, int timeout, int r) {
+        if (closed) {
+            return;
+        }
+        try {
+            out.writeByte(RECORD_TRANSFER);
+            out.writeLong(start - startNanos);
+            out.writeLong(duration);
+            out.writeByte(requestType);
+            out.writeByte(request);
+            out.writeShort(value);
+            out.writeShort(index);
+            out.writeInt(length);
+            out.writeInt(timeout);
+            out.writeInt(r);
+            if ((requestType & 0x80) != 0) {
+                if (r > 0) {
+                    out.write(buffer, 0, r);  // what the device returned
+                }
+            } else {
+                out.writeInt(payload_crc(crc, buffer, length));
+            }
+            records++;
+        } catch (IOException e) {
+            abandon(e);
+        }
+    }
+
+    // CRC-32 of an OUT payload, 0 when there is none
+    static int payload_crc(Crc32 crc, byte[] buffer, int length) {
+        if (buffer == null || length <= 0) {
+            return 0;
+        }
+        crc.reset();
+        crc.update(buffer, 0, length);
+        return crc.value();
+    }
+
+    @Override
+    public boolean setAltSetting(int alternateSetting) {
+        long start = System.nanoTime();
+        boolean r = target.setAltSetting(alternateSetting);
+        record_alt_setting(start, alternateSetting, r);
+        return r;
+    }
+
+    private synchronized void record_alt_setting(long start, int alternateSetting, boolean r) {
+        if (closed) {
+            return;
+        }
+        try {
+            out.writeByte(RECORD_ALT_SETTING);
+            out.writeLong(start - startNanos);
+            out.writeByte(alternateSetting);
+            out.writeBoolean(r);
+            records++;
+        } catch (IOException e) {
+            abandon(e);
+        }
+    }
+
+    // a job of the DfuWorker starts, see DfuWorker.Job.name()
+    public synchronized void beginJob(String name) {
+        if (closed) {
+            return;
+        }
+        try {
+            out.writeByte(RECORD_JOB_BEGIN);
+            out.writeLong(System.nanoTime() - startNanos);
+            out.writeUTF(name);
+        } catch (IOException e) {
+            abandon(e);
+        }
+    }
+
+    public synchronized void endJob(boolean ok) {
+        if (closed) {
+            return;
+        }
+        try {
+            out.writeByte(RECORD_JOB_END);
+            out.writeLong(System.nanoTime() - startNanos);
+            out.writeBoolean(ok);
+        } catch (IOException e) {
+            abandon(e);
+        }
+    }
+
+    /**
+     * An image write starts with the next transfer.
+     *
+     * @param imageId e.g. the FirmwareCache hash, or null
+     * @param sha256  see image_hash(), null when the image is streamed
+     * @param flags   IMAGE_* write settings
+     */
+    public synchronized void recordImage(String imageId, byte[] sha256, int flags) {
+        if (closed) {
+            return;
+        }
+        try {
+            out.writeByte(RECORD_IMAGE);
+            out.writeLong(System.nanoTime() - startNanos);
+            out.writeUTF(imageId != null ? imageId : "");
+            out.writeByte(sha256 != null ? sha256.length : 0);
+            if (sha256 != null) {
+                out.write(sha256);
+            }
+            out.writeByte(flags);
+        } catch (IOException e) {
+            abandon(e);
+        }
+    }
+
+    // SHA-256 over the address and data of every element, so the same build matches in any container
+    static byte[] image_hash(DfuSeFile image) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // every Android release ships SHA-256
+        }
+        for (DfuSeFile.Target target : image.getTargets()) {
+            for (DfuSeFile.Element element : target.elements) {
+                digest.update(new byte[]{(byte) (element.address >>> 24), (byte) (element.address >>> 16),
+                        (byte) (element.address >>> 8), (byte) element.address});
+                digest.update(element.data.duplicate());
+            }
+        }
+        return digest.digest();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return target.isConnected();
+    }
+
+    @Override
+    public int getDeviceVersion() {
+        return target.getDeviceVersion();
+    }
+
+    @Override
+    public DfuDescriptor getDescriptor() {
+        return target.getDescriptor();
+    }
+
+    private void abandon(IOException e) {
+        Log.w(TAG, "trace abandoned: " + e);
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // already failing
+        }
+    }
+
+    // ends the trace; later transfers still reach the target but are not recorded
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.writeByte(RECORD_END);
+        } finally {
+            out.close();
+        }
+    }
+}
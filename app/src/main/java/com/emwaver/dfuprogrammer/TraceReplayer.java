@@ -0,0 +1,422 @@
+package com.emwaver.dfuprogrammer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stands in for the device a TraceRecorder trace was taken from. Requests are answered in trace
+ * order with the recorded results and IN data, each taking as long as it took on the real device
+ * (scaled by setTimeScale()), so a session from the line can be run through Dfu again on any
+ * machine. A request that differs from the recorded one (setup fields, or the CRC of an OUT
+ * payload) fails like a broken transfer and is reported by getDivergence(); a protocol change
+ * that issues the same requests can thus be timed on identical traffic. The jobs and image
+ * writes the trace marks are listed by getJobs() and getImages(), and seek() starts a replay at
+ * one of those writes. main() replays a trace from the command line on a desktop.
+ */
+public class TraceReplayer implements DfuTransport {
+    private static class Record {
+        int type;
+        long startNanos;
+        long durationNanos;
+        int requestType;
+        int request;
+        int value;
+        int index;
+        int length;
+        int result;
+        byte[] data;        // IN data
+        int payloadCrc;     // OUT payload
+        int alternateSetting;
+        boolean altResult;
+    }
+
+    public static class Job {
+        public final String name;           // DfuWorker.Job.name()
+        public final int firstRecord;
+        public final int recordCount;
+        public final long durationNanos;    // as recorded, -1 if the trace ends inside the job
+        public final boolean ok;
+
+        Job(String name, int firstRecord, int recordCount, long durationNanos, boolean ok) {
+            this.name = name;
+            this.firstRecord = firstRecord;
+            this.recordCount = recordCount;
+            this.durationNanos = durationNanos;
+            this.ok = ok;
+        }
+    }
+
+    public static class Image {
+        public final int position;      // first record of the write, see seek()
+        public final String imageId;    // empty when the write had none
+        public final byte[] sha256;     // see TraceRecorder.image_hash(), null for a streamed image
+        public final int flags;         // TraceRecorder.IMAGE_*
+        final long startNanos;
+
+        Image(int position, long startNanos, String imageId, byte[] sha256, int flags) {
+            this.position = position;
+            this.startNanos = startNanos;
+            this.imageId = imageId;
+            this.sha256 = sha256;
+            this.flags = flags;
+        }
+
+        // true when this write was of image
+        public boolean matches(DfuSeFile image) {
+            return sha256 != null && Arrays.equals(sha256, TraceRecorder.image_hash(image));
+        }
+    }
+
+    private final List<Record> records;
+    private final List<Job> jobs;
+    private final List<Image> images;
+    private final int deviceVersion;
+    private final DfuDescriptor descriptor;
+    private final long recordedAtMillis;
+    private final Crc32 crc = new Crc32();
+    private double timeScale = 1.0;
+    private int position;
+    private int divergence = -1;
+    private String divergenceReason;
+
+    private TraceReplayer(List<Record> records, List<Job> jobs, List<Image> images, int deviceVersion,
+                          DfuDescriptor descriptor, long recordedAtMillis) {
+        this.records = records;
+        this.jobs = jobs;
+        this.images = images;
+        this.deviceVersion = deviceVersion;
+        this.descriptor = descriptor;
+        this.recordedAtMillis = recordedAtMillis;
+    }
+
+    public static TraceReplayer read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads a whole trace. A trace cut off by a crash is accepted up to its last complete record.
+     *
+     * @throws IOException if the stream is not a trace
+     */
+    public static TraceReplayer read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+        if (in.readInt() != TraceRecorder.MAGIC) {
+            throw new IOException("not a DFU trace");
+        }
+        int version = in.readInt();
+        if (version != TraceRecorder.VERSION) {
+            throw new IOException("unsupported trace version " + version);
+        }
+        long recordedAtMillis = in.readLong();
+        int deviceVersion = in.readUnsignedShort();
+        DfuDescriptor descriptor = in.readBoolean() ? DfuDescriptor.read(in) : null;
+
+        List<Record> records = new ArrayList<>();
+        List<Job> jobs = new ArrayList<>();
+        List<Image> images = new ArrayList<>();
+        String jobName = null;      // of the job in progress
+        int jobFirstRecord = 0;
+        long jobStartNanos = 0;
+        try {
+            for (int type; (type = in.readUnsignedByte()) != TraceRecorder.RECORD_END; ) {
+                Record record = new Record();
+                record.type = type;
+                record.startNanos = in.readLong();
+                if (type == TraceRecorder.RECORD_JOB_BEGIN) {
+                    jobName = in.readUTF();
+                    jobFirstRecord = records.size();
+                    jobStartNanos = record.startNanos;
+                    continue;
+                } else if (type == TraceRecorder.RECORD_JOB_END) {
+                    boolean ok = in.readBoolean();
+                    if (jobName != null) {
+                        jobs.add(new Job(jobName, jobFirstRecord, records.size() - jobFirstRecord,
+                                record.startNanos - jobStartNanos, ok));
+                        jobName = null;
+                    }
+                    continue;
+                } else if (type == TraceRecorder.RECORD_IMAGE) {
+                    String imageId = in.readUTF();
+                    byte[] sha256 = new byte[in.readUnsignedByte()];
+                    in.readFully(sha256);
+                    int flags = in.readUnsignedByte();
+                    images.add(new Image(records.size(), record.startNanos, imageId, sha256.length > 0 ? sha256 : null, flags));
+                    continue;
+                } else if (type == TraceRecorder.RECORD_TRANSFER) {
+                    record.durationNanos = in.readLong();
+                    record.requestType = in.readUnsignedByte();
+                    record.request = in.readUnsignedByte();
+                    record.value = in.readUnsignedShort();
+                    record.index = in.readUnsignedShort();
+                    record.length = in.readInt();
+                    in.readInt();   // timeout
+                    record.result = in.readInt();
+                    if ((record.requestType & 0x80) != 0) {
+                        record.data = new byte[Math.max(record.result, 0)];
+                        in.readFully(record.data);
+                    } else {
+                        record.payloadCrc = in.readInt();
+                    }
+                } else if (type == TraceRecorder.RECORD_ALT_SETTING) {
+                    record.alternateSetting = in.readUnsignedByte();
+                    record.altResult = in.readBoolean();
+                } else {
+                    throw new IOException("bad trace record type " + type);
+                }
+                records.add(record);
+            }
+        } catch (EOFException e) {
+            // unterminated trace, keep what is complete
+        }
+        if (jobName != null) {
+            jobs.add(new Job(jobName, jobFirstRecord, records.size() - jobFirstRecord, -1, false));
+        }
+        return new TraceReplayer(records, jobs, images, deviceVersion, descriptor, recordedAtMillis);
+    }
+
+    // 1 replays the recorded device latencies, 0 answers immediately
+    public void setTimeScale(double timeScale) {
+        this.timeScale = timeScale;
+    }
+
+    public int getRecordCount() {
+        return records.size();
+    }
+
+    // the DfuWorker jobs of the trace, in order
+    public List<Job> getJobs() {
+        return Collections.unmodifiableList(jobs);
+    }
+
+    // the image writes of the trace, in order
+    public List<Image> getImages() {
+        return Collections.unmodifiableList(images);
+    }
+
+    // replays from record position on, e.g. an Image.position, forgetting any divergence so far
+    public synchronized void seek(int position) {
+        if (position < 0 || position > records.size()) {
+            throw new IllegalArgumentException("position " + position + " outside the trace");
+        }
+        this.position = position;
+        divergence = -1;
+        divergenceReason = null;
+    }
+
+    // records replayed so far
+    public synchronized int getPosition() {
+        return position;
+    }
+
+    public synchronized boolean isFinished() {
+        return position == records.size();
+    }
+
+    // index of the first record the requests did not match, -1 if they all did so far
+    public synchronized int getDivergence() {
+        return divergence;
+    }
+
+    public synchronized String getDivergenceReason() {
+        return divergenceReason;
+    }
+
+    // wall clock time the trace was taken
+    public long getRecordedAtMillis() {
+        return recordedAtMillis;
+    }
+
+    // sum of the recorded transfer durations, the device's share of the session
+    public long getRecordedTransferNanos() {
+        long nanos = 0;
+        for (Record record : records) {
+            nanos += record.durationNanos;
+        }
+        return nanos;
+    }
+
+    /**
+     * Lists the jobs and image writes of a trace and, given the image that was written, replays
+     * each write of it through Dfu with the recorded settings and timing (none with --fast),
+     * reporting how long it takes now against the recording and where the requests diverged.
+     * On a desktop: ./gradlew :benchmark:replay --args='trace [image [--fast]]'
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: TraceReplayer <trace> [<image> [--fast]]");
+            System.exit(2);
+        }
+        TraceReplayer replayer = read(new File(args[0]));
+        System.out.println(String.format(Locale.US, "%s: %d records, recorded %tF %<tT, %.3f s on the bus",
+                args[0], replayer.getRecordCount(), replayer.getRecordedAtMillis(),
+                replayer.getRecordedTransferNanos() / 1e9));
+        for (Job job : replayer.getJobs()) {
+            System.out.println(String.format(Locale.US, "  job %s at record %d: %d records, %s, %s", job.name,
+                    job.firstRecord, job.recordCount,
+                    job.durationNanos >= 0 ? String.format(Locale.US, "%.3f s", job.durationNanos / 1e9) : "unfinished",
+                    job.ok ? "ok" : "failed"));
+        }
+        for (Image image : replayer.getImages()) {
+            System.out.println(String.format(Locale.US, "  image write at record %d: %s %s, flags 0x%x", image.position,
+                    image.imageId.isEmpty() ? "-" : image.imageId, image.sha256 != null ? hex(image.sha256) : "streamed",
+                    image.flags));
+        }
+        if (args.length < 2) {
+            return;
+        }
+
+        DfuSeFile image = DfuSeFile.open(new File(args[1]));
+        replayer.setTimeScale(args.length > 2 && "--fast".equals(args[2]) ? 0 : 1);
+        int replayed = 0;
+        int diverged = 0;
+        for (Image write : replayer.getImages()) {
+            if (!write.matches(image)) {
+                continue;
+            }
+            replayed++;
+            replayer.seek(write.position);
+            Dfu dfu = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID, null);
+            dfu.setSectorErase((write.flags & TraceRecorder.IMAGE_SECTOR_ERASE) != 0);
+            dfu.setDeltaWrite((write.flags & TraceRecorder.IMAGE_DELTA_WRITE) != 0);
+            dfu.setDeferredVerify((write.flags & TraceRecorder.IMAGE_DEFERRED_VERIFY) != 0);
+            dfu.setTransport(replayer);
+            String result;
+            long start = System.nanoTime();
+            try {
+                List<AddressRange> mismatches = dfu.write_image(image);
+                result = mismatches.isEmpty() ? "verified" : "mismatching ranges " + mismatches;
+            } catch (Exception e) {
+                result = e.toString();
+            } finally {
+                dfu.close();
+            }
+            long nanos = System.nanoTime() - start;
+            int end = replayer.getDivergence() >= 0 ? replayer.getDivergence() : replayer.getPosition();
+            System.out.println(String.format(Locale.US, "write at record %d: %.3f s, recorded %.3f s, %s",
+                    write.position, nanos / 1e9, replayer.recorded_nanos(write, end) / 1e9, result));
+            if (replayer.getDivergence() >= 0) {
+                diverged++;
+                System.out.println("  diverged at record " + replayer.getDivergence() + ": "
+                        + replayer.getDivergenceReason());
+            }
+        }
+        if (replayed == 0) {
+            System.err.println("no write of " + args[1] + " in the trace");
+            System.exit(1);
+        }
+        System.exit(diverged > 0 ? 1 : 0);
+    }
+
+    // wall time from the start of write to the end of record end - 1, as recorded
+    private long recorded_nanos(Image write, int end) {
+        if (end <= write.position) {
+            return 0;
+        }
+        Record last = records.get(end - 1);
+        return last.startNanos + last.durationNanos - write.startNanos;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format(Locale.US, "%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+        Record record = next(TraceRecorder.RECORD_TRANSFER);
+        if (record == null) {
+            return -1;
+        }
+        if (record.requestType != requestType || record.request != request || record.value != value
+                || record.index != index || record.length != length) {
+            return diverge(String.format(Locale.US, "expected request 0x%02x/%d value %d length %d, got 0x%02x/%d value %d length %d",
+                    record.requestType, record.request, record.value, record.length, requestType, request, value, length));
+        }
+        if ((requestType & 0x80) == 0 && TraceRecorder.payload_crc(crc, buffer, length) != record.payloadCrc) {
+            return diverge("payload of request " + request + " differs");
+        }
+        position++;
+
+        if (timeScale > 0 && record.durationNanos > 0) {
+            LockSupport.parkNanos((long) (record.durationNanos * timeScale));
+        }
+        if (record.data != null && buffer != null) {
+            System.arraycopy(record.data, 0, buffer, 0, Math.min(record.data.length, length));
+        }
+        return record.result;
+    }
+
+    @Override
+    public synchronized boolean setAltSetting(int alternateSetting) {
+        Record record = next(TraceRecorder.RECORD_ALT_SETTING);
+        if (record == null) {
+            return false;
+        }
+        if (record.alternateSetting != alternateSetting) {
+            diverge("expected alternate setting " + record.alternateSetting + ", got " + alternateSetting);
+            return false;
+        }
+        position++;
+        return record.altResult;
+    }
+
+    // the next record if it has the expected type, else null after noting the divergence
+    private Record next(int type) {
+        if (divergence >= 0) {
+            return null;    // the session already went its own way, nothing after it applies
+        }
+        if (position == records.size()) {
+            diverge("trace ended");
+            return null;
+        }
+        Record record = records.get(position);
+        if (record.type != type) {
+            diverge(type == TraceRecorder.RECORD_TRANSFER ? "expected an alternate setting change"
+                    : "expected a control transfer");
+            return null;
+        }
+        return record;
+    }
+
+    private int diverge(String reason) {
+        if (divergence < 0) {
+            divergence = position;
+            divergenceReason = reason;
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return divergence < 0;
+    }
+
+    @Override
+    public int getDeviceVersion() {
+        return deviceVersion;
+    }
+
+    @Override
+    public DfuDescriptor getDescriptor() {
+        return descriptor;
+    }
+}
@@ -17,7 +17,6 @@
 package com.emwaver.dfuprogrammer;
 
 import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.hardware.usb.UsbDevice;
@@ -25,22 +24,24 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
+import android.os.Build;
 import android.util.Log;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Locale;
 
-public class Usb {
+public class Usb implements DfuTransport {
 
     final static String TAG = "Umbrela Client: USB";
 
-    private Context mContext;
-
     private UsbManager mUsbManager;
     private UsbDevice mDevice;
-    private UsbDeviceConnection mConnection;
+    private volatile UsbDeviceConnection mConnection;
     private UsbInterface mInterface;
     private int mDeviceVersion;
+    private DfuDescriptor mDescriptor;
+    private DeviceProfiles mProfiles;
+    private DeviceProfile mProfile;
+    private boolean mProfileCached;
 
     /* USB DFU ID's (may differ by device) */
     public final static int USB_VENDOR_ID = 1155;   // VID while in DFU mode 0x0483
@@ -48,95 +49,25 @@ public class Usb {
 
     public static final String ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION";
 
-    /* Callback Interface */
-    public interface OnUsbChangeListener {
-        void onUsbConnected();
-    }
-
-    public void setOnUsbChangeListener(OnUsbChangeListener l) {
-        mOnUsbChangeListener = l;
-    }
-
-    private OnUsbChangeListener mOnUsbChangeListener;
-
     public UsbDevice getUsbDevice() {
         return mDevice;
     }
 
-    /* Broadcast Receiver*/
-    private final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
-
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-
-            if (ACTION_USB_PERMISSION.equals(action)) {
-                synchronized (this) {
-                    UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-
-                    if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                        if (device != null) {
-                            //call method to set up device communication
-                            setDevice(device);
-
-
-                            if (mOnUsbChangeListener != null) {
-                                mOnUsbChangeListener.onUsbConnected();
-                            }
-                        }
-                    } else {
-                        Log.d(TAG, "permission denied for device " + device);
-                    }
-                }
-            } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
-                synchronized (this) {
-                    //request permission for just attached USB Device if it matches the VID/PID
-                    requestPermission(mContext, USB_VENDOR_ID, USB_PRODUCT_ID);
-                }
-            } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
-                synchronized (this) {
-                    UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-                    if (mDevice != null && mDevice.equals(device)) {
-                        release();
-                    }
-                }
-            }
-        }
-    };
-
-    public BroadcastReceiver getmUsbReceiver() {
-        return mUsbReceiver;
-    }
-
-    public Usb(Context context) {
-        mContext = context;
-    }
-
     public void setUsbManager(UsbManager usbManager) {
         this.mUsbManager = usbManager;
     }
 
-    public void requestPermission(Context context, int vendorId, int productId) {
-        // Setup Pending Intent
-        PendingIntent permissionIntent = PendingIntent.getBroadcast(context, 0, new Intent(Usb.ACTION_USB_PERMISSION), 0);
-        UsbDevice device = getUsbDevice(vendorId, productId);
-
-        if (device != null) {
-            mUsbManager.requestPermission(device, permissionIntent);
-        }
+    // known devices are set up from their stored profile instead of their descriptors
+    public void setProfiles(DeviceProfiles profiles) {
+        this.mProfiles = profiles;
     }
 
-    private UsbDevice getUsbDevice(int vendorId, int productId) {
-        HashMap<String, UsbDevice> deviceList = mUsbManager.getDeviceList();
-        Iterator<UsbDevice> deviceIterator = deviceList.values().iterator();
-
-        UsbDevice device;
-        while (deviceIterator.hasNext()) {
-            device = deviceIterator.next();
-            if (device.getVendorId() == vendorId && device.getProductId() == productId) {
-                return device;
-            }
-        }
-        return null;
+    // the system adds the device and the grant to the intent, so it has to stay mutable (and
+    // explicit, which Android 14 requires of mutable ones)
+    static PendingIntent permissionIntent(Context context) {
+        Intent intent = new Intent(ACTION_USB_PERMISSION).setPackage(context.getPackageName());
+        int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S ? PendingIntent.FLAG_MUTABLE : 0;
+        return PendingIntent.getBroadcast(context, 0, intent, flags);
     }
 
     public boolean release() {
@@ -162,12 +93,27 @@ public class Usb {
                 Log.i(TAG, "open SUCCESS");
                 mConnection = connection;
 
-                // get the bcdDevice version
+                // device, configuration and DFU functional descriptors; bcdDevice is the bootloader version
                 byte[] rawDescriptor = mConnection.getRawDescriptors();
-                mDeviceVersion = rawDescriptor[13] << 8;
-                mDeviceVersion |= rawDescriptor[12];
-
-                Log.i("USB", getDeviceInfo(device));
+                mDeviceVersion = rawDescriptor != null && rawDescriptor.length >= 14
+                        ? (rawDescriptor[13] & 0xFF) << 8 | (rawDescriptor[12] & 0xFF) : 0;
+                mProfile = mProfiles != null
+                        ? mProfiles.get(device.getVendorId(), device.getProductId(), mDeviceVersion) : null;
+                if (mProfile != null && !mProfile.matches(mInterface.getName())) {
+                    Log.i(TAG, "memory map of " + mProfile.getKey() + " changed, parsing the descriptors again");
+                    mProfile = null;
+                }
+                mProfileCached = mProfile != null;
+                if (mProfileCached) {
+                    mDescriptor = mProfile.getDescriptor();
+                    Log.i(TAG, "known device " + mProfile.getKey());
+                } else {
+                    mDescriptor = parse_descriptor(device, rawDescriptor);
+                    if (mDescriptor != null && mProfiles != null) {
+                        mProfile = mProfiles.create(mDescriptor);
+                    }
+                    Log.i("USB", getDeviceInfo(device));
+                }
             } else {
                 Log.e(TAG, "open FAIL");
                 mConnection = null;
@@ -175,6 +121,45 @@ public class Usb {
         }
     }
 
+    private DfuDescriptor parse_descriptor(UsbDevice device, byte[] rawDescriptor) {
+        try {
+            DfuDescriptor descriptor = DfuDescriptor.parse(rawDescriptor);
+            // the interface strings of the alternate settings are the DfuSe memory map
+            for (int i = 0; i < device.getInterfaceCount(); i++) {
+                UsbInterface usbInterface = device.getInterface(i);
+                DfuDescriptor.AltSetting alt = descriptor.getAltSetting(usbInterface.getAlternateSetting());
+                if (alt != null && alt.interfaceNumber == usbInterface.getId()) {
+                    alt.name = usbInterface.getName();
+                }
+            }
+            return descriptor;
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "descriptors: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // selects another alternate setting (DfuSe memory region) of the claimed interface
+    @Override
+    public boolean setAltSetting(int alternateSetting) {
+        if (mConnection == null) {
+            return false;
+        }
+        if (mInterface.getAlternateSetting() == alternateSetting) {
+            return true;
+        }
+        for (int i = 0; i < mDevice.getInterfaceCount(); i++) {
+            UsbInterface usbInterface = mDevice.getInterface(i);
+            if (usbInterface.getId() == mInterface.getId() && usbInterface.getAlternateSetting() == alternateSetting
+                    && mConnection.setInterface(usbInterface)) {
+                mInterface = usbInterface;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
     public boolean isConnected() {
         return (mConnection != null);
     }
@@ -192,6 +177,9 @@ public class Usb {
         sb.append("Vendor ID " + device.getVendorId() + " (0x" + Integer.toHexString(device.getVendorId()) + ")" + "\n");
         sb.append("Product ID: " + device.getProductId() + " (0x" + Integer.toHexString(device.getProductId()) + ")" + "\n");
         sb.append("Device Ver: 0x" + Integer.toHexString(mDeviceVersion) + "\n");
+        if (mDescriptor != null) {
+            sb.append(mDescriptor);
+        }
         sb.append("Interface count: " + device.getInterfaceCount() + "\n");
 
         for (int i = 0; i < device.getInterfaceCount(); i++) {
@@ -212,10 +200,41 @@ public class Usb {
         return sb.toString();
     }
 
+    @Override
     public int getDeviceVersion() {
         return mDeviceVersion;
     }
 
+    @Override
+    public DfuDescriptor getDescriptor() {
+        return mDescriptor;
+    }
+
+    // identifies this very board across reattaches: VID/PID and its serial number, or the bus
+    // address if the serial cannot be read
+    public String getDeviceKey() {
+        String serial = null;
+        try {
+            serial = mDevice.getSerialNumber();
+        } catch (SecurityException e) {
+            // no permission for the device
+        }
+        if (serial == null || serial.isEmpty()) {
+            serial = mDevice.getDeviceName().replace('/', '_');
+        }
+        return String.format(Locale.US, "%04x_%04x_%s", mDevice.getVendorId(), mDevice.getProductId(), serial);
+    }
+
+    // the profile of the open device, null without profiles or parseable descriptors
+    public DeviceProfile getProfile() {
+        return mProfile;
+    }
+
+    // true if the open device was set up from a stored profile
+    public boolean hasCachedProfile() {
+        return mProfileCached;
+    }
+
 
     /**
      * Performs a control transaction on endpoint zero for this device.
@@ -236,9 +255,13 @@ public class Usb {
      * @return length of data transferred (or zero) for success,
      * or negative value for failure
      */
+    @Override
     public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
-        synchronized (this) {
-            return mConnection.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+        // not locked: only the session's DfuWorker thread talks to the device, see DfuSession.close()
+        UsbDeviceConnection connection = mConnection;
+        if (connection == null) {
+            return -1;
         }
+        return connection.controlTransfer(requestType, request, value, index, buffer, length, timeout);
     }
 }
@@ -0,0 +1,164 @@
+package com.emwaver.dfuprogrammer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips and damaged containers for both codecs of CompressedImage.
+ */
+public class CompressedImageTest {
+    private static final int HEADER_SIZE = 21;     // magic, version, codec, length, CRC
+    private static final int[] CODECS = {CompressedImage.CODEC_DEFLATE, CompressedImage.CODEC_LZ4};
+
+    // firmware-like: random code with repeated tables and erased gaps
+    private static byte[] firmware(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        Arrays.fill(data, size / 8, size / 4, (byte) 0xFF);
+        for (int i = size / 2; i < size * 3 / 4; i++) {
+            data[i] = data[size / 2 + (i - size / 2) % 300];
+        }
+        return data;
+    }
+
+    private static byte[] compress(byte[] data, int codec) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressedImage.write(out, data, 0, data.length, codec);
+        return out.toByteArray();
+    }
+
+    private static byte[] read_all(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    // the message of the IOException decompressing container throws, null if it does not throw
+    private static String failure(byte[] container) {
+        try {
+            read_all(CompressedImage.open(new ByteArrayInputStream(container)));
+            return null;
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+
+    @Test
+    public void roundTrip_bothCodecs() throws Exception {
+        for (int codec : CODECS) {
+            for (int size : new int[]{0, 1, 100, 64 * 1024, 64 * 1024 + 1, 200000}) {
+                byte[] data = firmware(size);
+                byte[] container = compress(data, codec);
+                assertArrayEquals("codec " + codec + ", " + size + " bytes", data,
+                        read_all(CompressedImage.open(new ByteArrayInputStream(container))));
+            }
+        }
+        // LZ4 blocks that do not compress are stored
+        byte[] random = new byte[100000];
+        new Random(1).nextBytes(random);
+        byte[] container = compress(random, CompressedImage.CODEC_LZ4);
+        assertTrue(container.length < random.length + 100);
+        assertArrayEquals(random, read_all(CompressedImage.open(new ByteArrayInputStream(container))));
+    }
+
+    @Test
+    public void plainImages_passThrough() throws Exception {
+        for (int size : new int[]{0, 3, 4, 5000}) {
+            byte[] data = firmware(size);
+            assertArrayEquals(data, read_all(CompressedImage.open(new ByteArrayInputStream(data))));
+        }
+    }
+
+    @Test
+    public void corruptPayload_isDetected() throws Exception {
+        byte[] data = firmware(150000);
+        // the last block of an LZ4 stream ends in literals, just ahead of the end marker
+        byte[] lz4 = compress(data, CompressedImage.CODEC_LZ4);
+        lz4[lz4.length - 4 - 1] ^= 1;
+        assertEquals("compressed image CRC mismatch", failure(lz4));
+
+        // anywhere in the deflate stream, the data comes out wrong or does not inflate
+        byte[] deflate = compress(data, CompressedImage.CODEC_DEFLATE);
+        for (int offset : new int[]{HEADER_SIZE + 10, deflate.length / 2, deflate.length - 1}) {
+            byte[] corrupt = deflate.clone();
+            corrupt[offset] ^= 0x10;
+            String message = failure(corrupt);
+            assertNotNull("corruption at " + offset + " not detected", message);
+            assertTrue(message, message.contains("CRC") || message.contains("corrupt") || message.contains("truncated"));
+        }
+    }
+
+    @Test
+    public void truncatedContainer_isDetected() throws Exception {
+        byte[] data = firmware(150000);
+        for (int codec : CODECS) {
+            byte[] container = compress(data, codec);
+            for (int length : new int[]{HEADER_SIZE, HEADER_SIZE + 100, container.length / 2, container.length - 5}) {
+                String message = failure(Arrays.copyOf(container, length));
+                assertNotNull("codec " + codec + " cut at " + length + " accepted", message);
+            }
+        }
+    }
+
+    @Test
+    public void badHeader_isRejected() throws Exception {
+        byte[] container = compress(firmware(1000), CompressedImage.CODEC_LZ4);
+
+        byte[] version = container.clone();
+        version[7] = 9;
+        assertEquals("unsupported compressed image version 9", failure(version));
+
+        byte[] codec = container.clone();
+        codec[8] = 7;
+        assertEquals("unknown compressed image codec 7", failure(codec));
+
+        byte[] block = container.clone();
+        ByteBuffer.wrap(block).putInt(HEADER_SIZE, 0x00020000);     // larger than any block
+        assertEquals("corrupt compressed image: block of 131072 bytes", failure(block));
+    }
+
+    @Test
+    public void lz4Decompress_checksBounds() throws Exception {
+        byte[] dst = new byte[64];
+        // a literal, then a match reaching before the start of the output
+        assertLz4Fails(new byte[]{0x10, 'a', 0x05, 0x00}, dst, "match out of bounds");
+        // offset 0
+        assertLz4Fails(new byte[]{0x10, 'a', 0x00, 0x00}, dst, "match out of bounds");
+        // more literals than the block holds
+        assertLz4Fails(new byte[]{0x50, 'a', 'b'}, dst, "literals out of bounds");
+        // a match longer than the output buffer
+        assertLz4Fails(new byte[]{0x1F, 'a', 0x01, 0x00, (byte) 200}, dst, "match out of bounds");
+        // token without its offset
+        assertLz4Fails(new byte[]{0x10, 'a', 0x01}, dst, "truncated block");
+
+        // a literal, an overlapping match repeating it, and the closing literal
+        assertEquals(10, CompressedImage.lz4_decompress(new byte[]{0x14, 'a', 0x01, 0x00, 0x10, 'b'}, 6, dst));
+        for (int i = 0; i < 9; i++) {
+            assertEquals('a', dst[i]);
+        }
+        assertEquals('b', dst[9]);
+    }
+
+    private static void assertLz4Fails(byte[] block, byte[] dst, String message) {
+        try {
+            CompressedImage.lz4_decompress(block, block.length, dst);
+            fail("accepted " + Arrays.toString(block));
+        } catch (IOException expected) {
+            assertEquals("corrupt compressed image: " + message, expected.getMessage());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.emwaver.dfuprogrammer;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stores and reloads device profiles.
+ */
+public class DeviceProfilesTest {
+    @Test
+    public void deviceProfile_survivesReload() throws Exception {
+        File dir = File.createTempFile("profiles", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        DfuSimulator sim = new DfuSimulator();
+        DfuDescriptor descriptor = sim.getDescriptor();
+        DeviceProfile profile = new DeviceProfiles(dir).create(descriptor);
+        profile.setWriteNanosPerByte(1234);
+        new DeviceProfiles(dir).save(profile);
+
+        DeviceProfile loaded = new DeviceProfiles(dir).get(descriptor.getVendorId(), descriptor.getProductId(),
+                descriptor.getDeviceVersion());
+        assertNotNull(loaded);
+        assertEquals(descriptor.getTransferSize(), loaded.getDescriptor().getTransferSize());
+        assertEquals(descriptor.getAttributes(), loaded.getDescriptor().getAttributes());
+        assertEquals(descriptor.getAltSetting(1).getName(), loaded.getDescriptor().getAltSetting(1).getName());
+        assertEquals(profile.getLayout().getName(), loaded.getLayout().getName());
+        assertEquals(1234, loaded.getWriteNanosPerByte());
+        assertNull(new DeviceProfiles(dir).get(descriptor.getVendorId(), descriptor.getProductId(), 0x1234));
+
+        // same VID/PID/bcdDevice, but a bootloader with another memory map
+        assertTrue(loaded.matches(descriptor.getAltSetting(0).getName()));
+        assertFalse(loaded.matches("@Internal Flash  /0x08000000/04*016Kg,01*064Kg,03*128Kg"));
+        assertFalse(loaded.matches(null));
+
+        Dfu dfu = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID, null);
+        dfu.set_profile(loaded);
+        dfu.setTransport(sim);
+        assertEquals(descriptor.getTransferSize(), dfu.get_transfer_size());
+    }
+}
@@ -0,0 +1,33 @@
+package com.emwaver.dfuprogrammer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parses DFU descriptor sets as read from real bootloaders.
+ */
+public class DfuDescriptorTest {
+    @Test
+    public void descriptor_parsesStm32Bootloader() {
+        byte[] raw = {
+                0x12, 0x01, 0x00, 0x02, 0x00, 0x00, 0x00, 0x40, (byte) 0x83, 0x04, 0x11, (byte) 0xDF, 0x00, 0x22, 0x01, 0x02, 0x03, 0x01,
+                0x09, 0x02, 0x36, 0x00, 0x01, 0x01, 0x00, (byte) 0xC0, 0x32,
+                0x09, 0x04, 0x00, 0x00, 0x00, (byte) 0xFE, 0x01, 0x02, 0x04,
+                0x09, 0x04, 0x00, 0x01, 0x00, (byte) 0xFE, 0x01, 0x02, 0x05,
+                0x09, 0x04, 0x00, 0x02, 0x00, (byte) 0xFE, 0x01, 0x02, 0x06,
+                0x09, 0x04, 0x00, 0x03, 0x00, (byte) 0xFE, 0x01, 0x02, 0x07,
+                0x09, 0x21, 0x0B, (byte) 0xFF, 0x00, 0x00, 0x08, 0x1A, 0x01,
+        };
+        DfuDescriptor descriptor = DfuDescriptor.parse(raw);
+
+        assertEquals(0x2200, descriptor.getDeviceVersion());
+        assertEquals(2048, descriptor.getTransferSize());
+        assertEquals(0x011A, descriptor.getDfuVersion());
+        assertTrue(descriptor.canUpload());
+        assertTrue(descriptor.willDetach());
+        assertFalse(descriptor.isManifestationTolerant());
+        assertEquals(4, descriptor.getAltSettings().size());
+        assertEquals(5, descriptor.getAltSetting(1).stringIndex);
+    }
+}
@@ -0,0 +1,99 @@
+package com.emwaver.dfuprogrammer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds DfuSe containers (UM0391) for tests: any number of targets, each with any number of
+ * elements, followed by a DFU suffix with a correct CRC.
+ */
+class DfuSeBuilder {
+    private static class Target {
+        final int alternateSetting;
+        final String name;
+        final List<Integer> addresses = new ArrayList<>();
+        final List<byte[]> data = new ArrayList<>();
+
+        Target(int alternateSetting, String name) {
+            this.alternateSetting = alternateSetting;
+            this.name = name;
+        }
+    }
+
+    private final List<Target> targets = new ArrayList<>();
+    private boolean suffix = true;
+
+    DfuSeBuilder target(int alternateSetting, String name) {
+        targets.add(new Target(alternateSetting, name));
+        return this;
+    }
+
+    // adds an element to the last target, opening target 0 if there is none yet
+    DfuSeBuilder element(int address, byte[] data) {
+        if (targets.isEmpty()) {
+            target(0, "Internal Flash");
+        }
+        Target target = targets.get(targets.size() - 1);
+        target.addresses.add(address);
+        target.data.add(data);
+        return this;
+    }
+
+    DfuSeBuilder withoutSuffix() {
+        suffix = false;
+        return this;
+    }
+
+    // a container holding a single element
+    static byte[] single(int address, byte[] data) {
+        return new DfuSeBuilder().element(address, data).build();
+    }
+
+    byte[] build() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (Target target : targets) {
+            int size = 0;
+            for (byte[] data : target.data) {
+                size += 8 + data.length;
+            }
+            ByteBuffer prefix = ByteBuffer.allocate(274).order(ByteOrder.LITTLE_ENDIAN);
+            prefix.put("Target".getBytes());
+            prefix.put((byte) target.alternateSetting);
+            prefix.putInt(target.name.isEmpty() ? 0 : 1);
+            byte[] name = target.name.getBytes();
+            prefix.put(name, 0, Math.min(name.length, 254));
+            prefix.position(266);
+            prefix.putInt(size);
+            prefix.putInt(target.data.size());
+            body.write(prefix.array(), 0, prefix.capacity());
+            for (int i = 0; i < target.data.size(); i++) {
+                byte[] data = target.data.get(i);
+                ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(target.addresses.get(i)).putInt(data.length);
+                body.write(header.array(), 0, 8);
+                body.write(data, 0, data.length);
+            }
+        }
+
+        int size = 11 + body.size();
+        ByteBuffer file = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        file.put("DfuSe".getBytes()).put((byte) 0x01).putInt(size).put((byte) targets.size());
+        file.put(body.toByteArray());
+        return suffix ? withSuffix(file.array()) : file.array();
+    }
+
+    // data followed by a DFU suffix, e.g. for a raw binary
+    static byte[] withSuffix(byte[] data) {
+        ByteBuffer file = ByteBuffer.allocate(data.length + 16).order(ByteOrder.LITTLE_ENDIAN);
+        file.put(data);
+        file.putShort((short) 0xFFFF).putShort((short) Usb.USB_PRODUCT_ID).putShort((short) Usb.USB_VENDOR_ID);
+        file.putShort((short) 0x011A).put((byte) 'U').put((byte) 'F').put((byte) 'D').put((byte) 16);
+        Crc32 crc = new Crc32();
+        crc.update(file.array(), 0, file.position());
+        file.putInt(crc.dfuValue());
+        return file.array();
+    }
+}
@@ -0,0 +1,216 @@
+package com.emwaver.dfuprogrammer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parses DfuSe containers built by DfuSeBuilder, damaged copies of them and raw binaries.
+ */
+public class DfuSeFileTest {
+    private static byte[] firmware(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] bytes(DfuSeFile.Element element) {
+        ByteBuffer data = element.data.duplicate();
+        byte[] out = new byte[data.remaining()];
+        data.get(out);
+        return out;
+    }
+
+    private static void assertInvalid(byte[] file, String message) {
+        try {
+            DfuSeFile.parse(ByteBuffer.wrap(file));
+            fail("accepted a file that should fail with " + message);
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void parse_multipleTargetsAndElements() throws Exception {
+        byte[] first = firmware(1000);
+        byte[] second = firmware(17);
+        byte[] third = firmware(2048);
+        byte[] options = firmware(16);
+        DfuSeBuilder builder = new DfuSeBuilder()
+                .target(0, "Internal Flash").element(0x08000000, first).element(0x08004000, second)
+                .element(0x08020000, third)
+                .target(1, "Option Bytes").element(0x1FFFC000, options)
+                .target(2, "");
+        byte[] withSuffix = builder.build();
+        byte[] withoutSuffix = builder.withoutSuffix().build();
+        for (byte[] file : new byte[][]{withSuffix, withoutSuffix}) {
+            DfuSeFile dfuSe = DfuSeFile.parse(ByteBuffer.wrap(file));
+            assertFalse(dfuSe.isRaw());
+            assertEquals(3, dfuSe.getTargets().size());
+            assertEquals(1000 + 17 + 2048 + 16, dfuSe.getPayloadSize());
+
+            DfuSeFile.Target flash = dfuSe.getTargets().get(0);
+            assertEquals(0, flash.alternateSetting);
+            assertEquals("Internal Flash", flash.name);
+            assertEquals(3, flash.elements.size());
+            assertEquals(0x08000000, flash.elements.get(0).address);
+            assertArrayEquals(first, bytes(flash.elements.get(0)));
+            assertEquals(0x08004000, flash.elements.get(1).address);
+            assertArrayEquals(second, bytes(flash.elements.get(1)));
+            assertEquals(0x08020000, flash.elements.get(2).address);
+            assertEquals(2048, flash.elements.get(2).size());
+            assertArrayEquals(third, bytes(flash.elements.get(2)));
+
+            DfuSeFile.Target optionBytes = dfuSe.getTargets().get(1);
+            assertEquals(1, optionBytes.alternateSetting);
+            assertEquals("Option Bytes", optionBytes.name);
+            assertEquals(1, optionBytes.elements.size());
+            assertEquals(0x1FFFC000, optionBytes.elements.get(0).address);
+            assertArrayEquals(options, bytes(optionBytes.elements.get(0)));
+
+            DfuSeFile.Target empty = dfuSe.getTargets().get(2);
+            assertEquals(2, empty.alternateSetting);
+            assertEquals("", empty.name);
+            assertTrue(empty.elements.isEmpty());
+        }
+
+        DfuSeFile suffixed = DfuSeFile.parse(ByteBuffer.wrap(withSuffix));
+        assertEquals(Usb.USB_VENDOR_ID, suffixed.getVendorId());
+        assertEquals(Usb.USB_PRODUCT_ID, suffixed.getProductId());
+        assertEquals(0xFFFF, suffixed.getDeviceVersion());
+        DfuSeFile bare = DfuSeFile.parse(ByteBuffer.wrap(withoutSuffix));
+        assertEquals(0xFFFF, bare.getVendorId());
+        assertEquals(0xFFFF, bare.getProductId());
+    }
+
+    @Test
+    public void open_mapsAFile() throws Exception {
+        byte[] data = firmware(5000);
+        File file = File.createTempFile("dfuse", ".dfu");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(DfuSeBuilder.single(0x08008000, data));
+            } finally {
+                out.close();
+            }
+            DfuSeFile dfuSe = DfuSeFile.open(file);
+            assertEquals(1, dfuSe.getTargets().size());
+            DfuSeFile.Element element = dfuSe.getTargets().get(0).elements.get(0);
+            assertEquals(0x08008000, element.address);
+            assertArrayEquals(data, bytes(element));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void parse_rawBinary() throws Exception {
+        byte[] data = firmware(3000);
+        for (byte[] file : new byte[][]{data, DfuSeBuilder.withSuffix(data)}) {
+            DfuSeFile dfuSe = DfuSeFile.parse(ByteBuffer.wrap(file));
+            assertTrue(dfuSe.isRaw());
+            assertEquals(1, dfuSe.getTargets().size());
+            DfuSeFile.Element element = dfuSe.getTargets().get(0).elements.get(0);
+            assertEquals(Dfu.mInternalFlashStartAddress, element.address);
+            assertArrayEquals(data, bytes(element));
+        }
+    }
+
+    @Test
+    public void corruptData_failsTheCrc() {
+        byte[] file = DfuSeBuilder.single(0x08000000, firmware(4096));
+        file[11 + 274 + 8 + 100] ^= 1;
+        assertInvalid(file, "CRC mismatch");
+
+        byte[] raw = DfuSeBuilder.withSuffix(firmware(100));
+        raw[0] ^= (byte) 0x80;
+        assertInvalid(raw, "CRC mismatch");
+
+        byte[] crc = DfuSeBuilder.single(0x08000000, firmware(64));
+        crc[crc.length - 1] ^= 1;
+        assertInvalid(crc, "CRC mismatch");
+    }
+
+    @Test
+    public void truncatedElement_fails() {
+        byte[] data = firmware(4096);
+        byte[] file = new DfuSeBuilder().element(0x08000000, data).withoutSuffix().build();
+
+        // cut inside the element data, and inside the element header
+        assertInvalid(Arrays.copyOf(file, file.length - 1), "is truncated");
+        assertInvalid(Arrays.copyOf(file, 11 + 274 + 4), "is truncated");
+        assertInvalid(Arrays.copyOf(file, 11 + 100), "is truncated");
+        assertInvalid(Arrays.copyOf(file, 8), "truncated prefix");
+
+        // an element claiming more than its target holds
+        byte[] oversized = file.clone();
+        oversized[11 + 274 + 4 + 2] = 0x01;
+        assertInvalid(oversized, "element 0 is truncated");
+
+        // a negative element size
+        byte[] negative = file.clone();
+        negative[11 + 274 + 4 + 3] = (byte) 0x80;
+        assertInvalid(negative, "element 0 is truncated");
+
+        // element counts the target cannot hold, in a file whose CRC is valid
+        for (int count : new int[]{-1, Integer.MAX_VALUE, 4096 / 8 + 2}) {
+            byte[] counted = file.clone();
+            ByteBuffer.wrap(counted).order(ByteOrder.LITTLE_ENDIAN).putInt(11 + 270, count);
+            assertInvalid(DfuSeBuilder.withSuffix(counted), "bad element count " + count);
+        }
+
+        // a second target announced in the prefix but missing
+        byte[] missing = file.clone();
+        missing[10] = 2;
+        assertInvalid(missing, "target 1 is truncated");
+    }
+
+    @Test
+    public void badHeader_fails() {
+        byte[] file = new DfuSeBuilder().element(0x08000000, firmware(64)).withoutSuffix().build();
+
+        byte[] version = file.clone();
+        version[5] = 0x02;
+        assertInvalid(version, "unsupported version");
+
+        byte[] signature = file.clone();
+        signature[11] = 'X';
+        assertInvalid(signature, "missing signature for target 0");
+
+        byte[] suffix = DfuSeBuilder.withSuffix(firmware(8));
+        suffix[suffix.length - 5] = 8;
+        assertInvalid(suffix, "bad suffix length");
+    }
+
+    @Test
+    public void crc32_matchesTheCheckValue() {
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        Crc32 crc = new Crc32();
+        crc.update(check, 0, check.length);
+        assertEquals(0xCBF43926, crc.value());
+        assertEquals(~0xCBF43926, crc.dfuValue());
+
+        // split updates, the buffer variant and reset agree with java.util.zip
+        byte[] data = firmware(10000);
+        CRC32 reference = new CRC32();
+        reference.update(data, 0, data.length);
+        crc.reset();
+        crc.update(data, 0, 3333);
+        crc.update(ByteBuffer.wrap(data), 3333, data.length - 3333);
+        assertEquals((int) reference.getValue(), crc.value());
+
+        crc.reset();
+        assertEquals(0, crc.value());
+    }
+}
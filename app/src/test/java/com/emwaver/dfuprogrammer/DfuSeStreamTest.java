@@ -0,0 +1,200 @@
+package com.emwaver.dfuprogrammer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streams DfuSe containers and raw binaries of sizes around the block and suffix boundaries.
+ */
+public class DfuSeStreamTest {
+    private static final int BLOCK = 2048;
+    private static final int[] SIZES = {1, 15, 16, 17, 27, BLOCK - 1, BLOCK, BLOCK + 1, 2 * BLOCK, 2 * BLOCK + 16};
+
+    private static byte[] firmware(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static DfuSeStream open(byte[] file, int bufferSize) {
+        return new DfuSeStream(new PrefetchReader(new ByteArrayInputStream(file), bufferSize, 2));
+    }
+
+    // everything the current element hands out, read in chunks of chunk bytes
+    private static byte[] read_element(DfuSeStream stream, int chunk) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[chunk];
+        int n;
+        while ((n = stream.read(buffer, chunk)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void raw_withAndWithoutSuffix() throws Exception {
+        for (int size : SIZES) {
+            byte[] data = firmware(size);
+            for (byte[] file : new byte[][]{data, DfuSeBuilder.withSuffix(data)}) {
+                for (int chunk : new int[]{1000, BLOCK}) {
+                    String what = size + " bytes" + (file == data ? "" : " + suffix") + " in " + chunk + " byte reads";
+                    DfuSeStream stream = open(file, BLOCK);
+                    assertTrue(what, stream.nextTarget());
+                    assertTrue(what, stream.isRaw());
+                    assertTrue(what, stream.nextElement());
+                    assertEquals(what, Dfu.mInternalFlashStartAddress, stream.getAddress());
+                    assertArrayEquals(what, data, read_element(stream, chunk));
+                    assertFalse(what, stream.nextElement());
+                    assertFalse(what, stream.nextTarget());
+                    stream.finish();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void dfuSe_withAndWithoutSuffix() throws Exception {
+        for (int size : SIZES) {
+            byte[] first = firmware(size);
+            byte[] second = firmware(size + 3);
+            DfuSeBuilder builder = new DfuSeBuilder()
+                    .target(0, "Internal Flash").element(0x08000000, first).element(0x08010000, second)
+                    .target(1, "Option Bytes").element(0x1FFFC000, firmware(16));
+            for (byte[] file : new byte[][]{builder.build(), builder.withoutSuffix().build()}) {
+                DfuSeStream stream = open(file, 1000);     // buffers not aligned to anything in the file
+                assertTrue(stream.nextTarget());
+                assertFalse(stream.isRaw());
+                assertEquals(0, stream.getAlternateSetting());
+                assertEquals("Internal Flash", stream.getName());
+                assertTrue(stream.nextElement());
+                assertEquals(0x08000000, stream.getAddress());
+                assertArrayEquals(first, read_element(stream, BLOCK));
+                assertTrue(stream.nextElement());
+                assertEquals(0x08010000, stream.getAddress());
+                assertArrayEquals(second, read_element(stream, BLOCK));
+                assertFalse(stream.nextElement());
+
+                // the option bytes are skipped without being read
+                assertTrue(stream.nextTarget());
+                assertEquals(1, stream.getAlternateSetting());
+                assertFalse(stream.nextTarget());
+                stream.finish();
+            }
+        }
+    }
+
+    @Test
+    public void corruptData_failsTheCrc() throws Exception {
+        byte[] file = DfuSeBuilder.single(0x08000000, firmware(3 * BLOCK));
+        file[11 + 274 + 8 + BLOCK] ^= 1;
+        DfuSeStream stream = open(file, BLOCK);
+        stream.nextTarget();
+        stream.nextElement();
+        read_element(stream, BLOCK);
+        try {
+            stream.finish();
+            fail("CRC mismatch not detected");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("CRC"));
+        }
+
+        byte[] raw = DfuSeBuilder.withSuffix(firmware(BLOCK + 1));
+        raw[100] ^= 1;
+        stream = open(raw, BLOCK);
+        stream.nextTarget();
+        stream.nextElement();
+        read_element(stream, BLOCK);
+        try {
+            stream.finish();
+            fail("CRC mismatch not detected in a raw binary");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("CRC"));
+        }
+    }
+
+    @Test
+    public void truncatedContainer_fails() throws Exception {
+        byte[] file = DfuSeBuilder.single(0x08000000, firmware(3 * BLOCK));
+        for (int length : new int[]{11 + 100, 11 + 274 + 4, 11 + 274 + 8 + BLOCK, file.length - 1}) {
+            DfuSeStream stream = open(Arrays.copyOf(file, length), BLOCK);
+            try {
+                while (stream.nextTarget()) {
+                    while (stream.nextElement()) {
+                        read_element(stream, BLOCK);
+                    }
+                }
+                stream.finish();
+                fail(length + " of " + file.length + " bytes accepted");
+            } catch (IOException expected) {
+                // truncated, or the suffix is cut short
+            }
+        }
+    }
+
+    @Test
+    public void badElementSize_fails() throws Exception {
+        byte[] file = new DfuSeBuilder().element(0x08000000, firmware(100)).withoutSuffix().build();
+        file[11 + 274 + 4] = (byte) 200;    // element claims more than its target holds
+        DfuSeStream stream = open(file, BLOCK);
+        assertTrue(stream.nextTarget());
+        try {
+            stream.nextElement();
+            fail("oversized element accepted");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("truncated"));
+        }
+    }
+
+    @Test
+    public void prefetch_handsOutEveryByteOnce() throws Exception {
+        byte[] data = firmware(10000);
+        for (int bufferSize : new int[]{1, 7, 4096, 20000}) {
+            PrefetchReader reader = new PrefetchReader(new ByteArrayInputStream(data), bufferSize, 2);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[333];
+            int n;
+            while ((n = reader.read(chunk, 0, chunk.length)) >= 0) {
+                out.write(chunk, 0, n);
+            }
+            assertEquals(-1, reader.read(chunk, 0, chunk.length));
+            reader.close();
+            assertArrayEquals("buffer size " + bufferSize, data, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void prefetch_passesOnReadErrors() throws Exception {
+        final IOException failure = new IOException("storage went away");
+        PrefetchReader reader = new PrefetchReader(new InputStream() {
+            private int left = 100;
+
+            @Override
+            public int read() throws IOException {
+                if (left == 0) {
+                    throw failure;
+                }
+                left--;
+                return 1;
+            }
+        }, 64, 2);
+        byte[] chunk = new byte[64];
+        assertEquals(64, reader.read(chunk, 0, chunk.length));
+        try {
+            while (reader.read(chunk, 0, chunk.length) >= 0) {
+                // up to the failure
+            }
+            fail("read error swallowed");
+        } catch (IOException expected) {
+            assertSame(failure, expected);
+        }
+        reader.close();
+    }
+}
@@ -0,0 +1,454 @@
+package com.emwaver.dfuprogrammer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process model of the STM32F405 DfuSe bootloader, usable wherever Dfu expects a device.
+ * It follows the DFU 1.1 state machine, the sector layout of mInternalFlashString and the DfuSe
+ * commands (0x21 set address pointer, 0x41 page/mass erase, 0x92 read unprotect). Erase and
+ * program requests report a bwPollTimeout and stay dfuDNBUSY for that long, with configurable
+ * latencies, so protocol changes can be benchmarked and regression-tested without a board.
+ * Like the real bootloader, it resets after read unprotect and after an option byte write: it
+ * answers the GETSTATUS that runs them, then drops off the bus until setConnected(true).
+ *
+ * Alternate setting 0 exposes internal flash and SRAM, 1 the option bytes.
+ */
+public class DfuSimulator implements DfuTransport {
+    // DFU requests
+    private static final int DFU_DNLOAD = 0x01;
+    private static final int DFU_UPLOAD = 0x02;
+    private static final int DFU_GETSTATUS = 0x03;
+    private static final int DFU_CLRSTATUS = 0x04;
+    private static final int DFU_GETSTATE = 0x05;
+    private static final int DFU_ABORT = 0x06;
+
+    // bState
+    public static final int STATE_DFU_IDLE = 0x02;
+    public static final int STATE_DFU_DOWNLOAD_SYNC = 0x03;
+    public static final int STATE_DFU_DOWNLOAD_BUSY = 0x04;
+    public static final int STATE_DFU_DOWNLOAD_IDLE = 0x05;
+    public static final int STATE_DFU_MANIFEST_SYNC = 0x06;
+    public static final int STATE_DFU_MANIFEST = 0x07;
+    public static final int STATE_DFU_MANIFEST_WAIT_RESET = 0x08;
+    public static final int STATE_DFU_UPLOAD_IDLE = 0x09;
+    public static final int STATE_DFU_ERROR = 0x0A;
+
+    // bStatus
+    private static final int STATUS_OK = 0x00;
+    private static final int STATUS_ERR_TARGET = 0x01;
+    private static final int STATUS_ERR_WRITE = 0x03;
+    private static final int STATUS_ERR_ADDRESS = 0x08;
+    private static final int STATUS_ERR_VENDOR = 0x0B;
+    private static final int STATUS_ERR_STALLEDPKT = 0x0F;
+
+    public static final int SRAM_START = 0x20000000;
+    public static final int SRAM_SIZE = 128 * 1024;
+    public static final int OPTION_BYTES_SIZE = 16;
+    private static final int PROGRAM_CHUNK = 2048;  // programMillisPerBlock is per this many bytes
+    private static final int ATTRIBUTES = DfuDescriptor.ATTR_CAN_DNLOAD | DfuDescriptor.ATTR_CAN_UPLOAD
+            | DfuDescriptor.ATTR_WILL_DETACH;   // what the STM32 system bootloader reports
+    private static final String OPTION_BYTES_DESCRIPTOR = "@Option Bytes  /0x1FFFC000/01*016 e";
+
+    private final FlashLayout layout = FlashLayout.parse(Dfu.mInternalFlashString);
+    private final byte[] flash = new byte[(int) layout.getSize()];
+    private final byte[] sram = new byte[SRAM_SIZE];
+    private final byte[] optionBytes = new byte[OPTION_BYTES_SIZE];
+
+    private int state = STATE_DFU_IDLE;
+    private int status = STATUS_OK;
+    private int altSetting;
+    private int addressPointer = Dfu.mInternalFlashStartAddress;
+    private boolean connected = true;
+    private int transferSize = 2048;
+    private boolean readProtected;
+    private int resets;
+    private boolean resetPending;   // the bootloader resets once it answered the current GETSTATUS
+
+    // the DNLOAD waiting for its GETSTATUS, and when the busy operation finishes
+    private byte[] pending;
+    private int pendingBlock;
+    private int pendingLength;
+    private long busyUntil;
+
+    // latencies
+    private int commandMillis = 1;              // set address pointer
+    private int programMillisPerBlock = 2;      // one 2 KB block
+    private int eraseMillisPer16K = 250;        // STM32F4 sector erase scales with sector size
+    private int massEraseMillis = 8000;
+    private long transferNanos;                 // bus time added to every control transfer
+
+    private final long[] requestCounts = new long[8];
+
+    public DfuSimulator() {
+        Arrays.fill(flash, (byte) 0xFF);
+        reset_option_bytes();
+    }
+
+    // zero latencies make every erase and program finish on the GETSTATUS that starts it
+    public void setLatencies(int commandMillis, int programMillisPerBlock, int eraseMillisPer16K, int massEraseMillis) {
+        this.commandMillis = commandMillis;
+        this.programMillisPerBlock = programMillisPerBlock;
+        this.eraseMillisPer16K = eraseMillisPer16K;
+        this.massEraseMillis = massEraseMillis;
+    }
+
+    // wTransferSize reported in the descriptor, the STM32 bootloader uses 2048
+    public void setTransferSize(int transferSize) {
+        this.transferSize = transferSize;
+    }
+
+    public void setTransferLatencyMicros(int micros) {
+        this.transferNanos = micros * 1000L;
+    }
+
+    public void setReadProtected(boolean readProtected) {
+        this.readProtected = readProtected;
+    }
+
+    public boolean isReadProtected() {
+        return readProtected;
+    }
+
+    // a detached device fails every transfer, like a board whose cable was pulled; true reattaches it
+    public void setConnected(boolean connected) {
+        this.connected = connected;
+    }
+
+    // number of times the bootloader reset itself, e.g. after read unprotect
+    public int getResetCount() {
+        return resets;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public long getRequestCount(int request) {
+        return requestCounts[request];
+    }
+
+    public long getTotalRequests() {
+        long total = 0;
+        for (long count : requestCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    // preloads memory as if it had been programmed earlier
+    public void load(int address, byte[] data) {
+        for (int i = 0; i < data.length; i++) {
+            byte[] region = region(address + i);
+            if (region == null) throw new IllegalArgumentException("no memory at 0x" + Integer.toHexString(address + i));
+            region[offset(address + i)] = data[i];
+        }
+    }
+
+    public byte[] getMemory(int address, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            byte[] region = region(address + i);
+            if (region == null) throw new IllegalArgumentException("no memory at 0x" + Integer.toHexString(address + i));
+            data[i] = region[offset(address + i)];
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+        if (!connected) {
+            return -1;
+        }
+        if (transferNanos > 0) {
+            LockSupport.parkNanos(transferNanos);
+        }
+        if (request >= 0 && request < requestCounts.length) {
+            requestCounts[request]++;
+        }
+
+        switch (request) {
+            case DFU_DNLOAD:
+                return dnload(value, buffer, length);
+            case DFU_UPLOAD:
+                return upload(value, buffer, length);
+            case DFU_GETSTATUS:
+                return get_status(buffer, length);
+            case DFU_CLRSTATUS:
+                // the ST bootloader accepts CLRSTATUS in any idle-like state
+                state = STATE_DFU_IDLE;
+                status = STATUS_OK;
+                return 0;
+            case DFU_GETSTATE:
+                if (buffer == null || length < 1) return stall();
+                buffer[0] = (byte) state;
+                return 1;
+            case DFU_ABORT:
+                if (state == STATE_DFU_IDLE || state == STATE_DFU_DOWNLOAD_IDLE || state == STATE_DFU_UPLOAD_IDLE
+                        || state == STATE_DFU_DOWNLOAD_SYNC) {
+                    state = STATE_DFU_IDLE;
+                    pending = null;
+                    return 0;
+                }
+                return stall();
+            default:
+                return stall();
+        }
+    }
+
+    @Override
+    public synchronized boolean setAltSetting(int alternateSetting) {
+        if (alternateSetting < 0 || alternateSetting > 1) return false;
+        altSetting = alternateSetting;
+        state = STATE_DFU_IDLE;
+        status = STATUS_OK;
+        return true;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public int getDeviceVersion() {
+        return 0x2200;
+    }
+
+    @Override
+    public DfuDescriptor getDescriptor() {
+        List<DfuDescriptor.AltSetting> alts = new ArrayList<>();
+        String[] names = {Dfu.mInternalFlashString, OPTION_BYTES_DESCRIPTOR};
+        for (int alt = 0; alt < names.length; alt++) {
+            DfuDescriptor.AltSetting setting = new DfuDescriptor.AltSetting(0, alt, 4 + alt);
+            setting.name = names[alt];
+            alts.add(setting);
+        }
+        return new DfuDescriptor(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID, getDeviceVersion(), ATTRIBUTES, 255,
+                transferSize, 0x011A, alts);
+    }
+
+    private int dnload(int block, byte[] buffer, int length) {
+        if (state != STATE_DFU_IDLE && state != STATE_DFU_DOWNLOAD_IDLE) {
+            return stall();
+        }
+        if (length == 0) {
+            state = STATE_DFU_MANIFEST_SYNC;
+            return 0;
+        }
+        if (block == 1 || buffer == null || length > transferSize) {
+            return stall();
+        }
+        pending = Arrays.copyOf(buffer, length);
+        pendingBlock = block;
+        pendingLength = length;
+        state = STATE_DFU_DOWNLOAD_SYNC;
+        return length;
+    }
+
+    private int upload(int block, byte[] buffer, int length) {
+        if (state != STATE_DFU_IDLE && state != STATE_DFU_UPLOAD_IDLE) {
+            return stall();
+        }
+        if (buffer == null || length > transferSize) {
+            return stall();
+        }
+        if (block == 0) {
+            // supported commands: GET, SET_ADDRESS, ERASE, READ_UNPROTECT
+            byte[] commands = {0x00, 0x21, 0x41, (byte) 0x92};
+            int n = Math.min(length, commands.length);
+            System.arraycopy(commands, 0, buffer, 0, n);
+            state = STATE_DFU_UPLOAD_IDLE;
+            return n;
+        }
+        if (block == 1 || readProtected) {
+            return error(STATUS_ERR_VENDOR);
+        }
+        int address = addressPointer + (block - 2) * transferSize;
+        for (int i = 0; i < length; i++) {
+            byte[] region = readable_region(address + i);
+            if (region == null) {
+                return error(STATUS_ERR_ADDRESS);
+            }
+            buffer[i] = region[offset(address + i)];
+        }
+        state = STATE_DFU_UPLOAD_IDLE;
+        return length;
+    }
+
+    private int get_status(byte[] buffer, int length) {
+        if (buffer == null || length < 6) {
+            return stall();
+        }
+        long now = System.nanoTime();
+        int pollTimeout = 0;
+
+        if (state == STATE_DFU_DOWNLOAD_SYNC && pending != null) {
+            // the request executes when the host asks for its status
+            int millis = execute_pending();
+            if (resetPending) {
+                millis = Math.max(millis, 1);   // busy until it resets
+            }
+            if (status != STATUS_OK) {
+                state = STATE_DFU_ERROR;
+            } else if (millis > 0) {
+                state = STATE_DFU_DOWNLOAD_BUSY;
+                busyUntil = now + millis * 1000000L;
+                pollTimeout = millis;
+            } else {
+                state = STATE_DFU_DOWNLOAD_IDLE;
+            }
+        } else if (state == STATE_DFU_DOWNLOAD_BUSY) {
+            if (now >= busyUntil) {
+                state = STATE_DFU_DOWNLOAD_IDLE;
+            } else {
+                pollTimeout = (int) ((busyUntil - now + 999999) / 1000000);
+            }
+        } else if (state == STATE_DFU_MANIFEST_SYNC) {
+            state = STATE_DFU_MANIFEST;
+            pollTimeout = commandMillis;
+        } else if (state == STATE_DFU_MANIFEST) {
+            // the bootloader jumps to the application and drops off the bus
+            state = STATE_DFU_MANIFEST_WAIT_RESET;
+            connected = false;
+        }
+
+        buffer[0] = (byte) status;
+        buffer[1] = (byte) pollTimeout;
+        buffer[2] = (byte) (pollTimeout >> 8);
+        buffer[3] = (byte) (pollTimeout >> 16);
+        buffer[4] = (byte) state;
+        buffer[5] = 0;
+        if (resetPending) {
+            reset();
+        }
+        return 6;
+    }
+
+    // the bootloader restarts and drops off the bus; it comes back idle once reattached
+    private void reset() {
+        resetPending = false;
+        resets++;
+        connected = false;
+        state = STATE_DFU_IDLE;
+        status = STATUS_OK;
+        altSetting = 0;
+        addressPointer = Dfu.mInternalFlashStartAddress;
+    }
+
+    // applies the pending DNLOAD and returns how long the device stays busy with it
+    private int execute_pending() {
+        byte[] data = pending;
+        int block = pendingBlock;
+        int length = pendingLength;
+        pending = null;
+
+        if (block == 0) {
+            int command = data[0] & 0xFF;
+            if (command == 0x21 && length == 5) {
+                addressPointer = le32(data);
+                return commandMillis;
+            }
+            if (command == 0x41 && length == 1) {
+                if (readProtected) {
+                    status = STATUS_ERR_TARGET;
+                    return 0;
+                }
+                Arrays.fill(flash, (byte) 0xFF);
+                return massEraseMillis;
+            }
+            if (command == 0x41 && length == 5) {
+                FlashLayout.Sector sector = layout.sectorAt(le32(data));
+                if (sector == null || readProtected) {
+                    status = STATUS_ERR_TARGET;
+                    return 0;
+                }
+                Arrays.fill(flash, sector.address - layout.getStartAddress(), sector.end() - layout.getStartAddress(), (byte) 0xFF);
+                return eraseMillisPer16K * (sector.size / (16 * 1024));
+            }
+            if (command == 0x92 && length == 1) {
+                // read unprotect: mass erase, clear RDP, then the bootloader resets
+                Arrays.fill(flash, (byte) 0xFF);
+                readProtected = false;
+                reset_option_bytes();
+                resetPending = true;
+                return massEraseMillis;
+            }
+            status = STATUS_ERR_STALLEDPKT;
+            return 0;
+        }
+
+        if (readProtected) {
+            status = STATUS_ERR_WRITE;
+            return 0;
+        }
+        int address = addressPointer + (block - 2) * transferSize;
+        for (int i = 0; i < length; i++) {
+            int a = address + i;
+            if (altSetting == 1) {
+                int o = a - Dfu.mOptionByteStartAddress;
+                if (o < 0 || o >= OPTION_BYTES_SIZE) {
+                    status = STATUS_ERR_ADDRESS;
+                    return 0;
+                }
+                optionBytes[o] = data[i];
+            } else if (layout.sectorAt(a) != null) {
+                // programming can only clear bits, unerased flash keeps its old ones
+                flash[a - layout.getStartAddress()] &= data[i];
+            } else if (a - SRAM_START >= 0 && a - SRAM_START < SRAM_SIZE) {
+                sram[a - SRAM_START] = data[i];
+            } else {
+                status = STATUS_ERR_ADDRESS;
+                return 0;
+            }
+        }
+        if (altSetting == 1) {
+            readProtected = (optionBytes[1] & 0xFF) != 0xAA;
+            resetPending = true;    // option byte programming reloads them with a reset
+        }
+        return programMillisPerBlock * ((length + PROGRAM_CHUNK - 1) / PROGRAM_CHUNK);
+    }
+
+    private byte[] readable_region(int address) {
+        if (altSetting == 1) {
+            return address - Dfu.mOptionByteStartAddress >= 0 && address - Dfu.mOptionByteStartAddress < OPTION_BYTES_SIZE
+                    ? optionBytes : null;
+        }
+        return region(address);
+    }
+
+    private byte[] region(int address) {
+        if (layout.sectorAt(address) != null) return flash;
+        if (address - SRAM_START >= 0 && address - SRAM_START < SRAM_SIZE) return sram;
+        if (address - Dfu.mOptionByteStartAddress >= 0 && address - Dfu.mOptionByteStartAddress < OPTION_BYTES_SIZE) return optionBytes;
+        return null;
+    }
+
+    private int offset(int address) {
+        if (layout.sectorAt(address) != null) return address - layout.getStartAddress();
+        if (address - SRAM_START >= 0 && address - SRAM_START < SRAM_SIZE) return address - SRAM_START;
+        return address - Dfu.mOptionByteStartAddress;
+    }
+
+    // STM32F405 factory option bytes: RDP level 0, BOR off, software watchdog, no write protection
+    private void reset_option_bytes() {
+        byte[] defaults = {(byte) 0xEC, (byte) 0xAA, 0x13, 0x55, 0, 0, 0, 0, (byte) 0xFF, 0x0F, 0x00, (byte) 0xF0, 0, 0, 0, 0};
+        System.arraycopy(defaults, 0, optionBytes, 0, OPTION_BYTES_SIZE);
+    }
+
+    private int stall() {
+        return error(STATUS_ERR_STALLEDPKT);
+    }
+
+    private int error(int errorStatus) {
+        status = errorStatus;
+        state = STATE_DFU_ERROR;
+        return -1;
+    }
+
+    private static int le32(byte[] data) {
+        return (data[1] & 0xFF) | (data[2] & 0xFF) << 8 | (data[3] & 0xFF) << 16 | (data[4] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,502 @@
+package com.emwaver.dfuprogrammer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Flashes images into a DfuSimulator on the host JVM.
+ */
+public class DfuSimulatorTest {
+    private static final int FLASH = Dfu.mInternalFlashStartAddress;
+
+    private DfuSimulator sim;
+    private Dfu dfu;
+
+    @Before
+    public void setUp() {
+        sim = new DfuSimulator();
+        sim.setLatencies(0, 0, 0, 0);
+        dfu = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID, null);
+        dfu.setTransport(sim);
+    }
+
+    @After
+    public void tearDown() {
+        dfu.close();
+    }
+
+    private static byte[] firmware(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void writeImage_programsAndVerifies() throws Exception {
+        byte[] data = firmware(40000);
+        List<AddressRange> mismatches = dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(data)));
+
+        assertTrue(mismatches.isEmpty());
+        assertArrayEquals(data, sim.getMemory(FLASH, data.length));
+        assertEquals(data.length, dfu.get_stats().getBytesWritten());
+    }
+
+    @Test
+    public void writeImage_erasesOnlyTouchedSectors() throws Exception {
+        byte[] untouched = {1, 2, 3, 4};
+        sim.load(0x08020000, untouched);     // sector 5, far beyond the image
+
+        dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(firmware(20000))));
+
+        assertArrayEquals(untouched, sim.getMemory(0x08020000, untouched.length));
+    }
+
+    @Test
+    public void writeImage_withPollTimeouts() throws Exception {
+        sim.setLatencies(1, 1, 2, 10);
+        byte[] data = firmware(10000);
+
+        assertTrue(dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(data))).isEmpty());
+        assertArrayEquals(data, sim.getMemory(FLASH, data.length));
+    }
+
+    @Test
+    public void deltaWrite_skipsUnchangedSectors() throws Exception {
+        byte[] data = firmware(40000);
+        DfuSeFile image = DfuSeFile.parse(ByteBuffer.wrap(data));
+        dfu.write_image(image);
+
+        dfu.setDeltaWrite(true);
+        dfu.begin_session();
+        assertTrue(dfu.write_image(image).isEmpty());
+        assertEquals(0, dfu.get_stats().getBytesWritten());
+        assertEquals(data.length, dfu.get_stats().getBytesUnchanged());
+
+        sim.load(0x08004010, new byte[]{0});    // corrupt sector 1 only
+        dfu.begin_session();
+        assertTrue(dfu.write_image(image).isEmpty());
+        assertEquals(16 * 1024, dfu.get_stats().getBytesWritten());
+        assertArrayEquals(data, sim.getMemory(FLASH, data.length));
+    }
+
+    @Test
+    public void deltaWrite_rewritesSectorsSharingABlock() throws Exception {
+        // 1 KB short of the sector 0/1 boundary, so the block at 0x08003C00 spans both
+        byte[] data = firmware(17 * 1024);
+        dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(DfuSeBuilder.single(0x08003C00, data))));
+
+        data[0] ^= 1;     // sector 0 only
+        dfu.setDeltaWrite(true);
+        DfuSeFile image = DfuSeFile.parse(ByteBuffer.wrap(DfuSeBuilder.single(0x08003C00, data)));
+        assertTrue(dfu.write_image(image).isEmpty());
+        assertArrayEquals(data, sim.getMemory(0x08003C00, data.length));
+    }
+
+    @Test
+    public void blankBlocks_areSkipped() throws Exception {
+        byte[] data = firmware(3 * 2048);
+        Arrays.fill(data, 2048, 4096, (byte) 0xFF);
+
+        assertTrue(dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(data))).isEmpty());
+        assertEquals(2048, dfu.get_stats().getBytesBlank());
+        assertArrayEquals(data, sim.getMemory(FLASH, data.length));
+    }
+
+    @Test
+    public void verify_reportsMismatchingRanges() throws Exception {
+        byte[] data = firmware(8192);
+        dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(data)));
+        sim.load(0x08000100, new byte[]{(byte) ~data[0x100], (byte) ~data[0x101]});
+
+        List<AddressRange> mismatches = dfu.verify(FLASH, ByteBuffer.wrap(data));
+
+        assertEquals(1, mismatches.size());
+        assertEquals(0x08000100, mismatches.get(0).start);
+        assertEquals(0x08000102, mismatches.get(0).end);
+    }
+
+    @Test
+    public void readMemory_readsAnyRange() throws Exception {
+        byte[] data = {5, 6, 7, 8, 9};
+        sim.load(DfuSimulator.SRAM_START + 4000, data);
+
+        ByteBuffer dst = ByteBuffer.allocate(data.length);
+        dfu.read_memory(DfuSimulator.SRAM_START + 4000, dst);
+
+        assertArrayEquals(data, dst.array());
+    }
+
+    @Test
+    public void transferSize_followsDescriptor() throws Exception {
+        sim.setTransferSize(4096);
+        dfu.setTransport(sim);
+        assertEquals(4096, dfu.get_transfer_size());
+
+        byte[] data = firmware(40000);
+        assertTrue(dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(data))).isEmpty());
+        assertArrayEquals(data, sim.getMemory(FLASH, data.length));
+        // 10 data blocks; the other DNLOADs are 3 sector erases, a pointer set after each and one for verify
+        assertEquals(10, sim.getRequestCount(1) - 3 - 4);
+    }
+
+    @Test
+    public void writeImage_resumesFromJournal() throws Exception {
+        final DfuSimulator flaky = new DfuSimulator() {
+            private int blocks;
+
+            @Override
+            public synchronized int controlTransfer(int requestType, int request, int value, int index,
+                                                    byte[] buffer, int length, int timeout) {
+                if (request == 1 && value >= 2 && ++blocks == 40) {
+                    setConnected(false);    // cable pulled after 80 KB, in sector 4
+                }
+                return super.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+            }
+        };
+        flaky.setLatencies(0, 0, 0, 0);
+        File journal = File.createTempFile("flash", ".journal");
+        assertTrue(journal.delete());
+        byte[] data = firmware(200000);
+        dfu.setTransport(flaky);
+        dfu.set_journal_file(journal);
+        try {
+            dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(data)), "image");
+            fail("write survived the detach");
+        } catch (Exception expected) {
+            // detached
+        }
+        assertEquals("image", dfu.get_journal_image());
+
+        flaky.setConnected(true);
+        dfu.setTransport(flaky);
+        assertTrue(dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(data)), "image").isEmpty());
+        assertArrayEquals(data, flaky.getMemory(FLASH, data.length));
+        assertEquals(4 * 16384, dfu.get_stats().getBytesUnchanged());     // sectors 0-3 were not rewritten
+        assertNull(dfu.get_journal_image());
+    }
+
+    @Test
+    public void writeImage_resumesIntoSectorSharingABlock() throws Exception {
+        final DfuSimulator flaky = new DfuSimulator() {
+            private int blocks;
+
+            @Override
+            public synchronized int controlTransfer(int requestType, int request, int value, int index,
+                                                    byte[] buffer, int length, int timeout) {
+                if (request == 1 && value >= 2 && ++blocks == 11) {
+                    setConnected(false);    // in sector 2, after sector 1 was journaled
+                }
+                return super.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+            }
+        };
+        flaky.setLatencies(0, 0, 0, 0);
+        File journal = File.createTempFile("flash", ".journal");
+        assertTrue(journal.delete());
+        // the block at 0x08007C00 spans the completed sector 1 and the interrupted sector 2
+        byte[] container = DfuSeBuilder.single(0x08003C00, firmware(60 * 1024));
+        dfu.setTransport(flaky);
+        dfu.set_journal_file(journal);
+        try {
+            dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(container)), "image");
+            fail("write survived the detach");
+        } catch (Exception expected) {
+            // detached
+        }
+
+        flaky.setConnected(true);
+        dfu.setTransport(flaky);
+        assertTrue(dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(container)), "image").isEmpty());
+        assertArrayEquals(firmware(60 * 1024), flaky.getMemory(0x08003C00, 60 * 1024));
+    }
+
+    @Test
+    public void stats_recordLatencies() throws Exception {
+        byte[] data = firmware(40000);
+        dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(data)));
+        FlashStats stats = dfu.get_stats();
+
+        assertEquals(sim.getRequestCount(3), stats.getGetStatusCount());
+        assertEquals(sim.getRequestCount(1), stats.getRequest(1).getCount());
+        assertEquals(20, stats.getOperation(FlashStats.OP_DOWNLOAD).getCount());     // 40000 bytes in 2048 byte blocks
+        assertEquals(data.length, stats.getBytesRead());                            // the verify pass
+        assertTrue(stats.toJson().contains("\"GETSTATUS\": {\"count\": " + stats.getGetStatusCount()));
+    }
+
+    @Test
+    public void trace_replaysRecordedSession() throws Exception {
+        byte[] data = firmware(40000);
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        TraceRecorder recorder = new TraceRecorder(sim, trace);
+        dfu.setTransport(recorder);
+        assertTrue(dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(data))).isEmpty());
+        recorder.close();
+
+        TraceReplayer replayer = TraceReplayer.read(new ByteArrayInputStream(trace.toByteArray()));
+        replayer.setTimeScale(0);
+        assertEquals(recorder.getRecordCount(), replayer.getRecordCount());
+        Dfu replay = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID, null);
+        replay.setTransport(replayer);
+        assertTrue(replay.write_image(DfuSeFile.parse(ByteBuffer.wrap(data))).isEmpty());
+        assertTrue(replayer.isFinished());
+        assertEquals(-1, replayer.getDivergence());
+
+        // different firmware sends different payloads, which the replayer notices
+        replayer = TraceReplayer.read(new ByteArrayInputStream(trace.toByteArray()));
+        replayer.setTimeScale(0);
+        replay.setTransport(replayer);
+        data[100]++;
+        try {
+            replay.write_image(DfuSeFile.parse(ByteBuffer.wrap(data)));
+            fail("replay of other firmware succeeded");
+        } catch (Exception expected) {
+            assertTrue(replayer.getDivergence() >= 0);
+        }
+    }
+
+    @Test
+    public void trace_marksJobsAndReplaysOneWrite() throws Exception {
+        final byte[] first = firmware(40000);
+        final byte[] second = first.clone();
+        second[30000]++;
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        TraceRecorder recorder = new TraceRecorder(sim, trace);
+        dfu.setTransport(recorder);
+        DfuWorker worker = new DfuWorker(dfu, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        worker.submit(new DfuWorker.Job<List<AddressRange>>() {
+            @Override
+            public String name() {
+                return "write first";
+            }
+
+            @Override
+            public List<AddressRange> run(Dfu dfu) throws Exception {
+                return dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(first)), "first");
+            }
+        });
+        worker.submit(DfuCommands.readMemory(FLASH, 4096));
+        worker.submit(new DfuWorker.Job<List<AddressRange>>() {
+            @Override
+            public String name() {
+                return "delta write second";
+            }
+
+            @Override
+            public List<AddressRange> run(Dfu dfu) throws Exception {
+                dfu.setDeltaWrite(true);
+                return dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(second)));
+            }
+        }).get();
+        worker.shutdown();
+        recorder.close();
+
+        TraceReplayer replayer = TraceReplayer.read(new ByteArrayInputStream(trace.toByteArray()));
+        replayer.setTimeScale(0);
+        List<TraceReplayer.Job> jobs = replayer.getJobs();
+        assertEquals(3, jobs.size());
+        assertEquals(0, jobs.get(0).firstRecord);
+        for (int i = 1; i < jobs.size(); i++) {
+            assertEquals(jobs.get(i - 1).firstRecord + jobs.get(i - 1).recordCount, jobs.get(i).firstRecord);
+            assertTrue(jobs.get(i).ok);
+        }
+        assertEquals(replayer.getRecordCount(), jobs.get(2).firstRecord + jobs.get(2).recordCount);
+        assertEquals("write first", jobs.get(0).name);
+        assertEquals("read memory", jobs.get(1).name);
+        assertEquals("delta write second", jobs.get(2).name);
+
+        List<TraceReplayer.Image> images = replayer.getImages();
+        assertEquals(2, images.size());
+        DfuSeFile firstImage = DfuSeFile.parse(ByteBuffer.wrap(first));
+        DfuSeFile secondImage = DfuSeFile.parse(ByteBuffer.wrap(second));
+        assertEquals("first", images.get(0).imageId);
+        assertEquals(jobs.get(0).firstRecord, images.get(0).position);
+        assertTrue(images.get(0).matches(firstImage));
+        assertFalse(images.get(0).matches(secondImage));
+        assertEquals("", images.get(1).imageId);
+        assertEquals(jobs.get(2).firstRecord, images.get(1).position);
+        assertTrue(images.get(1).matches(secondImage));
+        assertTrue((images.get(1).flags & TraceRecorder.IMAGE_DELTA_WRITE) != 0);
+        assertTrue((images.get(0).flags & TraceRecorder.IMAGE_DELTA_WRITE) == 0);
+
+        // the delta write on its own, by a Dfu that never saw the jobs before it
+        replayer.seek(images.get(1).position);
+        Dfu replay = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID, null);
+        replay.setDeltaWrite(true);
+        replay.setTransport(replayer);
+        try {
+            assertTrue(replay.write_image(secondImage).isEmpty());
+            assertEquals(replayer.getDivergenceReason(), -1, replayer.getDivergence());
+            assertTrue(replayer.isFinished());
+        } finally {
+            replay.close();
+        }
+    }
+
+    @Test
+    public void provisioning_unprotectsWritesAndSetsOptionBytes() throws Exception {
+        final byte[] data = firmware(40000);
+        DfuWorker.Job<List<AddressRange>> firmware = new DfuWorker.Job<List<AddressRange>>() {
+            @Override
+            public String name() {
+                return "write firmware";
+            }
+
+            @Override
+            public List<AddressRange> run(Dfu dfu) throws Exception {
+                return dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(data)));
+            }
+        };
+        int options = Dfu.OPT_RDP_OFF | Dfu.OPT_BOR_3 | Dfu.OPT_WDG_SW | Dfu.OPT_nRST_STOP | Dfu.OPT_nRST_STDBY;
+        File journal = File.createTempFile("flash", ".journal");
+        assertTrue(journal.delete());
+        dfu.set_journal_file(journal);
+        sim.setReadProtected(true);
+
+        try {
+            new Provisioning(firmware, options).run(dfu);
+            fail("device stayed attached through read unprotect");
+        } catch (Exception expected) {
+            // reset
+        }
+        assertFalse(sim.isConnected());
+        assertFalse(sim.isReadProtected());
+        assertEquals(1, sim.getResetCount());
+
+        // the board comes back with a new session, which continues where the old one stopped
+        sim.setConnected(true);
+        Dfu reattached = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID, null);
+        reattached.setTransport(sim);
+        reattached.set_journal_file(journal);
+        try {
+            Provisioning pending = Provisioning.pending(reattached, firmware);
+            assertNotNull(pending);
+            Provisioning.Report report = pending.run(reattached);
+            assertTrue(report.toString(), report.isOk());
+            assertTrue(report.unprotected);
+            assertTrue(report.optionBytesWritten);
+            assertNull(Provisioning.pending(reattached, firmware));
+            assertFalse(sim.isConnected());
+            assertEquals(2, sim.getResetCount());   // unprotect and option bytes
+
+            sim.setConnected(true);
+            reattached.setTransport(sim);
+            assertArrayEquals(data, sim.getMemory(FLASH, data.length));
+            byte[] optionBytes = reattached.read_option_bytes();
+            assertEquals((byte) options, optionBytes[0]);
+            assertEquals((byte) 0xAA, optionBytes[1]);
+
+            // a unit that is already provisioned is not reset again
+            report = new Provisioning(firmware, options).run(reattached);
+            assertTrue(report.isOk());
+            assertFalse(report.unprotected);
+            assertFalse(report.optionBytesWritten);
+            assertTrue(sim.isConnected());
+            assertEquals(2, sim.getResetCount());
+        } finally {
+            reattached.close();
+        }
+    }
+
+    @Test
+    public void leave_manifestsAndDetaches() throws Exception {
+        byte[] data = firmware(10000);
+        assertTrue(dfu.write_image(DfuSeFile.parse(ByteBuffer.wrap(data))).isEmpty());
+
+        assertTrue(dfu.leave());
+        assertFalse(sim.isConnected());
+        assertArrayEquals(data, sim.getMemory(FLASH, data.length));
+    }
+
+    @Test
+    public void worker_runsCommandsInOrder() throws Exception {
+        DfuWorker worker = new DfuWorker(dfu, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        byte[] data = firmware(10000);
+        Future<List<AddressRange>> write = worker.submit(DfuCommands.writeImage(DfuSeFile.parse(ByteBuffer.wrap(data))));
+        Future<ByteBuffer> read = worker.submit(DfuCommands.readMemory(FLASH, data.length));
+        Future<Integer> state = worker.submit(DfuCommands.getStatus());
+
+        assertTrue(write.get().isEmpty());
+        assertEquals(ByteBuffer.wrap(data), read.get());
+        assertEquals(DfuSimulator.STATE_DFU_UPLOAD_IDLE, (int) state.get());
+        // served from the tracked state, no request behind the queue
+        long requests = sim.getRequestCount(3);
+        assertEquals("dfuUPLOAD -IDLE", Dfu.state_name(dfu.get_last_state()));
+        assertEquals(requests, sim.getRequestCount(3));
+        worker.shutdown();
+    }
+
+    @Test
+    public void worker_reportsWholeBatch() throws Exception {
+        DfuWorker worker = new DfuWorker(dfu, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        File report = File.createTempFile("report", ".json");
+        worker.setReportFile(report);
+        byte[] data = firmware(10000);
+        worker.submit(DfuCommands.writeImage(DfuSeFile.parse(ByteBuffer.wrap(data))));
+        worker.submit(DfuCommands.readMemory(FLASH, 4096));
+        worker.submit(DfuCommands.readMemory(FLASH, 4096)).get();
+
+        // the verify pass and both reads
+        String json = new String(Files.readAllBytes(report.toPath()), "UTF-8");
+        assertTrue(json, json.contains("\"bytes_written\": 10000,"));
+        assertTrue(json, json.contains("\"bytes_read\": " + (data.length + 2 * 4096) + ","));
+        worker.shutdown();
+        assertTrue(report.delete());
+    }
+
+    @Test
+    public void writeStream_decompressesContainers() throws Exception {
+        // firmware-like: random code with repeated tables and erased gaps
+        byte[] data = firmware(150000);
+        Arrays.fill(data, 20000, 60000, (byte) 0xFF);
+        for (int i = 80000; i < 120000; i++) {
+            data[i] = data[80000 + i % 300];
+        }
+        for (int codec : new int[]{CompressedImage.CODEC_DEFLATE, CompressedImage.CODEC_LZ4}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CompressedImage.write(out, data, 0, data.length, codec);
+            assertTrue(out.size() < data.length * 3 / 4);
+
+            dfu.write_stream(new ByteArrayInputStream(out.toByteArray()));
+            assertArrayEquals(data, sim.getMemory(FLASH, data.length));
+
+            // a damaged payload fails the write, more cases are in CompressedImageTest
+            byte[] corrupt = out.toByteArray();
+            corrupt[corrupt.length - 5] ^= 1;
+            try {
+                dfu.write_stream(new ByteArrayInputStream(corrupt));
+                fail("corrupt container not detected");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("CRC") || e.getMessage().contains("corrupt"));
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.emwaver.dfuprogrammer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Imports, reopens and evicts images in a FirmwareCache kept in a temporary directory.
+ */
+public class FirmwareCacheTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("firmware", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    // random code with an erased gap, so the blank map has something to record
+    private static byte[] firmware(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        Arrays.fill(data, size / 4, size / 2, (byte) 0xFF);
+        return data;
+    }
+
+    private static byte[] bytes(DfuSeFile.Element element) {
+        ByteBuffer data = element.data.duplicate();
+        byte[] out = new byte[data.remaining()];
+        data.get(out);
+        return out;
+    }
+
+    private static FirmwareCache.Entry put(FirmwareCache cache, byte[] image) throws IOException {
+        return cache.put(new ByteArrayInputStream(image));
+    }
+
+    private static void assertSameImage(DfuSeFile expected, DfuSeFile actual) {
+        assertEquals(expected.isRaw(), actual.isRaw());
+        assertEquals(expected.getVendorId(), actual.getVendorId());
+        assertEquals(expected.getProductId(), actual.getProductId());
+        assertEquals(expected.getDeviceVersion(), actual.getDeviceVersion());
+        assertEquals(expected.getTargets().size(), actual.getTargets().size());
+        for (int t = 0; t < expected.getTargets().size(); t++) {
+            DfuSeFile.Target want = expected.getTargets().get(t);
+            DfuSeFile.Target got = actual.getTargets().get(t);
+            assertEquals(want.alternateSetting, got.alternateSetting);
+            assertEquals(want.name, got.name);
+            assertEquals(want.elements.size(), got.elements.size());
+            for (int e = 0; e < want.elements.size(); e++) {
+                DfuSeFile.Element element = got.elements.get(e);
+                assertEquals(want.elements.get(e).address, element.address);
+                assertArrayEquals(bytes(want.elements.get(e)), bytes(element));
+                for (int offset = 0; offset < element.size(); offset += 1024) {
+                    int length = Math.min(1024, element.size() - offset);
+                    assertEquals("element " + e + " at " + offset, want.elements.get(e).isBlank(offset, length),
+                            element.isBlank(offset, length));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void put_storesAndOpensTheImage() throws Exception {
+        byte[] image = new DfuSeBuilder()
+                .target(0, "Internal Flash").element(0x08000000, firmware(20000)).element(0x08020000, firmware(3000))
+                .target(1, "Option Bytes").element(0x1FFFC000, firmware(16))
+                .build();
+        FirmwareCache cache = new FirmwareCache(dir, 1 << 20);
+        FirmwareCache.Entry entry = put(cache, image);
+        assertEquals(64, entry.getHash().length());
+        assertEquals(image.length, entry.getSize());
+        assertTrue(new File(dir, entry.getHash() + ".meta").isFile());
+        assertSameImage(DfuSeFile.parse(ByteBuffer.wrap(image)), entry.open());
+
+        // the same image again is the same entry, whether raw or compressed
+        assertSame(entry, put(cache, image));
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        CompressedImage.write(compressed, image, 0, image.length, CompressedImage.CODEC_LZ4);
+        assertSame(entry, put(cache, compressed.toByteArray()));
+        assertEquals(2, dir.listFiles().length);     // one image and its metadata
+
+        byte[] raw = firmware(5000);
+        FirmwareCache.Entry rawEntry = put(cache, raw);
+        assertNotEquals(entry.getHash(), rawEntry.getHash());
+        assertSameImage(DfuSeFile.parse(ByteBuffer.wrap(raw)), rawEntry.open());
+    }
+
+    @Test
+    public void get_rebuildsFromTheMetadata() throws Exception {
+        byte[] image = new DfuSeBuilder().element(0x08004000, firmware(9000)).element(0x08010000, firmware(100)).build();
+        String hash = put(new FirmwareCache(dir, 1 << 20), image).getHash();
+
+        // a new cache (after a restart) opens the image from its metadata
+        FirmwareCache cache = new FirmwareCache(dir, 1 << 20);
+        assertNull(cache.get("0000"));
+        FirmwareCache.Entry entry = cache.get(hash);
+        assertNotNull(entry);
+        assertSameImage(DfuSeFile.parse(ByteBuffer.wrap(image)), entry.open());
+
+        // metadata from another version is rewritten from the image
+        File meta = new File(dir, hash + ".meta");
+        RandomAccessFile raf = new RandomAccessFile(meta, "rw");
+        try {
+            raf.seek(4);
+            raf.writeInt(1);
+        } finally {
+            raf.close();
+        }
+        entry = new FirmwareCache(dir, 1 << 20).get(hash);
+        assertSameImage(DfuSeFile.parse(ByteBuffer.wrap(image)), entry.open());
+        raf = new RandomAccessFile(meta, "r");
+        try {
+            raf.seek(4);
+            assertEquals(2, raf.readInt());
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void get_reindexesDamagedMetadata() throws Exception {
+        byte[] image = new DfuSeBuilder().element(0x08000000, firmware(9000)).build();
+        String hash = put(new FirmwareCache(dir, 1 << 20), image).getHash();
+        File meta = new File(dir, hash + ".meta");
+        byte[] good = Files.readAllBytes(meta.toPath());
+
+        // target count, element count (after the "Internal Flash" name) and blank map length
+        int[][] damage = {{15, -1}, {15, Integer.MAX_VALUE}, {36, -1}, {36, Integer.MAX_VALUE},
+                {52, -1}, {52, Integer.MAX_VALUE}};
+        for (int[] d : damage) {
+            byte[] bad = good.clone();
+            ByteBuffer.wrap(bad).putInt(d[0], d[1]);
+            Files.write(meta.toPath(), bad);
+            FirmwareCache.Entry entry = new FirmwareCache(dir, 1 << 20).get(hash);
+            assertNotNull(entry);
+            assertSameImage(DfuSeFile.parse(ByteBuffer.wrap(image)), entry.open());
+            assertArrayEquals("count " + d[1] + " at " + d[0], good, Files.readAllBytes(meta.toPath()));
+        }
+    }
+
+    @Test
+    public void put_rejectsInvalidImages() throws Exception {
+        byte[] image = DfuSeBuilder.single(0x08000000, firmware(4000));
+        image[100] ^= 1;
+        FirmwareCache cache = new FirmwareCache(dir, 1 << 20);
+        try {
+            put(cache, image);
+            fail("image with a bad CRC cached");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("CRC"));
+        }
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void evict_dropsLeastRecentlyUsed() throws Exception {
+        FirmwareCache cache = new FirmwareCache(dir, 1 << 20);
+        FirmwareCache.Entry a = put(cache, firmware(100000));
+        FirmwareCache.Entry b = put(cache, firmware(100001));
+        FirmwareCache.Entry c = put(cache, firmware(100002));
+
+        // b is the oldest use, then a, then c
+        long now = System.currentTimeMillis();
+        assertTrue(b.getFile().setLastModified(now - 30000));
+        assertTrue(a.getFile().setLastModified(now - 20000));
+        assertTrue(c.getFile().setLastModified(now - 10000));
+
+        // a new image that only fits beside one other evicts b and a, never itself
+        long limit = cache.getSize() + 1000;
+        cache.setMaxBytes(limit);
+        FirmwareCache.Entry d = put(cache, firmware(150000));
+        assertFalse(b.getFile().exists());
+        assertFalse(new File(dir, b.getHash() + ".meta").exists());
+        assertFalse(a.getFile().exists());
+        assertTrue(c.getFile().exists());
+        assertTrue(d.getFile().exists());
+        assertNull(cache.get(b.getHash()));
+        assertTrue(cache.getSize() <= limit);
+
+        // shrinking the limit evicts at once, the newest entry last
+        cache.setMaxBytes(200000);
+        assertFalse(c.getFile().exists());
+        assertTrue(d.getFile().exists());
+        assertNotNull(cache.get(d.getHash()));
+    }
+}
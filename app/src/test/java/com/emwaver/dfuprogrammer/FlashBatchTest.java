@@ -0,0 +1,85 @@
+package com.emwaver.dfuprogrammer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Flashes several DfuSimulator sessions at once, the way the flash all button does.
+ */
+public class FlashBatchTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static byte[] firmware(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void batch_flashesEverySession() throws Exception {
+        final byte[] data = firmware(40000);
+        List<DfuSimulator> sims = new ArrayList<>();
+        List<DfuSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            DfuSimulator sim = new DfuSimulator();
+            sim.setLatencies(0, 1, 1, 0);
+            sims.add(sim);
+            sessions.add(new DfuSession("sim" + i, sim, null, DIRECT));
+        }
+        // one unit was unplugged, the others must not notice
+        sims.get(2).setConnected(false);
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicReference<List<FlashBatch.Result>> results = new AtomicReference<>();
+        FlashBatch batch = new FlashBatch(sessions, DfuCommands.writeImage(DfuSeFile.parse(ByteBuffer.wrap(data))),
+                new FlashBatch.Listener() {
+                    @Override
+                    public void onProgress(FlashBatch batch) {
+                    }
+
+                    @Override
+                    public void onDeviceFinished(FlashBatch.Result result) {
+                    }
+
+                    @Override
+                    public void onFinished(List<FlashBatch.Result> all, long bytesPerSecond) {
+                        results.set(all);
+                        finished.countDown();
+                    }
+                });
+        batch.start();
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+
+        assertEquals(4, results.get().size());
+        assertEquals(0, batch.getRunning());
+        for (FlashBatch.Result result : results.get()) {
+            if (result.device.equals("sim2")) {
+                assertNotNull(result.error);
+                continue;
+            }
+            assertTrue(result.toString(), result.isOk());
+            assertEquals(data.length, result.bytes);
+        }
+        for (int i = 0; i < 4; i++) {
+            if (i != 2) {
+                assertArrayEquals(data, sims.get(i).getMemory(Dfu.mInternalFlashStartAddress, data.length));
+            }
+            sessions.get(i).close();
+        }
+    }
+}
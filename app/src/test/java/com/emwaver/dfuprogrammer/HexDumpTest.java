@@ -0,0 +1,87 @@
+package com.emwaver.dfuprogrammer;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares HexDump with the String.format rows print_block() used to build.
+ */
+public class HexDumpTest {
+    private static final int[] LENGTHS = {0, 1, 3, 4, 5, 15, 16, 17, 31, 33, 2047, 2048, 5000};
+    private static final int[] ADDRESSES = {0x08000000, 0x0800FFF0, 0x1FFFC000, 0x80000000, 0xFFFFFFF0};
+
+    // the former print_block(), with an offset into buffer
+    private static String formatted(byte[] buffer, int offset, int length, int address) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i += 16) {
+            sb.append(String.format("0x%08X: ", address + i));
+            int remaining = Math.min(length - i, 16);
+
+            for (int j = 0; j < remaining; j++) {
+                sb.append(String.format("%02x", buffer[offset + i + j] & 0xFF));
+                if ((j + 1) % 4 == 0 && j + 1 < remaining) {
+                    sb.append("  ");
+                }
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void render_matchesStringFormat() {
+        HexDump dump = new HexDump();
+        for (int length : LENGTHS) {
+            for (int address : ADDRESSES) {
+                for (int offset : new int[]{0, 7}) {
+                    byte[] buffer = data(offset + length);
+                    int chars = dump.render(buffer, offset, length, address);
+                    assertEquals(length + " bytes at 0x" + Integer.toHexString(address) + ", offset " + offset,
+                            formatted(buffer, offset, length, address), new String(dump.chars(), 0, chars));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void render_partialLastRow() {
+        byte[] buffer = {0x00, 0x18, 0x00, 0x20, (byte) 0xe5, 0x0f, 0x00, 0x08, 0x4d, 0x0f, 0x00, 0x08,
+                0x4f, 0x0f, 0x00, 0x08, (byte) 0xff, 0x01, (byte) 0x80, 0x7f, 0x10};
+        HexDump dump = new HexDump();
+        int chars = dump.render(buffer, 0, buffer.length, 0x08000000);
+        String expected = "0x08000000: 00180020  e50f0008  4d0f0008  4f0f0008\n"
+                + "0x08000010: ff01807f  10\n";
+        assertEquals(expected, new String(dump.chars(), 0, chars));
+        assertEquals(expected, formatted(buffer, 0, buffer.length, 0x08000000));
+    }
+
+    @Test
+    public void renderRow_matchesItsLine() {
+        byte[] buffer = data(100);
+        String[] lines = formatted(buffer, 0, buffer.length, 0x08004000).split("\n");
+        assertEquals(HexDump.rowCount(buffer.length), lines.length);
+        char[] out = new char[HexDump.MAX_ROW_CHARS + 3];
+        for (int row = lines.length - 1; row >= 0; row--) {
+            int end = HexDump.renderRow(buffer, 0, buffer.length, 0x08004000, row, out, 3);
+            assertEquals("row " + row, lines[row] + "\n", new String(out, 3, end - 3));
+        }
+    }
+
+    @Test
+    public void rowCount_roundsUp() {
+        assertEquals(0, HexDump.rowCount(0));
+        assertEquals(1, HexDump.rowCount(1));
+        assertEquals(1, HexDump.rowCount(16));
+        assertEquals(2, HexDump.rowCount(17));
+        assertEquals(128, HexDump.rowCount(2048));
+    }
+}
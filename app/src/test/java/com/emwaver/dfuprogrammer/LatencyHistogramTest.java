@@ -0,0 +1,59 @@
+package com.emwaver.dfuprogrammer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Percentiles and summaries of LatencyHistogram, which are off by at most one sub-bucket.
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void percentiles_withinOneSubBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500000, histogram.getValueAtPercentile(50), 500000 / 32);
+        assertEquals(990000, histogram.getValueAtPercentile(99), 990000 / 32);
+        assertEquals(1000, histogram.getMinNanos());
+        assertEquals(1000000, histogram.getMaxNanos());
+        assertEquals(500500, histogram.getMeanNanos());
+    }
+
+    @Test
+    public void smallValues_areExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 32; i++) {
+            histogram.record(i);
+        }
+        assertEquals(0, histogram.getValueAtPercentile(0));
+        assertEquals(15, histogram.getValueAtPercentile(50));
+        assertEquals(31, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void percentiles_stayWithinMinAndMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(123456789L);
+        assertEquals(123456789L, histogram.getValueAtPercentile(0));
+        assertEquals(123456789L, histogram.getValueAtPercentile(100));
+
+        histogram.record(-5);   // clamped to 0
+        assertEquals(0, histogram.getMinNanos());
+    }
+
+    @Test
+    public void reset_clearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(0, histogram.getMinNanos());
+        assertEquals(0, histogram.getMaxNanos());
+        assertEquals("{\"count\": 0, \"total_us\": 0, \"min_us\": 0, \"mean_us\": 0, \"p50_us\": 0, \"p90_us\": 0, \"p99_us\": 0, \"max_us\": 0}",
+                histogram.toJson());
+    }
+}
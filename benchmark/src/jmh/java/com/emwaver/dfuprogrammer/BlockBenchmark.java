@@ -0,0 +1,75 @@
+package com.emwaver.dfuprogrammer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per block CPU work of a transfer: comparing a read back block, the blank check that lets
+ * erased blocks be skipped, and the hex dump print_block() renders for the status log.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BlockBenchmark {
+    private static final int BLOCK_SIZE = 2048;
+
+    private byte[] block;
+    private byte[] copy;
+    private ByteBuffer blank;
+    private final HexDump hexDump = new HexDump();
+
+    @Setup
+    public void setUp() {
+        block = FirmwareImages.payload(BLOCK_SIZE, 0);
+        copy = block.clone();
+        blank = ByteBuffer.wrap(FirmwareImages.payload(BLOCK_SIZE, BLOCK_SIZE));
+    }
+
+    // a matching block, so the whole block is scanned
+    @Benchmark
+    public boolean equalArrays() {
+        return Dfu.equalArrays(block, copy, BLOCK_SIZE);
+    }
+
+    @Benchmark
+    public boolean isBlank() {
+        return Dfu.is_blank(blank, 0, BLOCK_SIZE);
+    }
+
+    @Benchmark
+    public int hexDump() {
+        return hexDump.render(block, 0, BLOCK_SIZE, Dfu.mInternalFlashStartAddress);
+    }
+
+    // what the status log receives, including the String print_block() hands to the listeners
+    @Benchmark
+    public String hexDumpString() {
+        int length = hexDump.render(block, 0, BLOCK_SIZE, Dfu.mInternalFlashStartAddress);
+        return new String(hexDump.chars(), 0, length);
+    }
+
+    // the String.format based print_block() the lookup tables replaced, kept as a baseline
+    @Benchmark
+    public String hexDumpFormat() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < BLOCK_SIZE; i += 16) {
+            sb.append(String.format("0x%08X: ", Dfu.mInternalFlashStartAddress + i));
+            for (int j = 0; j < 16 && i + j < BLOCK_SIZE; j++) {
+                sb.append(String.format("%02x", block[i + j]));
+                if ((j + 1) % 4 == 0 && j + 1 < 16) {
+                    sb.append("  ");
+                }
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,49 @@
+package com.emwaver.dfuprogrammer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Deterministic firmware payloads and DfuSe containers for the benchmarks.
+ */
+final class FirmwareImages {
+    private FirmwareImages() {
+    }
+
+    // pseudo random code with the erased tail a linker map usually leaves between sections
+    static byte[] payload(int size, int blankBytes) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        for (int i = Math.max(0, size - blankBytes); i < size; i++) {
+            data[i] = (byte) 0xFF;
+        }
+        return data;
+    }
+
+    // a single target DfuSe file (UM0391) with the payload split over two elements, plus suffix
+    static byte[] dfuse(byte[] payload, int address) {
+        int half = payload.length / 2;
+        int targetSize = 8 + half + 8 + (payload.length - half);
+        int size = 11 + 274 + targetSize + 16;
+        ByteBuffer file = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+
+        file.put("DfuSe".getBytes()).put((byte) 0x01).putInt(size - 16).put((byte) 1);
+
+        file.put("Target".getBytes()).put((byte) 0).putInt(1);
+        byte[] name = new byte[255];
+        byte[] internal = "Internal Flash".getBytes();
+        System.arraycopy(internal, 0, name, 0, internal.length);
+        file.put(name).putInt(targetSize).putInt(2);
+
+        file.putInt(address).putInt(half).put(payload, 0, half);
+        file.putInt(address + half).putInt(payload.length - half).put(payload, half, payload.length - half);
+
+        file.putShort((short) 0x2200).putShort((short) 0xDF11).putShort((short) 0x0483)
+                .putShort((short) 0x011A).put((byte) 'U').put((byte) 'F').put((byte) 'D').put((byte) 16);
+        Crc32 crc = new Crc32();
+        crc.update(file.array(), 0, size - 4);
+        file.putInt(crc.dfuValue());
+        return file.array();
+    }
+}
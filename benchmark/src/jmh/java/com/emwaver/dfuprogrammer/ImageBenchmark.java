@@ -0,0 +1,73 @@
+package com.emwaver.dfuprogrammer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Loading a firmware file: DfuSe parsing (which includes the suffix CRC) and CRC-32 over heap
+ * and direct buffers, the latter standing in for a memory mapped image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ImageBenchmark {
+    @Param({"32768", "1048576"})
+    public int size;
+
+    private byte[] file;
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+    private final Crc32 crc = new Crc32();
+    private final CRC32 zipCrc = new CRC32();
+
+    @Setup
+    public void setUp() {
+        file = FirmwareImages.dfuse(FirmwareImages.payload(size, size / 8), Dfu.mInternalFlashStartAddress);
+        heap = ByteBuffer.wrap(file);
+        direct = ByteBuffer.allocateDirect(file.length);
+        direct.put(file).flip();
+    }
+
+    @Benchmark
+    public DfuSeFile parse() throws IOException {
+        return DfuSeFile.parse(heap);
+    }
+
+    @Benchmark
+    public DfuSeFile parseDirect() throws IOException {
+        return DfuSeFile.parse(direct);
+    }
+
+    @Benchmark
+    public int crc32Array() {
+        crc.reset();
+        crc.update(file, 0, file.length);
+        return crc.value();
+    }
+
+    @Benchmark
+    public int crc32Direct() {
+        crc.reset();
+        crc.update(direct, 0, file.length);
+        return crc.value();
+    }
+
+    // java.util.zip.CRC32 on arrays, the baseline Crc32 has to stay close to
+    @Benchmark
+    public long crc32Zip() {
+        zipCrc.reset();
+        zipCrc.update(file, 0, file.length);
+        return zipCrc.getValue();
+    }
+}
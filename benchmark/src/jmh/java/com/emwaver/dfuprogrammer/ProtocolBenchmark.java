@@ -0,0 +1,84 @@
+package com.emwaver.dfuprogrammer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host side cost of the DFU protocol against a DfuSimulator with zero latencies, so what is
+ * measured is Dfu itself: status decoding, and whole image writes and reads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProtocolBenchmark {
+    private static final int IMAGE_SIZE = 256 * 1024;
+
+    private DfuSimulator sim;
+    private Dfu dfu;
+    private Dfu deltaDfu;
+    private DfuSeFile image;
+    private ByteBuffer readBuffer;
+    private final byte[] status = new byte[6];
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        sim = new DfuSimulator();
+        sim.setLatencies(0, 0, 0, 0);
+        dfu = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID, null);
+        dfu.setTransport(sim);
+        deltaDfu = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID, null);
+        deltaDfu.setTransport(sim);
+        deltaDfu.setDeltaWrite(true);
+        image = DfuSeFile.parse(ByteBuffer.wrap(FirmwareImages.payload(IMAGE_SIZE, IMAGE_SIZE / 8)));
+        readBuffer = ByteBuffer.allocate(IMAGE_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dfu.setTransport(null);
+        deltaDfu.setTransport(null);
+        dfu.close();
+        deltaDfu.close();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int getStatus() throws Exception {
+        return dfu.get_status(status);
+    }
+
+    @Benchmark
+    public List<AddressRange> writeImage() throws Exception {
+        return dfu.write_image(image);
+    }
+
+    // the image is already on the device, so every sector compares unchanged and nothing is written
+    @Benchmark
+    public List<AddressRange> writeImageDelta() throws Exception {
+        return deltaDfu.write_image(image);
+    }
+
+    @Benchmark
+    public ByteBuffer readMemory() throws Exception {
+        readBuffer.clear();
+        dfu.read_memory(Dfu.mInternalFlashStartAddress, readBuffer);
+        return readBuffer;
+    }
+
+    // read_flash() hex dumps everything it reads into the status log
+    @Benchmark
+    public void readFlash() throws Exception {
+        dfu.read_flash(32 * 1024);
+    }
+}